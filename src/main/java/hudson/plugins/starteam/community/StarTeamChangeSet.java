@@ -26,10 +26,14 @@ public class StarTeamChangeSet {
 
   private Collection<java.io.File> filesToRemove = new ArrayList<java.io.File>();
 
+  private Collection<java.io.File> folderPaths = new ArrayList<java.io.File>();
+
   private Collection<File> filesToCheckout = new ArrayList<File>();
 
   private Collection<StarTeamFilePoint> filePointsToRemember = new ArrayList<StarTeamFilePoint>();
 
+  private Collection<StarTeamFilePoint> historicFilePoints;
+
   private Collection<StarTeamChangeLogEntry> changes = new ArrayList<StarTeamChangeLogEntry>();
 
   public boolean hasChanges() {
@@ -44,6 +48,18 @@ public class StarTeamChangeSet {
     this.filesToRemove = filesToRemove;
   }
 
+  /**
+   * @return the local directories of the folders of the view, which are kept
+   *         when they are left empty by removing files
+   */
+  public Collection<java.io.File> getFolderPaths() {
+    return folderPaths;
+  }
+
+  public void setFolderPaths(Collection<java.io.File> folderPaths) {
+    this.folderPaths = folderPaths;
+  }
+
   public Collection<File> getFilesToCheckout() {
     return filesToCheckout;
   }
@@ -60,6 +76,18 @@ public class StarTeamChangeSet {
     return filePointsToRemember;
   }
 
+  /**
+   * @return the file points of the previous build the changes were computed
+   *         against, or null
+   */
+  public Collection<StarTeamFilePoint> getHistoricFilePoints() {
+    return historicFilePoints;
+  }
+
+  public void setHistoricFilePoints(Collection<StarTeamFilePoint> historicFilePoints) {
+    this.historicFilePoints = historicFilePoints;
+  }
+
   public boolean isComparisonAvailable() {
     return comparisonAvailable;
   }
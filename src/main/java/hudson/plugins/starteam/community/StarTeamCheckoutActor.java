@@ -42,10 +42,18 @@ class StarTeamCheckoutActor implements FileCallable<Boolean>, Serializable {
   private final String viewname;
   private final String foldername;
   private final String subfolder;
+  private final String prunepatterns;
   private final StarTeamViewSelector config;
-  private final Collection<StarTeamFilePoint> historicFilePoints;
+  private Collection<StarTeamFilePoint> historicFilePoints;
+  private String historicDigest;
+  private String historicBuildDirName;
+  private String historicWorkspace;
+  private int historicChainLength;
+  private boolean workspaceManifest;
   private final FilePath filePointFilePath;
   private final int buildNumber;
+  private StarTeamContentSource contentSource;
+  private String contentSourceLineSeparator;
 
   /**
    * Default constructor for the checkout actor.
@@ -66,6 +74,21 @@ class StarTeamCheckoutActor implements FileCallable<Boolean>, Serializable {
                                String passwd, boolean cleanupstate, String projectname, String viewname,
                                String foldername, String subfolder, StarTeamViewSelector config, FilePath changelogFile,
                                BuildListener listener, AbstractBuild<?, ?> build, FilePath filePointFilePath) {
+    this(hostname, port, agentHost, agentPort, user, passwd, cleanupstate, projectname, viewname, foldername,
+        subfolder, null, config, changelogFile, listener, build, filePointFilePath);
+  }
+
+  /**
+   * Constructor for the checkout actor.
+   *
+   * @param prunepatterns glob patterns of local directories never to scan for
+   *                      files to remove, one per line
+   */
+  public StarTeamCheckoutActor(String hostname, int port, String agentHost, int agentPort, String user,
+                               String passwd, boolean cleanupstate, String projectname, String viewname,
+                               String foldername, String subfolder, String prunepatterns,
+                               StarTeamViewSelector config, FilePath changelogFile,
+                               BuildListener listener, AbstractBuild<?, ?> build, FilePath filePointFilePath) {
     this.hostname = hostname;
     this.port = port;
     this.agenthost = agentHost;
@@ -77,6 +100,7 @@ class StarTeamCheckoutActor implements FileCallable<Boolean>, Serializable {
     this.viewname = viewname;
     this.foldername = foldername;
     this.subfolder = subfolder;
+    this.prunepatterns = prunepatterns;
     this.changelog = changelogFile;
     this.listener = listener;
     this.config = config;
@@ -93,14 +117,32 @@ class StarTeamCheckoutActor implements FileCallable<Boolean>, Serializable {
     // another machine. Instead of storing the build object the information from the build object
     // that is needed (historicFilePoints) is stored.
 
-    // Get a list of files that require updating
+    // Get a list of files that require updating, as stored by the last build in the same workspace
     Collection<StarTeamFilePoint> starTeamFilePoints = null;
     AbstractBuild<?, ?> lastBuild = (build == null) ? null : build.getPreviousBuild();
     if (lastBuild != null) {
+      FilePath workspace = build.getWorkspace();
+      File lastBuildDir;
+      if (workspace == null) {
+        lastBuildDir = lastBuild.getRootDir();
+        FilePath previousWorkspace = lastBuild.getWorkspace();
+        if (previousWorkspace != null) {
+          historicWorkspace = previousWorkspace.getRemote();
+        }
+      } else {
+        lastBuildDir = StarTeamManifestIndex.getInstance().find(lastBuild, build.getBuiltOnStr(), workspace.getRemote());
+        historicWorkspace = workspace.getRemote();
+      }
       try {
-        File filePointFile = new File(lastBuild.getRootDir(), StarTeamConnection.FILE_POINT_FILENAME);
-        if (filePointFile.exists()) {
-          starTeamFilePoints = StarTeamFilePointFunctions.loadCollection(filePointFile);
+        File filePointFile = lastBuildDir == null ? null : StarTeamFilePointFunctions.findFilePointFile(lastBuildDir);
+        if (filePointFile != null) {
+          listener.getLogger().println("comparing with the file points of build " + lastBuildDir.getName());
+          starTeamFilePoints = StarTeamManifestCache.getInstance().load(filePointFile);
+          historicDigest = StarTeamWorkspaceManifest.readDigest(lastBuildDir);
+        }
+        if (starTeamFilePoints instanceof StarTeamManifest) {
+          historicBuildDirName = ((StarTeamManifest) starTeamFilePoints).getBuildDirName();
+          historicChainLength = ((StarTeamManifest) starTeamFilePoints).getChainLength();
         }
       } catch (IOException e) {
         e.printStackTrace(listener.getLogger());
@@ -109,6 +151,36 @@ class StarTeamCheckoutActor implements FileCallable<Boolean>, Serializable {
     this.historicFilePoints = starTeamFilePoints;
   }
 
+  /**
+   * @return the digest of the file points of the previous build, or null if
+   *         it has none
+   */
+  String getHistoricDigest() {
+    return historicDigest;
+  }
+
+  /**
+   * Compare with the copy of the file points of the previous build kept in
+   * the work folder instead of sending them, see {@link StarTeamWorkspaceManifest}.
+   */
+  void useWorkspaceManifest() {
+    this.workspaceManifest = true;
+    this.historicFilePoints = null;
+  }
+
+  /**
+   * Request contents from a source on the controller before fetching them
+   * from StarTeam, see {@link StarTeamControllerContentSource}. The source is
+   * only used if the agent has the line separator of the controller, since
+   * StarTeam converts the line endings of text files to the platform.
+   *
+   * @param contentSource a proxy to the source, exported on the channel of the agent
+   */
+  void useContentSource(StarTeamContentSource contentSource) {
+    this.contentSource = contentSource;
+    this.contentSourceLineSeparator = System.getProperty("line.separator");
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -121,6 +193,8 @@ class StarTeamCheckoutActor implements FileCallable<Boolean>, Serializable {
     StarTeamConnection connection = new StarTeamConnection(
         hostname, port, agenthost, agentport, user, passwd,
         projectname, viewname, foldername, config, cleanupstate);
+    // whatever fails once a session may have been borrowed, it is handed back
+    // to the agent's session pool
     try {
       try {
         connection.initialize(buildNumber);
@@ -136,11 +210,31 @@ class StarTeamCheckoutActor implements FileCallable<Boolean>, Serializable {
 
       Folder rootFolder = connection.getRootFolder();
       File workFolder = Strings.isNullOrEmpty(subfolder) ? workspace : new File(workspace, subfolder.trim());
-      changeSet = connection.computeChangeSet(rootFolder, workFolder, historicFilePoints, listener.getLogger());
+      Collection<StarTeamFilePoint> historic = historicFilePoints;
+      if (workspaceManifest) {
+        StarTeamManifest copy = StarTeamWorkspaceManifest.load(workFolder, historicDigest);
+        if (copy == null) {
+          listener.getLogger().println("file points of the previous build not found in the work folder");
+        } else if (historicBuildDirName != null) {
+          copy.setSource(historicBuildDirName, historicChainLength);
+        }
+        historic = copy;
+      }
+      // resolve the paths against this work folder, moving them from where older builds stored them
+      historic = StarTeamFilePointFunctions.relocate(historic, historicWorkspace == null ? null
+          : Strings.isNullOrEmpty(subfolder) ? new File(historicWorkspace) : new File(historicWorkspace, subfolder.trim()),
+          workFolder);
+      changeSet = connection.computeChangeSet(rootFolder, workFolder, historic,
+          StarTeamFunctions.splitPatterns(prunepatterns), listener.getLogger());
       // Check 'em out
       listener.getLogger().println("performing checkout ...");
 
-      connection.checkOut(changeSet, workFolder, listener.getLogger(), filePointFilePath);
+      StarTeamContentSource source = contentSource;
+      if (source != null && !System.getProperty("line.separator").equals(contentSourceLineSeparator)) {
+        listener.getLogger().println("line separators differ from the controller, not taking files from it");
+        source = null;
+      }
+      connection.checkOut(changeSet, workFolder, listener.getLogger(), filePointFilePath, source);
 
       listener.getLogger().println("creating change log file ");
       try {
@@ -0,0 +1,167 @@
+package hudson.plugins.starteam.community;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journal of the files a checkout has confirmed, kept in the workspace
+ * metadata directory until the checkout completes.
+ * <p>
+ * A checkout fetches its files in batches. Once a batch is committed, every
+ * file of the batch whose local copy has the modification time of its
+ * StarTeam content is appended to the journal with its revision, and the
+ * journal is synced to disk. If the checkout does not complete, the file
+ * points of the build are never stored, and the next build computes the same
+ * files to check out again; those the journal confirms at the same revision,
+ * whose local copy is unchanged since, are not fetched again. The journal is
+ * deleted once a checkout has completed and stored its file points.
+ * <p>
+ * Every line holds the revision, the content modification time and the path
+ * of a file relative to the work folder, separated by tabs. An incomplete
+ * last line, left by an interrupted write, is ignored.
+ */
+public final class StarTeamCheckoutJournal implements Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamCheckoutJournal.class.getName());
+
+  public static final String JOURNAL_FILENAME = "checkout.journal";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final java.io.File journalFile;
+  private final String rootPath;
+  private final Map<String, StarTeamFilePoint> confirmed = new HashMap<String, StarTeamFilePoint>();
+  private FileOutputStream stream;
+  private Writer out;
+
+  private StarTeamCheckoutJournal(java.io.File workFolder) {
+    java.io.File root = workFolder.getAbsoluteFile();
+    this.rootPath = root.getPath() + java.io.File.separator;
+    this.journalFile = new java.io.File(new java.io.File(root, StarTeamConnection.WORKSPACE_METADATA_DIRNAME),
+        JOURNAL_FILENAME);
+  }
+
+  /**
+   * Open the journal of a work folder, reading the files confirmed by an
+   * earlier checkout that did not complete. An unreadable journal is ignored.
+   *
+   * @param workFolder the folder files are checked out to
+   * @return the journal
+   */
+  public static StarTeamCheckoutJournal open(java.io.File workFolder) {
+    StarTeamCheckoutJournal journal = new StarTeamCheckoutJournal(workFolder);
+    if (journal.journalFile.isFile()) {
+      try {
+        journal.read();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to read StarTeam checkout journal " + journal.journalFile + ", ignoring it", e);
+        journal.confirmed.clear();
+      }
+    }
+    return journal;
+  }
+
+  private void read() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 3) {
+          continue;
+        }
+        try {
+          String path = rootPath + fields[2];
+          confirmed.put(path, new StarTeamFilePoint(path, Integer.parseInt(fields[0]), Long.parseLong(fields[1])));
+        } catch (NumberFormatException e) {
+          // incomplete line
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the number of files confirmed by an earlier checkout
+   */
+  public synchronized int size() {
+    return confirmed.size();
+  }
+
+  /**
+   * @param filePoint a file to check out
+   * @return whether the journal confirms the file at the same revision and
+   *         its local copy has not changed since
+   */
+  public synchronized boolean isConfirmed(StarTeamFilePoint filePoint) {
+    StarTeamFilePoint entry = confirmed.get(filePoint.getFullfilepath());
+    return entry != null && entry.getRevisionNumber() == filePoint.getRevisionNumber()
+        && entry.getLastModifyDate() == filePoint.getLastModifyDate()
+        && filePoint.getFile().lastModified() == filePoint.getLastModifyDate();
+  }
+
+  /**
+   * Append the files of a committed batch whose local copy has the
+   * modification time of their StarTeam content, and sync the journal.
+   *
+   * @param filePoints the files of the batch
+   * @throws IOException if the journal cannot be written
+   */
+  public synchronized void record(Iterable<StarTeamFilePoint> filePoints) throws IOException {
+    if (out == null) {
+      java.io.File parent = journalFile.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Unable to create " + parent);
+      }
+      stream = new FileOutputStream(journalFile, true);
+      out = new BufferedWriter(new OutputStreamWriter(stream, UTF8));
+    }
+    for (StarTeamFilePoint filePoint : filePoints) {
+      String path = filePoint.getFullfilepath();
+      if (!path.startsWith(rootPath) || filePoint.getFile().lastModified() != filePoint.getLastModifyDate()) {
+        continue;
+      }
+      out.write(filePoint.getRevisionNumber() + "\t" + filePoint.getLastModifyDate() + "\t"
+          + path.substring(rootPath.length()) + "\n");
+      confirmed.put(path, filePoint);
+    }
+    out.flush();
+    stream.getFD().sync();
+  }
+
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Unable to close StarTeam checkout journal " + journalFile, e);
+      }
+      out = null;
+      stream = null;
+    }
+  }
+
+  /**
+   * Close and delete the journal, once the checkout has completed.
+   */
+  public synchronized void delete() {
+    close();
+    confirmed.clear();
+    if (journalFile.exists() && !journalFile.delete()) {
+      LOGGER.warning("Unable to delete StarTeam checkout journal " + journalFile);
+    }
+  }
+}
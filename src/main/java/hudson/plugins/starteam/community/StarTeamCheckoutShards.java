@@ -0,0 +1,117 @@
+package hudson.plugins.starteam.community;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Partitions the files to check out into shards of about equal weight, each
+ * to be checked out on its own StarTeam session.
+ * <p>
+ * The files of a folder always end up in the same shard, so that no two
+ * sessions write to the same local directory, and the status files StarTeam
+ * keeps per directory are only updated by one session. Folders are assigned
+ * heaviest first to the lightest shard.
+ */
+public final class StarTeamCheckoutShards {
+
+  /**
+   * Weight of a file besides its size, standing for the round trip it takes to
+   * check out.
+   */
+  static final long FILE_OVERHEAD = 16 * 1024;
+
+  private StarTeamCheckoutShards() {
+    throw new InstantiationError();
+  }
+
+  /**
+   * Tells the group and weight of an item.
+   *
+   * @param <T> type of the items
+   */
+  public interface Weigher<T> {
+    /**
+     * @param item an item
+     * @return key of the group of the item; items of one group end up in the same shard
+     */
+    Object group(T item);
+
+    /**
+     * @param item an item
+     * @return the weight of the item
+     */
+    long weight(T item);
+  }
+
+  /**
+   * Groups StarTeam files by folder, weighing them by size. The size is
+   * populated along with the properties the change set is computed from, so
+   * weighing a file takes no round trip to the server.
+   */
+  public static final Weigher<com.starteam.File> BY_FOLDER = new Weigher<com.starteam.File>() {
+    public Object group(com.starteam.File item) {
+      return item.getParentFolder().getID();
+    }
+
+    public long weight(com.starteam.File item) {
+      return FILE_OVERHEAD + Math.max(0, item.getSizeEx());
+    }
+  };
+
+  /**
+   * @param items   the items to partition
+   * @param shards  the maximum number of shards
+   * @param weigher tells the group and weight of every item
+   * @return the non empty shards, holding the items of a group in their original order
+   */
+  public static <T> List<List<T>> partition(Collection<T> items, int shards, Weigher<T> weigher) {
+    Map<Object, Group<T>> groups = new LinkedHashMap<Object, Group<T>>();
+    for (T item : items) {
+      Object key = weigher.group(item);
+      Group<T> group = groups.get(key);
+      if (group == null) {
+        group = new Group<T>();
+        groups.put(key, group);
+      }
+      group.items.add(item);
+      group.weight += weigher.weight(item);
+    }
+    List<Group<T>> heaviestFirst = new ArrayList<Group<T>>(groups.values());
+    Collections.sort(heaviestFirst, new Comparator<Group<T>>() {
+      public int compare(Group<T> o1, Group<T> o2) {
+        return o1.weight < o2.weight ? 1 : o1.weight > o2.weight ? -1 : 0;
+      }
+    });
+
+    int count = Math.max(1, Math.min(shards, heaviestFirst.size()));
+    List<List<T>> result = new ArrayList<List<T>>(count);
+    long[] weights = new long[count];
+    for (int i = 0; i < count; i++) {
+      result.add(new ArrayList<T>());
+    }
+    for (Group<T> group : heaviestFirst) {
+      int lightest = 0;
+      for (int i = 1; i < count; i++) {
+        if (weights[i] < weights[lightest]) {
+          lightest = i;
+        }
+      }
+      result.get(lightest).addAll(group.items);
+      weights[lightest] += group.weight;
+    }
+    if (result.get(0).isEmpty()) {
+      result.clear();
+    }
+    return result;
+  }
+
+  private static final class Group<T> {
+    private final List<T> items = new ArrayList<T>();
+    private long weight;
+  }
+}
@@ -16,10 +16,17 @@ import hudson.FilePath;
 import org.apache.commons.io.FileUtils;
 
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * StarTeamActor is a class that implements connecting to a StarTeam repository,
@@ -36,6 +43,49 @@ public class StarTeamConnection implements Serializable {
   private static final long serialVersionUID = 1L;
 
   public static final String FILE_POINT_FILENAME = "starteam-filepoints.csv";
+  public static final String FILE_POINT_MANIFEST_FILENAME = "starteam-filepoints.bin";
+
+  /**
+   * Digest of the file points of a build, see {@link StarTeamWorkspaceManifest}.
+   */
+  public static final String FILE_POINT_DIGEST_FILENAME = "starteam-filepoints.digest";
+
+  /**
+   * Names of the build directories whose file points are a delta to those of
+   * a build, see {@link StarTeamManifestDelta#recordDependent(java.io.File)}.
+   */
+  public static final String FILE_POINT_DEPENDENTS_FILENAME = "starteam-filepoints.dependents";
+
+  /**
+   * Directory in the work folder where the plugin keeps its own state. It is
+   * never considered for removal.
+   */
+  public static final String WORKSPACE_METADATA_DIRNAME = ".starteam";
+
+  /**
+   * Populate files with every item property instead of only the properties
+   * needed to compute the change set.
+   */
+  private static final boolean FULL_POPULATE = Boolean.getBoolean(StarTeamConnection.class.getName() + ".fullPopulate");
+
+  /**
+   * Maximum number of sessions to check out on in parallel, see
+   * {@link StarTeamCheckoutShards}. 1, the default, checks out on the session
+   * of the connection only.
+   */
+  private static final int CHECKOUT_SHARDS = Integer.getInteger(StarTeamConnection.class.getName() + ".checkoutShards", 1);
+
+  /**
+   * Minimum number of files worth a session of their own.
+   */
+  private static final int MIN_SHARD_FILES = 200;
+
+  /**
+   * Number of files checked out and committed at a time, see
+   * {@link StarTeamCheckoutJournal}.
+   */
+  private static final int CHECKOUT_BATCH_SIZE = Integer.getInteger(StarTeamConnection.class.getName() + ".checkoutBatchSize", 1000);
+
   private SimpleDateFormat sdf = new SimpleDateFormat("MM/dd HH:mm:ss");
   private final String hostName;
   private final int port;
@@ -50,10 +100,12 @@ public class StarTeamConnection implements Serializable {
   private final boolean cleanupstate;
 
   private transient Server server;
+  private transient StarTeamSessionPool.SessionKey sessionKey;
   private transient View view;
   private transient Folder rootFolder;
   private transient Project project;
-  private transient boolean canReadUserAccts = true;
+  private transient StarTeamUserDirectory userDirectory;
+  private transient int buildNumber;
 
   static {
     try {
@@ -170,6 +222,8 @@ public class StarTeamConnection implements Serializable {
    * Initialize the connection. This means logging on to the server and finding
    * the project, view and folder we want.
    *
+   * If initializing fails, the session is released again.
+   *
    * @param buildNumber a job build number, or -1 if not associated with a job.
    * @throws StarTeamSCMException if logging on fails.
    */
@@ -185,18 +239,44 @@ public class StarTeamConnection implements Serializable {
      */
     // Application.setName("StarTeam Plugin for Jenkins");
 
-    server = new Server(createServerInfo());
-    server.connect();
+    boolean initialized = false;
     try {
-      server.logOn(userName, password);
-    } catch (LogonException e) {
-      throw new StarTeamSCMException("Could not log on: " + e.getErrorMessage());
+      openView(buildNumber);
+      rootFolder = StarTeamFunctions.findFolderInView(view, folderName,
+          StarTeamResolutionCache.serverKey(hostName, port, userName));
+
+      if (FULL_POPULATE) {
+        rootFolder.populate(server.getTypes().FILE, -1);
+      } else {
+        // only what polling and computeChangeSet need; comment and author are
+        // fetched later for the changed files only, see populateChangeDetails
+        rootFolder.populate(server.getTypes().FILE, createFilePropertyCollection(), -1);
+      }
+      rootFolder.populate(server.getTypes().FOLDER, -1);
+      initialized = true;
+    } finally {
+      if (!initialized) {
+        // hand a borrowed session back, whatever failed
+        close();
+      }
     }
-    if (server.isMPXAvailable()) {
-      server.locateCacheAgent(agentHost, agentPort);
+  }
+
+  /**
+   * Log on and find the configured view, without populating any folder.
+   *
+   * @param buildNumber a job build number, or -1 if not associated with a job.
+   * @throws StarTeamSCMException if logging on fails.
+   */
+  void openView(int buildNumber) throws StarTeamSCMException {
+    this.buildNumber = buildNumber;
+    sessionKey = new StarTeamSessionPool.SessionKey(hostName, port, userName, password, agentHost, agentPort);
+    server = StarTeamSessionPool.getInstance().borrow(sessionKey);
+    if (server == null) {
+      server = logOn();
     }
-    project = findProjectOnServer(server, projectName);
-    view = findViewInProject(project, viewName);
+    project = resolveProject(server, projectName);
+    view = resolveView(project, viewName);
     if (configSelector != null) {
       View configuredView = null;
       try {
@@ -208,12 +288,73 @@ public class StarTeamConnection implements Serializable {
         view = configuredView;
       }
     }
-    rootFolder = StarTeamFunctions.findFolderInView(view, folderName);
+  }
+
+  /**
+   * @return the file properties needed to compare files: name, dot notation
+   *         revision, content modification time and MD5, along with the size
+   *         the files to check out are weighed by, see
+   *         {@link StarTeamCheckoutShards#BY_FOLDER}. The path of a file comes
+   *         from its parent folder.
+   */
+  private PropertyCollection createFilePropertyCollection() {
+    File.Type fileType = server.getTypes().FILE;
+    PropertyCollection properties = new PropertyCollection();
+    properties.add(fileType.NAME);
+    properties.add(fileType.DOT_NOTATION);
+    properties.add(fileType.CONTENT_MODIFIED_TIME);
+    properties.add(fileType.MD5);
+    properties.add(fileType.SIZE);
+    return properties;
+  }
 
-    rootFolder.populate(server.getTypes().FILE, -1);
-    // rootFolder.populate(server.getTypes().FILE, filePropertyCollection, -1);
-    rootFolder.populate(server.getTypes().FOLDER, -1);
+  /**
+   * Second populate pass fetching the properties needed for change log
+   * entries (comment, author and modification time), only for the folders
+   * holding changed files.
+   *
+   * @param changedFiles files that will get a change log entry
+   */
+  private void populateChangeDetails(Collection<File> changedFiles) {
+    if (FULL_POPULATE || changedFiles.isEmpty()) {
+      return;
+    }
+    File.Type fileType = server.getTypes().FILE;
+    PropertyCollection properties = new PropertyCollection();
+    properties.add(fileType.COMMENT);
+    properties.add(fileType.MODIFIED_BY);
+    properties.add(fileType.MODIFIED_TIME);
+    Map<Integer, Folder> folders = new LinkedHashMap<Integer, Folder>();
+    for (File f : changedFiles) {
+      Folder parent = f.getParentFolder();
+      if (!folders.containsKey(parent.getID())) {
+        folders.put(parent.getID(), parent);
+      }
+    }
+    for (Folder folder : folders.values()) {
+      folder.populate(fileType, properties, 0);
+    }
+  }
 
+  /**
+   * Open and log on a new session to the server.
+   *
+   * @return the logged on server session
+   * @throws StarTeamSCMException if logging on fails.
+   */
+  private Server logOn() throws StarTeamSCMException {
+    Server newServer = new Server(createServerInfo());
+    newServer.connect();
+    try {
+      newServer.logOn(userName, password);
+    } catch (LogonException e) {
+      StarTeamSessionPool.getInstance().invalidate(newServer);
+      throw new StarTeamSCMException("Could not log on: " + e.getErrorMessage());
+    }
+    if (newServer.isMPXAvailable()) {
+      newServer.locateCacheAgent(agentHost, agentPort);
+    }
+    return newServer;
   }
 
   /**
@@ -227,6 +368,23 @@ public class StarTeamConnection implements Serializable {
   public void checkOut(StarTeamChangeSet changeSet, java.io.File workFolder, final PrintStream logger,
                        FilePath filePointFilePath)
       throws IOException {
+    checkOut(changeSet, workFolder, logger, filePointFilePath, null);
+  }
+
+  /**
+   * checkout the files from starteam, taking the contents the content source
+   * has from it instead
+   *
+   * @param changeSet         a description of changes
+   * @param filePointFilePath A FilePath reprensenting the file points file where to store the
+   *                          change set
+   * @param contentSource     the source to request contents from before
+   *                          fetching them from StarTeam, or null
+   * @throws IOException if checkout fails.
+   */
+  public void checkOut(StarTeamChangeSet changeSet, java.io.File workFolder, final PrintStream logger,
+                       FilePath filePointFilePath, StarTeamContentSource contentSource)
+      throws IOException {
     long startTime = System.currentTimeMillis();
 
     logger.println("*** " + sdf.format(new Date()) + " Performing checkout on [" + changeSet.getFilesToCheckout().size() + "] files");
@@ -241,48 +399,97 @@ public class StarTeamConnection implements Serializable {
           ", see " + file.getAbsolutePath() + " for " + "details");
       FileUtils.writeLines(file, filesToCheckout);
     }
-    com.starteam.CheckoutOptions coOptions = new com.starteam.CheckoutOptions(view);
-    coOptions.setLockType(Item.LockType.UNLOCKED);
-    coOptions.setEOLFormat(EOLFormat.PLATFORM);
-    coOptions.setUpdateStatus(true);
-    coOptions.setTimeStampNow(false);
-    coOptions.setForceCheckout(true);
-    coOptions.setMarkUnlockedFilesReadOnly(false);
-    CheckoutManager coManager = view.createCheckoutManager(coOptions);
-    if (coManager.getView().getProject().getServer().getServerInfo().getEnableCacheAgentForFileContent()) {
-      logger.println("*** " + sdf.format(new Date()) + " Enabled cache agent for file content.");
-    }
-    CheckoutListenerImpl colistener = new CheckoutListenerImpl(logger);
-    colistener.setUpdateLastModifyDate(!coOptions.getTimeStampNow());
-    coManager.addCheckoutListener(colistener);
-
-    coManager.checkout(filesToCheckout.toArray(new File[0]));
-    if (coManager.canCommit()) {
-      logger.println("*** " + sdf.format(new Date()) + " checked out request commit");
-      coManager.commit();
-      logger.println("*** " + sdf.format(new Date()) + " checked out request committed");
-    } else {
-      logger.println("*** " + sdf.format(new Date()) + " checked out not commit");
+    StarTeamContentCache contentCache = StarTeamContentCache.getInstance();
+    StarTeamCheckoutJournal journal = StarTeamCheckoutJournal.open(workFolder);
+    try {
+      List<File> pending = filesToCheckout;
+      if (journal.size() > 0) {
+        pending = new ArrayList<File>();
+        for (File f : filesToCheckout) {
+          if (!journal.isConfirmed(new StarTeamFilePoint(f))) {
+            pending.add(f);
+          }
+        }
+        logger.println("*** " + sdf.format(new Date()) + " Resuming an interrupted checkout, "
+            + (filesToCheckout.size() - pending.size()) + " files were already checked out");
+      }
+      if (contentCache != null) {
+        List<File> fetch = new ArrayList<File>();
+        for (File f : pending) {
+          MD5 md5 = f.getMD5();
+          if (md5 == null || !contentCache.materialize(md5.toByteArray(), new java.io.File(f.getFullName()),
+              f.getContentModifiedTime().toJavaMsec())) {
+            fetch.add(f);
+          }
+        }
+        logger.println("*** " + sdf.format(new Date()) + " " + (pending.size() - fetch.size())
+            + " files taken from the content cache");
+        pending = fetch;
+      }
+      if (contentSource != null && !pending.isEmpty()) {
+        pending = fetchFromSource(pending, contentSource, logger);
+      }
+      int shards = Math.min(CHECKOUT_SHARDS, (pending.size() + MIN_SHARD_FILES - 1) / MIN_SHARD_FILES);
+      if (pending.isEmpty()) {
+        logger.println("*** " + sdf.format(new Date()) + " Nothing left to check out from StarTeam");
+      } else if (shards > 1) {
+        checkOutSharded(pending, shards, journal, logger);
+      } else {
+        com.starteam.CheckoutOptions coOptions = createCheckoutOptions(view);
+        if (view.getProject().getServer().getServerInfo().getEnableCacheAgentForFileContent()) {
+          logger.println("*** " + sdf.format(new Date()) + " Enabled cache agent for file content.");
+        }
+        CheckoutListenerImpl colistener = new CheckoutListenerImpl(logger);
+        colistener.setUpdateLastModifyDate(!coOptions.getTimeStampNow());
+
+        checkOutBatches(view, pending.toArray(new File[pending.size()]), pending, colistener, journal, logger);
+      }
+    } finally {
+      journal.close();
+    }
+    StarTeamWorkspaceIndex index = StarTeamWorkspaceIndex.load(workFolder);
+    boolean cacheContents = contentCache != null;
+    for (File f : filesToCheckout) {
+      java.io.File localFile = new java.io.File(f.getFullName());
+      MD5 md5 = f.getMD5();
+      // only record files that demonstrably got the StarTeam content
+      if (md5 != null && localFile.lastModified() == f.getContentModifiedTime().toJavaMsec()) {
+        index.record(localFile, md5.toString());
+        if (cacheContents) {
+          try {
+            contentCache.store(md5.toByteArray(), localFile);
+          } catch (IOException e) {
+            logger.println("*** " + sdf.format(new Date()) + " unable to cache " + localFile + " " + e.getMessage());
+            cacheContents = false;
+          }
+        }
+      }
+    }
+    if (contentCache != null) {
+      logger.println("*** " + sdf.format(new Date()) + " " + contentCache);
     }
 
     if (cleanupstate) {
       logger.println("*** " + sdf.format(new Date()) + " removing [" + changeSet.getFilesToRemove().size() + "] files");
-      boolean quietDelete = changeSet.getFilesToRemove().size() > 100;
-      if (quietDelete) {
+      if (changeSet.getFilesToRemove().size() > 0) {
         java.io.File file = new java.io.File(workFolder, "starteam-remove-files.txt");
-        logger.println("*** " + sdf.format(new Date()) + " More than 100 files, quiet mode enabled" +
-            ", see " + file.getAbsolutePath() + " for remove file list");
+        logger.println("*** " + sdf.format(new Date()) + " see " + file.getAbsolutePath() + " for remove file list");
         FileUtils.writeLines(file, changeSet.getFilesToRemove());
       }
+      long removeStart = System.currentTimeMillis();
+      StarTeamWorkspaceCleanup cleanup = StarTeamWorkspaceCleanup.remove(workFolder, changeSet.getFilesToRemove(),
+          changeSet.getFolderPaths());
       for (java.io.File f : changeSet.getFilesToRemove()) {
-        if (f.exists()) {
-          if (!quietDelete) {
-            logger.println("*** " + sdf.format(new Date()) + " [remove] [" + f + "]");
-          }
-          f.delete();
-        } else {
-          logger.println("*** " + sdf.format(new Date()) + " [remove:warn] Planned to remove [" + f + "]");
-        }
+        index.remove(f);
+      }
+      logger.println("*** " + sdf.format(new Date()) + " " + cleanup + " in "
+          + (System.currentTimeMillis() - removeStart) + " ms.");
+      List<String> failures = cleanup.getFailures();
+      for (String failure : failures.subList(0, Math.min(20, failures.size()))) {
+        logger.println("*** " + sdf.format(new Date()) + " [remove:warn] " + failure);
+      }
+      if (failures.size() > 20) {
+        logger.println("*** " + sdf.format(new Date()) + " [remove:warn] and " + (failures.size() - 20) + " more");
       }
     } else {
       if (changeSet.getFilesToRemove().size() > 0) {
@@ -292,21 +499,445 @@ public class StarTeamConnection implements Serializable {
         FileUtils.writeLines(file, changeSet.getFilesToRemove());
       }
     }
+    try {
+      index.save();
+    } catch (IOException e) {
+      logger.println("*** " + sdf.format(new Date()) + " unable to store content index " + e.getMessage());
+    }
     logger.println("*** " + sdf.format(new Date()) + " storing change set");
-    OutputStream os = null;
+    Collection<StarTeamFilePoint> filePoints = changeSet.getFilePointsToRemember();
     try {
-      os = new BufferedOutputStream(filePointFilePath.write());
-      StarTeamFilePointFunctions.storeCollection(os, changeSet.getFilePointsToRemember());
-    } catch (InterruptedException e) {
-      logger.println("*** " + sdf.format(new Date()) + " unable to store change set " + e.getMessage());
+      OutputStream os = null;
+      try {
+        // the file points are streamed from their encoded form, see StarTeamFilePointFunctions.storeCollection
+        os = new BufferedOutputStream(filePointFilePath.write(), 64 * 1024);
+        StarTeamFilePointFunctions.storeCollection(os, filePoints, changeSet.getHistoricFilePoints(), workFolder);
+      } catch (InterruptedException e) {
+        logger.println("*** " + sdf.format(new Date()) + " unable to store change set " + e.getMessage());
+      } finally {
+        if (os != null) {
+          os.close();
+        }
+      }
+      if (filePoints instanceof StarTeamManifest || filePoints instanceof StarTeamManifestFile) {
+        // keep a copy in the work folder, so that the next build need not send it
+        String digest = StarTeamWorkspaceManifest.digest(filePoints);
+        try {
+          StarTeamWorkspaceManifest.store(workFolder, filePoints, digest);
+          filePointFilePath.sibling(FILE_POINT_DIGEST_FILENAME).write(digest, "UTF-8");
+        } catch (IOException e) {
+          logger.println("*** " + sdf.format(new Date()) + " unable to store workspace file points " + e.getMessage());
+        } catch (InterruptedException e) {
+          logger.println("*** " + sdf.format(new Date()) + " unable to store workspace file points " + e.getMessage());
+        }
+      }
     } finally {
-      if (os != null) {
-        os.close();
+      if (filePoints instanceof StarTeamManifestFile) {
+        // the file points spilled to a temporary file are stored now
+        ((StarTeamManifestFile) filePoints).close();
       }
     }
+    // the next build compares with the stored file points, the journal is not needed any more
+    journal.delete();
     logger.println("*** " + sdf.format(new Date()) + " checkout done. used " + (System.currentTimeMillis() - startTime) + "ms.");
   }
 
+  /**
+   * Request the contents of files from a content source, in requests of at
+   * most {@link StarTeamContentSource#MAX_REQUEST_FILES} files and
+   * {@link StarTeamContentSource#MAX_REQUEST_SIZE} bytes, sized by the size
+   * populated along with the MD5. A content is only written if it has the MD5
+   * of its file. Once a request fails, the source is not used any more.
+   *
+   * @param files  the files to check out
+   * @param source the source to request contents from
+   * @param logger a logger for consuming log messages
+   * @return the files whose content still has to be fetched from StarTeam
+   */
+  private List<File> fetchFromSource(List<File> files, StarTeamContentSource source, PrintStream logger) {
+    List<File> fetch = new ArrayList<File>();
+    List<File> batch = new ArrayList<File>();
+    long batchSize = 0;
+    int received = 0;
+    boolean available = true;
+    for (File f : files) {
+      long size = f.getSizeEx();
+      if (!available || f.getMD5() == null || size < 0 || size > StarTeamContentSource.MAX_REQUEST_SIZE) {
+        fetch.add(f);
+        continue;
+      }
+      if (!batch.isEmpty() && (batch.size() == StarTeamContentSource.MAX_REQUEST_FILES
+          || batchSize + size > StarTeamContentSource.MAX_REQUEST_SIZE)) {
+        int count = requestContents(batch, source, fetch, logger);
+        available = count >= 0;
+        received += Math.max(0, count);
+        batch.clear();
+        batchSize = 0;
+        if (!available) {
+          fetch.add(f);
+          continue;
+        }
+      }
+      batch.add(f);
+      batchSize += size;
+    }
+    if (!batch.isEmpty()) {
+      received += Math.max(0, requestContents(batch, source, fetch, logger));
+    }
+    logger.println("*** " + sdf.format(new Date()) + " " + received + " files taken from the controller");
+    return fetch;
+  }
+
+  /**
+   * @return the number of contents received and written, or -1 if the
+   *         request failed; the files not written are added to fetch
+   */
+  private int requestContents(List<File> batch, StarTeamContentSource source, List<File> fetch, PrintStream logger) {
+    List<StarTeamContentSource.Request> requests = new ArrayList<StarTeamContentSource.Request>(batch.size());
+    for (File f : batch) {
+      requests.add(new StarTeamContentSource.Request(f.getMD5().toHexString(), f.getID(),
+          f.getParentFolder().getID(), f.getSizeEx()));
+    }
+    Map<String, byte[]> contents;
+    try {
+      contents = source.fetch(requests);
+    } catch (IOException e) {
+      logger.println("*** " + sdf.format(new Date()) + " unable to take files from the controller " + e.getMessage());
+      fetch.addAll(batch);
+      return -1;
+    } catch (RuntimeException e) {
+      // the channel failed
+      logger.println("*** " + sdf.format(new Date()) + " unable to take files from the controller " + e);
+      fetch.addAll(batch);
+      return -1;
+    }
+    int received = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      File f = batch.get(i);
+      byte[] content = contents.get(requests.get(i).getMd5());
+      java.io.File localFile = new java.io.File(f.getFullName());
+      if (content != null && writeContent(content, f.getMD5().toByteArray(), localFile,
+          f.getContentModifiedTime().toJavaMsec())) {
+        received++;
+      } else {
+        fetch.add(f);
+      }
+    }
+    return received;
+  }
+
+  /**
+   * @return whether the content has the expected MD5 and was written
+   */
+  private static boolean writeContent(byte[] content, byte[] md5, java.io.File target, long lastModified) {
+    try {
+      if (!Arrays.equals(md5, MessageDigest.getInstance("MD5").digest(content))) {
+        return false;
+      }
+      FileUtils.writeByteArrayToFile(target, content);
+      return target.setLastModified(lastModified);
+    } catch (NoSuchAlgorithmException e) {
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Find the files of a folder of the view by ID, populating the folder with
+   * the properties of a checkout. The view must have been opened.
+   *
+   * @param folderId the StarTeam ID of the folder
+   * @return the files of the folder by StarTeam ID, none if the view has no
+   *         such folder
+   */
+  Map<Integer, File> findFolderFiles(int folderId) {
+    Types types = server.getTypes();
+    Item item = view.findItem(types.FOLDER, folderId);
+    Map<Integer, File> result = new HashMap<Integer, File>();
+    if (!(item instanceof Folder)) {
+      return result;
+    }
+    Folder folder = (Folder) item;
+    folder.populate(types.FILE, createFilePropertyCollection(), 0);
+    for (ViewMember member : folder.getItems(types.FILE)) {
+      result.put(member.getID(), (File) member);
+    }
+    return result;
+  }
+
+  /**
+   * Check out the content of a file of the view to any local file, without
+   * updating the status StarTeam keeps for the work folder. The view must
+   * have been opened.
+   *
+   * @param file   a file of the view, see {@link #findFolderFiles(int)}
+   * @param target the file to check out to
+   */
+  void checkOutTo(File file, java.io.File target) {
+    com.starteam.CheckoutOptions coOptions = createCheckoutOptions(view);
+    coOptions.setUpdateStatus(false);
+    view.createCheckoutManager(coOptions).checkoutTo(file, target);
+  }
+
+  private static com.starteam.CheckoutOptions createCheckoutOptions(View view) {
+    com.starteam.CheckoutOptions coOptions = new com.starteam.CheckoutOptions(view);
+    coOptions.setLockType(Item.LockType.UNLOCKED);
+    coOptions.setEOLFormat(EOLFormat.PLATFORM);
+    coOptions.setUpdateStatus(true);
+    coOptions.setTimeStampNow(false);
+    coOptions.setForceCheckout(true);
+    coOptions.setMarkUnlockedFilesReadOnly(false);
+    return coOptions;
+  }
+
+  /**
+   * Check out the files in shards, each on its own session, see
+   * {@link StarTeamCheckoutShards}. The first shard is checked out on the
+   * session of this connection, the others on sessions borrowed from the
+   * {@link StarTeamSessionPool}, in the same configured view. Progress is
+   * logged for all shards together, and the failures of all shards are
+   * reported once they are all done.
+   *
+   * @param filesToCheckout the files to check out
+   * @param shardCount      the maximum number of shards
+   * @param journal         the journal to record checked out files in
+   * @param logger          a logger for consuming log messages
+   * @throws IOException if a shard failed
+   */
+  private void checkOutSharded(List<File> filesToCheckout, int shardCount, final StarTeamCheckoutJournal journal,
+                               PrintStream logger) throws IOException {
+    final List<List<File>> shards = StarTeamCheckoutShards.partition(filesToCheckout, shardCount,
+        StarTeamCheckoutShards.BY_FOLDER);
+    logger.println("*** " + sdf.format(new Date()) + " Checking out on " + shards.size() + " sessions in parallel");
+    final ShardedCheckoutProgress progress = new ShardedCheckoutProgress(logger, filesToCheckout.size());
+    ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < shards.size(); i++) {
+        final int shard = i;
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            checkOutShard(shard, shards.get(shard), journal, progress);
+            return null;
+          }
+        }));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          progress.failed(i, e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while checking out");
+    } finally {
+      executor.shutdownNow();
+    }
+    progress.report(shards.size());
+  }
+
+  /**
+   * Check out one shard. The first shard is checked out on the session of
+   * this connection, the others on a connection of their own, closed and so
+   * handed back to the {@link StarTeamSessionPool} however they end.
+   */
+  void checkOutShard(int shard, List<File> files, StarTeamCheckoutJournal journal,
+                     ShardedCheckoutProgress progress) throws StarTeamSCMException, IOException {
+    ShardListener listener = new ShardListener(shard, progress);
+    if (shard == 0) {
+      checkOutBatches(view, files.toArray(new File[files.size()]), files, listener, journal, null);
+    } else {
+      StarTeamConnection connection = new StarTeamConnection(hostName, port, agentHost, agentPort, userName,
+          password, projectName, viewName, folderName, configSelector, cleanupstate);
+      try {
+        connection.openView(buildNumber);
+        checkOutBatches(connection.view, connection.findFiles(files), files, listener, journal, null);
+      } finally {
+        connection.close();
+      }
+    }
+    listener.done();
+  }
+
+  /**
+   * Check out files in batches of {@link #CHECKOUT_BATCH_SIZE}, committing
+   * every batch and recording it in the journal before starting the next.
+   *
+   * @param view      the view to check out from
+   * @param files     the files to check out, in the view
+   * @param originals the same files as computed for the change set, in the
+   *                  same order, to be recorded in the journal
+   * @param listener  listener for the progress of the checkout
+   * @param journal   the journal to record checked out files in
+   * @param logger    a logger for consuming log messages, or null
+   * @throws IOException if the journal cannot be written
+   */
+  private void checkOutBatches(View view, File[] files, List<File> originals, CheckoutListener listener,
+                               StarTeamCheckoutJournal journal, PrintStream logger) throws IOException {
+    int batches = (files.length + CHECKOUT_BATCH_SIZE - 1) / CHECKOUT_BATCH_SIZE;
+    for (int batch = 0; batch < batches; batch++) {
+      int from = batch * CHECKOUT_BATCH_SIZE;
+      int to = Math.min(files.length, from + CHECKOUT_BATCH_SIZE);
+      CheckoutManager coManager = view.createCheckoutManager(createCheckoutOptions(view));
+      coManager.addCheckoutListener(listener);
+      coManager.checkout(Arrays.copyOfRange(files, from, to));
+      if (coManager.canCommit()) {
+        if (logger != null) {
+          logger.println("*** " + sdf.format(new Date()) + " checked out request commit, batch " + (batch + 1) + "/" + batches);
+        }
+        coManager.commit();
+        if (logger != null) {
+          logger.println("*** " + sdf.format(new Date()) + " checked out request committed");
+        }
+      } else if (logger != null) {
+        logger.println("*** " + sdf.format(new Date()) + " checked out not commit");
+      }
+      journal.record(StarTeamFilePointFunctions.convertFilePointCollection(originals.subList(from, to)));
+    }
+  }
+
+  /**
+   * Find files of another session in the view of this connection. The
+   * folders holding them are populated one at a time, and get the local path
+   * of the folders of the other session, so that the files are checked out to
+   * the same place.
+   *
+   * @param files files of another session
+   * @return the same files in this session, in the same order
+   * @throws StarTeamSCMException if a file is not in the view
+   */
+  private File[] findFiles(List<File> files) throws StarTeamSCMException {
+    Types types = server.getTypes();
+    PropertyCollection properties = createFilePropertyCollection();
+    Set<Integer> folders = new HashSet<Integer>();
+    Map<Integer, File> found = new HashMap<Integer, File>();
+    for (File file : files) {
+      Folder parent = file.getParentFolder();
+      if (folders.add(parent.getID())) {
+        Folder folder = (Folder) view.findItem(types.FOLDER, parent.getID());
+        if (folder == null) {
+          throw new StarTeamSCMException("Couldn't find folder " + parent.getPath() + " in view " + viewName);
+        }
+        folder.setAlternatePathFragment(parent.getPath());
+        folder.populate(types.FILE, properties, 0);
+        for (ViewMember member : folder.getItems(types.FILE)) {
+          found.put(member.getID(), (File) member);
+        }
+      }
+    }
+    File[] result = new File[files.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = found.get(files.get(i).getID());
+      if (result[i] == null) {
+        throw new StarTeamSCMException("Couldn't find file " + files.get(i).getFullName() + " in view " + viewName);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Progress and failures of the shards of a checkout.
+   */
+  static final class ShardedCheckoutProgress {
+    private final SimpleDateFormat sdf = new SimpleDateFormat("MM/dd HH:mm:ss");
+    private final NumberFormat nf = NumberFormat.getPercentInstance();
+    private final PrintStream logger;
+    private final int total;
+    private int finishedCount;
+    private long lastUpdate = -1;
+    private final List<String> errors = new ArrayList<String>();
+    private final Map<Integer, Throwable> failures = new TreeMap<Integer, Throwable>();
+
+    ShardedCheckoutProgress(PrintStream logger, int total) {
+      this.logger = logger;
+      this.total = total;
+    }
+
+    synchronized void finished(java.io.File file) {
+      finishedCount++;
+      if (System.currentTimeMillis() - lastUpdate > 10000 || finishedCount == total) {
+        lastUpdate = System.currentTimeMillis();
+        logger.println("*** " + sdf.format(new Date()) + " checked out " + finishedCount + "/" + total + " "
+            + nf.format((float) finishedCount / (float) total) + " last file: " + file.getAbsolutePath());
+      }
+    }
+
+    synchronized void error(int shard, CheckoutEvent event) {
+      errors.add("[shard " + shard + "] " + event);
+    }
+
+    synchronized void failed(int shard, Throwable t) {
+      failures.put(shard, t);
+    }
+
+    /**
+     * Log the failures of all shards.
+     *
+     * @param shards the number of shards
+     * @throws IOException if a shard failed
+     */
+    synchronized void report(int shards) throws IOException {
+      if (errors.isEmpty() && failures.isEmpty()) {
+        return;
+      }
+      logger.println("*** " + sdf.format(new Date()) + " checkout failures: " + errors.size() + " files, "
+          + failures.size() + " of " + shards + " sessions");
+      for (String error : errors) {
+        logger.println(error);
+      }
+      for (Map.Entry<Integer, Throwable> failure : failures.entrySet()) {
+        logger.println("[shard " + failure.getKey() + "] " + failure.getValue());
+      }
+      if (!failures.isEmpty()) {
+        IOException e = new IOException(failures.size() + " of " + shards + " checkout sessions failed");
+        for (Throwable t : failures.values()) {
+          e.addSuppressed(t);
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Reports the progress of one shard.
+   */
+  private static final class ShardListener implements CheckoutListener {
+    private final int shard;
+    private final ShardedCheckoutProgress progress;
+    private java.io.File lastFile;
+
+    private ShardListener(int shard, ShardedCheckoutProgress progress) {
+      this.shard = shard;
+      this.progress = progress;
+    }
+
+    @Override
+    public void notifyProgress(CheckoutEvent event) {
+      if (event.getError() != null) {
+        progress.error(shard, event);
+      }
+      java.io.File file = event.getCurrentWorkingFile();
+      if (lastFile != null && !lastFile.equals(file)) {
+        progress.finished(lastFile);
+      }
+      lastFile = file;
+    }
+
+    @Override
+    public void startFile(CheckoutEvent event) {
+    }
+
+    void done() {
+      if (lastFile != null) {
+        progress.finished(lastFile);
+        lastFile = null;
+      }
+    }
+  }
+
   private static class CheckoutListenerImpl implements CheckoutListener {
 
     public CheckoutListenerImpl(PrintStream logger) {
@@ -376,39 +1007,10 @@ public class StarTeamConnection implements Serializable {
    * @return the name of the user as provided by the StarTeam Server
    */
   public String getUsername(User stUser) {
-    String stUserName = stUser.getName();
-    ServerAdministration srvAdmin = server.getAdministration();
-    User[] userAccts = null;
-    if (canReadUserAccts) {
-      try {
-        userAccts = srvAdmin.getUsers();
-      } catch (Exception e) {
-        // System.out.println("WARNING: Looks like this user does not have the permission to access UserAccounts on the StarTeam Server!");
-        // System.out.println("WARNING: Please contact your administrator and ask to be given the permission \"Administer User Accounts\" on the server.");
-        // System.out.println("WARNING: Defaulting to just using User Full Names which breaks the ability to send email to the individuals who break the build in Hudson!");
-        canReadUserAccts = false;
-      }
-    }
-    if (userAccts != null) {
-      for (int i = 0; i < userAccts.length; i++) {
-        User ua = userAccts[i];
-        if (ua.getName().equals(stUserName)) {
-          // System.out.println("INFO: From \'" + stUserName +
-          // "\' found existing user LogonName = " +
-          // ua.getLogOnName() + " with ID \'" + ua.getID() + "\' and email \'"
-          // + ua.getEmailAddress() +"\'");
-          int index = ua.getEmailAddress().indexOf('@');
-          if (index > -1) {
-            return ua.getEmailAddress().substring(0, ua.getEmailAddress().indexOf('@'));
-          }
-        }
-      }
-    } else {
-      // Since the user account running the build does not have user admin perms
-      // use the User Full Name
-      return stUserName;
+    if (userDirectory == null) {
+      userDirectory = StarTeamUserDirectory.get(userName + "@" + hostName + ":" + port, server);
     }
-    return stUserName;
+    return userDirectory.getUsername(stUser);
   }
 
   public Folder getRootFolder() {
@@ -419,6 +1021,68 @@ public class StarTeamConnection implements Serializable {
     return server.getCurrentTime();
   }
 
+  /**
+   * Find the project by name, opening it by its cached ID when the name has
+   * been resolved before on this server.
+   *
+   * @param server      the logged on server
+   * @param projectname name of the project
+   * @return Project specified by the projectname
+   * @throws StarTeamSCMException if the project does not exist
+   */
+  private Project resolveProject(final Server server, final String projectname) throws StarTeamSCMException {
+    StarTeamResolutionCache cache = StarTeamResolutionCache.getInstance();
+    String key = StarTeamResolutionCache.projectKey(
+        StarTeamResolutionCache.serverKey(hostName, port, userName), projectname);
+    Integer id = cache.get(key);
+    if (id != null) {
+      Project cached = null;
+      try {
+        cached = server.findProject(id);
+      } catch (RuntimeException e) {
+        // stale ID, resolve by name below
+      }
+      if (cached != null && cached.getName().equals(projectname)) {
+        return cached;
+      }
+      cache.invalidate(key);
+    }
+    Project result = findProjectOnServer(server, projectname);
+    cache.put(key, result.getID());
+    return result;
+  }
+
+  /**
+   * Find the view by name, opening it by its cached ID when the name has
+   * been resolved before in this project.
+   *
+   * @param project  the project containing the view
+   * @param viewname name of the view
+   * @return View specified by the viewname
+   * @throws StarTeamSCMException if the view does not exist
+   */
+  private View resolveView(final Project project, final String viewname) throws StarTeamSCMException {
+    StarTeamResolutionCache cache = StarTeamResolutionCache.getInstance();
+    String key = StarTeamResolutionCache.viewKey(
+        StarTeamResolutionCache.serverKey(hostName, port, userName), project.getID(), viewname);
+    Integer id = cache.get(key);
+    if (id != null) {
+      View cached = null;
+      try {
+        cached = project.findView(id);
+      } catch (RuntimeException e) {
+        // stale ID, resolve by name below
+      }
+      if (cached != null && cached.getName().equals(viewname)) {
+        return cached;
+      }
+      cache.invalidate(key);
+    }
+    View result = findViewInProject(project, viewname);
+    cache.put(key, result.getID());
+    return result;
+  }
+
   /**
    * @param server
    * @param projectname
@@ -450,17 +1114,33 @@ public class StarTeamConnection implements Serializable {
   }
 
   /**
-   * Close the connection.
+   * Close the connection. The server session itself is handed back to the
+   * {@link StarTeamSessionPool} so that later builds and polls can reuse it.
    */
   public void close() {
-    if (server.isConnected()) {
-      if (rootFolder != null) {
-        rootFolder.discardItems(server.getTypes().FILE, -1);
-        rootFolder.discardItems(server.getTypes().FOLDER, -1);
+    if (server == null) {
+      return;
+    }
+    try {
+      if (server.isConnected()) {
+        if (rootFolder != null) {
+          rootFolder.discardItems(server.getTypes().FILE, -1);
+          rootFolder.discardItems(server.getTypes().FOLDER, -1);
+        }
+        if (view != null) {
+          view.discard();
+        }
+        if (project != null) {
+          project.discard();
+        }
       }
-      view.discard();
-      project.discard();
-      server.disconnect();
+    } finally {
+      StarTeamSessionPool.getInstance().release(sessionKey, server);
+      server = null;
+      rootFolder = null;
+      view = null;
+      project = null;
+      userDirectory = null;
     }
   }
 
@@ -508,64 +1188,121 @@ public class StarTeamConnection implements Serializable {
   public StarTeamChangeSet computeChangeSet(Folder rootFolder, java.io.File workFolder,
                                             final Collection<StarTeamFilePoint> historicFilePoints,
                                             PrintStream logger) throws IOException {
+    return computeChangeSet(rootFolder, workFolder, historicFilePoints, Collections.<String>emptyList(), logger);
+  }
+
+  /**
+   * @param rootFolder         main project directory
+   * @param workFolder         a workFolder directory
+   * @param historicFilePoints a collection containing File Points to be compared (previous
+   *                           build)
+   * @param prunePatterns      glob patterns of local directories never to scan
+   *                           for files to remove, see {@link StarTeamWorkspaceScan}
+   * @param logger             a logger for consuming log messages
+   * @return set of changes
+   * @throws IOException
+   */
+  public StarTeamChangeSet computeChangeSet(Folder rootFolder, java.io.File workFolder,
+                                            final Collection<StarTeamFilePoint> historicFilePoints,
+                                            Collection<String> prunePatterns,
+                                            PrintStream logger) throws IOException {
+    return computeChangeSet(rootFolder, workFolder, historicFilePoints, prunePatterns, false, logger);
+  }
+
+  /**
+   * @param rootFolder         main project directory
+   * @param workFolder         a workFolder directory
+   * @param historicFilePoints a collection containing File Points to be compared (previous
+   *                           build)
+   * @param prunePatterns      glob patterns of local directories never to scan
+   *                           for files to remove, see {@link StarTeamWorkspaceScan}
+   * @param polling            whether the changes are only looked for, in which
+   *                           case the workspace is not written to and the file
+   *                           points to remember are not kept
+   * @param logger             a logger for consuming log messages
+   * @return set of changes
+   * @throws IOException
+   */
+  public StarTeamChangeSet computeChangeSet(Folder rootFolder, java.io.File workFolder,
+                                            final Collection<StarTeamFilePoint> historicFilePoints,
+                                            Collection<String> prunePatterns, boolean polling,
+                                            PrintStream logger) throws IOException {
     // --- compute changes as per StarTeam
-    long start = System.currentTimeMillis();
-    long st = start;
-    final Collection<com.starteam.File> starTeamFiles = StarTeamFunctions.listAllFiles(rootFolder, workFolder);
+    long st = System.currentTimeMillis();
+    // the StarTeam files are held by their folders anyway, the list only adds references
+    final List<com.starteam.File> starTeamFileList = StarTeamFunctions.listAllFiles(rootFolder, workFolder);
     logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet listAllFiles took " + (System.currentTimeMillis() - st) + " ms.");
-    st = System.currentTimeMillis();
-    final Map<java.io.File, com.starteam.File> starteamFileMap = StarTeamFunctions.convertToFileMap(starTeamFiles);
-
-    final Collection<java.io.File> starTeamFileSet = starteamFileMap.keySet();
-    final Collection<StarTeamFilePoint> starTeamFilePoint = StarTeamFilePointFunctions
-        .convertFilePointCollection(starTeamFiles);
-    logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet convertToFileMap took " + (System.currentTimeMillis() - st) + " ms.");
-    st = System.currentTimeMillis();
-    final Collection<java.io.File> fileSystemFiles = StarTeamFilePointFunctions.listAllFiles(workFolder);
-    final Collection<java.io.File> fileSystemRemove = new TreeSet<java.io.File>(fileSystemFiles);
-    fileSystemRemove.removeAll(starTeamFileSet);
+    return computeChangeSet(starTeamFileList, StarTeamFunctions.listAllFolderPaths(rootFolder), workFolder,
+        historicFilePoints, prunePatterns, polling, logger);
+  }
 
+  /**
+   * @param starTeamFileList   the files of the view, see
+   *                           {@link StarTeamFunctions#listAllFiles(Folder, java.io.File)}
+   * @param folderPaths        the local directories of the folders of the view
+   * @param workFolder         a workFolder directory
+   * @param historicFilePoints a collection containing File Points to be compared (previous
+   *                           build)
+   * @param prunePatterns      glob patterns of local directories never to scan
+   *                           for files to remove, see {@link StarTeamWorkspaceScan}
+   * @param polling            whether the changes are only looked for
+   * @param logger             a logger for consuming log messages
+   * @return set of changes
+   * @throws IOException
+   */
+  StarTeamChangeSet computeChangeSet(final List<com.starteam.File> starTeamFileList,
+                                     Collection<java.io.File> folderPaths, java.io.File workFolder,
+                                     final Collection<StarTeamFilePoint> historicFilePoints,
+                                     Collection<String> prunePatterns, boolean polling,
+                                     PrintStream logger) throws IOException {
+    long start = System.currentTimeMillis();
+    long st = start;
+    // sorted within the heap budget, spilling to disk for large views
+    final StarTeamFilePointSorter starTeamFilePoints = new StarTeamFilePointSorter();
     final StarTeamChangeSet changeSet = new StarTeamChangeSet();
-
-    changeSet.setFilesToRemove(fileSystemRemove);
-    changeSet.setFilePointsToRemember(starTeamFilePoint);
-    // changeSet.setFilesToCheckout(starTeamFiles);
-    // --- compute differences as per historic storage file
-    logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet changeSet took " + (System.currentTimeMillis() - st) + " ms.");
-    st = System.currentTimeMillis();
-    if (historicFilePoints != null && !historicFilePoints.isEmpty()) {
-
-      try {
-
-        changeSet.setComparisonAvailable(true);
-        logger.println("*** " + sdf.format(new Date()) + " compute Difference from historic file points.");
-        computeDifference(starTeamFilePoint, historicFilePoints, changeSet, starteamFileMap, fileSystemFiles, logger);
-
-      } catch (Throwable t) {
-        t.printStackTrace(logger);
+    try {
+      for (int i = 0; i < starTeamFileList.size(); i++) {
+        starTeamFilePoints.add(new StarTeamFilePoint(starTeamFileList.get(i)), i);
       }
-    } else {
-      // add all star team files
-      logger.println("*** " + sdf.format(new Date()) + " compute Difference add all star team files.");
-      Collection<File> result = new ArrayList<File>();
-      MD5 localFileMD5 = new MD5();
-      for (File file : starTeamFiles) {
-        MD5 starTeamFileMD5 = file.getMD5();
-
-        java.io.File localFile = new java.io.File(file.getFullName());
-
-        if (localFile.exists()) {
-          localFileMD5.computeFileMD5(localFile);
-          if (file.getContentModifiedTime().toJavaMsec() == localFile.lastModified() || starTeamFileMD5.equals(localFileMD5)) {
-            continue;
-          } else {
-            logger.println(" File " + file.getFullName() + "\n  localfileMD5:" + localFileMD5 + "\n  starteam MD5:" + starTeamFileMD5);
-          }
+      logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet sorted " + starTeamFilePoints.size()
+          + " file points" + (starTeamFilePoints.isSpilled() ? " on disk" : "") + " in "
+          + (System.currentTimeMillis() - st) + " ms.");
+      st = System.currentTimeMillis();
+      // only directories of StarTeam folders can hold files to remove
+      final StarTeamWorkspaceScan workspaceScan = StarTeamWorkspaceScan.scan(workFolder, folderPaths, prunePatterns);
+      logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet scanned " + workspaceScan.getFiles().size()
+          + " local files in " + (System.currentTimeMillis() - st) + " ms.");
+      changeSet.setFilesToRemove(findFilesToRemove(workspaceScan, starTeamFilePoints));
+      changeSet.setFolderPaths(folderPaths);
+      if (!polling) {
+        // keep the file points to remember encoded rather than as objects while
+        // checking out, in a temporary file if they did not fit the heap budget
+        changeSet.setFilePointsToRemember(starTeamFilePoints.isSpilled()
+            ? StarTeamManifestFile.encode(starTeamFilePoints, null)
+            : StarTeamManifestWriter.encode(starTeamFilePoints));
+      }
+      changeSet.setHistoricFilePoints(historicFilePoints);
+      // changeSet.setFilesToCheckout(starTeamFiles);
+      // --- compute differences as per historic storage file
+      logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet changeSet took " + (System.currentTimeMillis() - st) + " ms.");
+      st = System.currentTimeMillis();
+      if (historicFilePoints != null && !historicFilePoints.isEmpty()) {
+
+        try {
+
+          changeSet.setComparisonAvailable(true);
+          logger.println("*** " + sdf.format(new Date()) + " compute Difference from historic file points.");
+          computeDifference(starTeamFilePoints, starTeamFileList, historicFilePoints, workspaceScan, changeSet,
+              logger);
+
+        } catch (Throwable t) {
+          t.printStackTrace(logger);
         }
-        result.add(file);
-        changeSet.addChange(fileToStarTeamChangeLogEntry(file));
+      } else {
+        addAllFiles(starTeamFileList, workFolder, workspaceScan, !polling, changeSet, logger);
       }
-      changeSet.setFilesToCheckout(result);
+    } finally {
+      starTeamFilePoints.close();
     }
     logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet computeDifference took " + (System.currentTimeMillis() - st) + " ms.");
     logger.println("*** " + sdf.format(new Date()) + " compute ChangeSet found " + changeSet.getChanges().size() + " changes.");
@@ -573,6 +1310,85 @@ public class StarTeamConnection implements Serializable {
     return changeSet;
   }
 
+  /**
+   * Find the local files that are not StarTeam files in a merge of both,
+   * sorted by path, instead of copying the scanned files into a set.
+   *
+   * @param workspaceScan      the scanned local files
+   * @param starTeamFilePoints the StarTeam files, sorted by path
+   * @return the local files to remove, sorted by path
+   */
+  static List<java.io.File> findFilesToRemove(StarTeamWorkspaceScan workspaceScan,
+                                              Iterable<? extends StarTeamFilePoint> starTeamFilePoints) {
+    java.io.File[] local = workspaceScan.getFiles().toArray(new java.io.File[0]);
+    Arrays.sort(local, new Comparator<java.io.File>() {
+      public int compare(java.io.File o1, java.io.File o2) {
+        return StarTeamFilePointMerge.PATH_ORDER.compare(o1.getPath(), o2.getPath());
+      }
+    });
+    List<java.io.File> result = new ArrayList<java.io.File>();
+    Iterator<? extends StarTeamFilePoint> starTeam = starTeamFilePoints.iterator();
+    String starTeamPath = starTeam.hasNext() ? new java.io.File(starTeam.next().getFullfilepath()).getPath() : null;
+    for (java.io.File file : local) {
+      int cmp = 1;
+      while (starTeamPath != null && (cmp = StarTeamFilePointMerge.PATH_ORDER.compare(starTeamPath, file.getPath())) < 0) {
+        starTeamPath = starTeam.hasNext() ? new java.io.File(starTeam.next().getFullfilepath()).getPath() : null;
+      }
+      if (starTeamPath == null || cmp > 0) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Check out every StarTeam file whose local copy is missing or differs.
+   *
+   * @param saveIndex whether to store the hashes computed into the content
+   *                  index of the workspace
+   */
+  private void addAllFiles(List<File> files, java.io.File workFolder, StarTeamWorkspaceScan workspaceScan,
+                           boolean saveIndex, StarTeamChangeSet changeSet, PrintStream logger) {
+    // add all star team files
+    logger.println("*** " + sdf.format(new Date()) + " compute Difference add all star team files.");
+    Collection<File> result = new ArrayList<File>();
+    List<StarTeamFileVerifier.Candidate> candidates = new ArrayList<StarTeamFileVerifier.Candidate>(files.size());
+    for (File file : files) {
+      java.io.File localFile = new java.io.File(file.getFullName());
+      if (workspaceScan.isScanned(localFile)) {
+        candidates.add(new StarTeamFileVerifier.Candidate(localFile, workspaceScan.getAttributes(localFile),
+            file.getContentModifiedTime().toJavaMsec(), file.getMD5()));
+      } else {
+        candidates.add(new StarTeamFileVerifier.Candidate(localFile,
+            file.getContentModifiedTime().toJavaMsec(), file.getMD5()));
+      }
+    }
+    StarTeamWorkspaceIndex index = StarTeamWorkspaceIndex.load(workFolder);
+    String[] verdicts = StarTeamFileVerifier.verify(candidates, index);
+    if (saveIndex) {
+      try {
+        index.save();
+      } catch (IOException e) {
+        logger.println("*** " + sdf.format(new Date()) + " unable to store content index " + e.getMessage());
+      }
+    }
+    for (int i = 0; i < verdicts.length; i++) {
+      if (verdicts[i] == null) {
+        continue;
+      }
+      File file = files.get(i);
+      if (verdicts[i].length() > 0) {
+        logger.println(" File " + file.getFullName() + "\n  localfileMD5:" + verdicts[i] + "\n  starteam MD5:" + file.getMD5());
+      }
+      result.add(file);
+    }
+    populateChangeDetails(result);
+    for (File file : result) {
+      changeSet.addChange(fileToStarTeamChangeLogEntry(file));
+    }
+    changeSet.setFilesToCheckout(result);
+  }
+
   public StarTeamChangeLogEntry fileToStarTeamChangeLogEntry(File f) {
     return fileToStarTeamChangeLogEntry(f, "change");
   }
@@ -587,65 +1403,141 @@ public class StarTeamConnection implements Serializable {
     return new StarTeamChangeLogEntry(fileName, revisionNumber, date, username, msg, change);
   }
 
-  public StarTeamChangeSet computeDifference(final Collection<StarTeamFilePoint> currentFilePoint,
+  /**
+   * Compare the current file points with the historic ones in a single merge
+   * pass over both, sorted by path.
+   *
+   * @param currentFilePoint  the current file points
+   * @param currentFiles      the StarTeam files, in the same order as currentFilePoint
+   * @param historicFilePoint the file points of the previous build
+   * @param localTimestamps   the modification times of the local files
+   * @param changeSet         the change set to fill
+   * @param logger            a logger for consuming log messages
+   * @return the change set
+   * @throws IOException if the file points cannot be sorted
+   */
+  public StarTeamChangeSet computeDifference(final List<StarTeamFilePoint> currentFilePoint,
+                                             final List<com.starteam.File> currentFiles,
                                              final Collection<StarTeamFilePoint> historicFilePoint,
+                                             StarTeamFilePointMerge.LocalTimestamps localTimestamps,
                                              StarTeamChangeSet changeSet,
-                                             Map<java.io.File, com.starteam.File> starteamFileMap,
-                                             Collection<java.io.File> filesOnDisk,
-                                             PrintStream logger) {
+                                             PrintStream logger) throws IOException {
+    StarTeamFilePointSorter sorter = new StarTeamFilePointSorter();
+    try {
+      for (int i = 0; i < currentFilePoint.size(); i++) {
+        sorter.add(currentFilePoint.get(i), i);
+      }
+      return computeDifference(sorter, currentFiles, historicFilePoint, localTimestamps, changeSet, logger);
+    } finally {
+      sorter.close();
+    }
+  }
+
+  /**
+   * Compare the current file points with the historic ones in a single merge
+   * pass over both, sorted by path. Historic file points read from a
+   * manifest, as well as any file points once the current ones were spilled
+   * to disk, are streamed through the merge, so that the heap taken does not
+   * grow with the size of the view. Only historic file points that are on the
+   * heap already, and current ones that fit the heap budget, are merged as
+   * arrays, in parallel.
+   *
+   * @param currentFilePoint  the current file points, indexed by their position in currentFiles
+   * @param currentFiles      the StarTeam files
+   * @param historicFilePoint the file points of the previous build
+   * @param localTimestamps   the modification times of the local files
+   * @param changeSet         the change set to fill
+   * @param logger            a logger for consuming log messages
+   * @return the change set
+   * @throws IOException if the historic file points cannot be sorted
+   */
+  public StarTeamChangeSet computeDifference(final StarTeamFilePointSorter currentFilePoint,
+                                             final List<com.starteam.File> currentFiles,
+                                             final Collection<StarTeamFilePoint> historicFilePoint,
+                                             StarTeamFilePointMerge.LocalTimestamps localTimestamps,
+                                             StarTeamChangeSet changeSet,
+                                             PrintStream logger) throws IOException {
 
     logger.println("*** " + sdf.format(new Date()) + " computeDifference start.");
-    final Map<java.io.File, StarTeamFilePoint> starteamFilePointMap = StarTeamFilePointFunctions
-        .convertToFilePointMap(currentFilePoint);
-    Map<java.io.File, StarTeamFilePoint> historicFilePointMap = StarTeamFilePointFunctions
-        .convertToFilePointMap(historicFilePoint);
-
-    final Set<java.io.File> starteamOnly = new HashSet<java.io.File>();
-    starteamOnly.addAll(starteamFilePointMap.keySet());
-    starteamOnly.removeAll(historicFilePointMap.keySet());
-
-    final Set<java.io.File> historicOnly = new HashSet<java.io.File>();
-    historicOnly.addAll(historicFilePointMap.keySet());
-    historicOnly.removeAll(starteamFilePointMap.keySet());
-
-    final Set<java.io.File> common = new HashSet<java.io.File>();
-    common.addAll(starteamFilePointMap.keySet());
-    common.removeAll(starteamOnly);
-
-    StarTeamChangeLogEntry change;
-    Collection<File> fileToCheckout = new ArrayList<File>();
-    //int i = 0;
-    for (java.io.File f : common) {
-      StarTeamFilePoint starteam = starteamFilePointMap.get(f);
-      StarTeamFilePoint historic = historicFilePointMap.get(f);
-      if (starteam.getRevisionNumber() == historic.getRevisionNumber()
-          && starteam.getLastModifyDate() == historic.getFile().lastModified()) {
-        // unchanged files
-        continue;
+    final Collection<File> fileToCheckout = new ArrayList<File>();
+    final List<String> changeTypes = new ArrayList<String>();
+    final List<File> added = new ArrayList<File>();
+    final List<StarTeamFilePoint> removed = new ArrayList<StarTeamFilePoint>();
+    StarTeamFilePointMerge.Visitor<StarTeamFilePointSorter.Entry> visitor =
+        new StarTeamFilePointMerge.Visitor<StarTeamFilePointSorter.Entry>() {
+          public void visit(StarTeamFilePointSorter.Entry filePoint, byte verdict) {
+            File stf = currentFiles.get(filePoint.getIndex());
+            switch (verdict) {
+              case StarTeamFilePointMerge.CHANGED:
+                changeTypes.add("change");
+                fileToCheckout.add(stf);
+                break;
+              case StarTeamFilePointMerge.ROLLBACK:
+                changeTypes.add("rollback");
+                fileToCheckout.add(stf);
+                break;
+              case StarTeamFilePointMerge.ADDED:
+                added.add(stf);
+                break;
+              default:
+                // unchanged files
+            }
+          }
+
+          public void removed(StarTeamFilePoint filePoint) {
+            removed.add(filePoint);
+          }
+        };
+    if (!currentFilePoint.isSpilled() && !(historicFilePoint instanceof StarTeamManifest)) {
+      StarTeamFilePointSorter.Entry[] current = new StarTeamFilePointSorter.Entry[currentFilePoint.size()];
+      int position = 0;
+      for (StarTeamFilePointSorter.Entry entry : currentFilePoint) {
+        current[position++] = entry;
       }
-      com.starteam.File stf = starteamFileMap.get(f);
-      if (starteam.getRevisionNumber() > historic.getRevisionNumber()) {
-        // higher.add(f);
-        changeSet.addChange(fileToStarTeamChangeLogEntry(stf, "change"));
-      } else if (starteam.getRevisionNumber() < historic.getRevisionNumber()) {
-        // lower.add(f);
-        changeSet.addChange(fileToStarTeamChangeLogEntry(stf, "rollback"));
-      } else {
-        changeSet.addChange(fileToStarTeamChangeLogEntry(stf, "change"));
+      StarTeamFilePoint[] historic = historicFilePoint.toArray(new StarTeamFilePoint[historicFilePoint.size()]);
+      Arrays.sort(historic, StarTeamFilePointMerge.FILE_POINT_ORDER);
+
+      StarTeamFilePointMerge merge = StarTeamFilePointMerge.merge(current, historic, localTimestamps);
+      for (int i = 0; i < current.length; i++) {
+        visitor.visit(current[i], merge.getVerdict(i));
       }
+      removed.addAll(merge.getRemoved());
+    } else if (historicFilePoint instanceof StarTeamManifest && ((StarTeamManifest) historicFilePoint).isSorted()) {
+      logger.println("*** " + sdf.format(new Date()) + " computeDifference streaming file points.");
+      StarTeamFilePointMerge.merge(currentFilePoint.iterator(), historicFilePoint.iterator(), localTimestamps, visitor);
+    } else {
+      logger.println("*** " + sdf.format(new Date()) + " computeDifference streaming file points.");
+      StarTeamFilePointSorter historic = new StarTeamFilePointSorter();
+      try {
+        int position = 0;
+        for (StarTeamFilePoint filePoint : historicFilePoint) {
+          historic.add(filePoint, position++);
+        }
+        StarTeamFilePointMerge.merge(currentFilePoint.iterator(), historic.iterator(), localTimestamps, visitor);
+      } finally {
+        historic.close();
+      }
+    }
+
+    int changedCount = fileToCheckout.size();
+    for (File stf : added) {
+      changeTypes.add("added");
       fileToCheckout.add(stf);
     }
+    populateChangeDetails(fileToCheckout);
 
-    for (java.io.File f : historicOnly) {
-      StarTeamFilePoint historic = historicFilePointMap.get(f);
-      change = new StarTeamChangeLogEntry(f.getName(), historic.getRevisionNumber(), new Date(),
-          "Unknown", "file deleted", "removed");
+    Iterator<String> changeType = changeTypes.iterator();
+    Iterator<File> changedFile = fileToCheckout.iterator();
+    for (int i = 0; i < changedCount; i++) {
+      changeSet.addChange(fileToStarTeamChangeLogEntry(changedFile.next(), changeType.next()));
+    }
+    for (StarTeamFilePoint historicPoint : removed) {
+      StarTeamChangeLogEntry change = new StarTeamChangeLogEntry(historicPoint.getFile().getName(),
+          historicPoint.getRevisionNumber(), new Date(), "Unknown", "file deleted", "removed");
       changeSet.addChange(change);
     }
-    for (java.io.File f : starteamOnly) {
-      com.starteam.File stf = starteamFileMap.get(f);
-      changeSet.addChange(fileToStarTeamChangeLogEntry(stf, "added"));
-      fileToCheckout.add(stf);
+    while (changedFile.hasNext()) {
+      changeSet.addChange(fileToStarTeamChangeLogEntry(changedFile.next(), changeType.next()));
     }
     changeSet.setFilesToCheckout(fileToCheckout);
     logger.println("*** " + sdf.format(new Date()) + " computeDifference end.");
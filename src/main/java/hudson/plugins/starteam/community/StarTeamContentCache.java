@@ -0,0 +1,431 @@
+package hudson.plugins.starteam.community;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of file contents shared by all workspaces of an agent, keyed by the
+ * MD5 StarTeam keeps for every file revision.
+ * <p>
+ * Jobs checking out the same view on one agent fetch identical contents. A
+ * checkout first materializes the files whose MD5 is cached, by copying the
+ * cached content or, if enabled, by linking to it, and only fetches the
+ * others from StarTeam; the fetched files are then added to the cache.
+ * <p>
+ * A file is only added if its content has the MD5 StarTeam claims. The size
+ * and modification time of every cached file are remembered, and a cached
+ * file that does not have them any more, e.g. because a hard linked workspace
+ * file was modified, is hashed again before it is used and dropped if its
+ * content changed. The total size of the cached files is capped; the least
+ * recently used ones are evicted first. When an agent starts, the cache
+ * directory is scanned, ordering files by modification time.
+ * <p>
+ * The controller keeps a cache of its own to serve agents from, see
+ * {@link StarTeamControllerContentSource}.
+ * <p>
+ * The cache is disabled unless a size is set. It can be tuned with the
+ * following system properties:
+ * <ul>
+ * <li><code>hudson.plugins.starteam.community.StarTeamContentCache.maxSize</code> - size of the cache in MB (default 0, disabled)</li>
+ * <li><code>hudson.plugins.starteam.community.StarTeamContentCache.directory</code> - directory of the cache (default <code>~/.starteam/content-cache</code>)</li>
+ * <li><code>hudson.plugins.starteam.community.StarTeamContentCache.hardlink</code> - link files to the cache instead of copying them</li>
+ * </ul>
+ * <p>
+ * Hard link mode must not be used for workspaces whose files builds modify in
+ * place: a workspace file linked to the cache is the cached file, so such a
+ * modification changes the content of every other workspace linked to it.
+ * The cache notices the change and drops the entry, but the other workspaces
+ * keep the modified content. Linked files also share one modification time,
+ * the one set by the last checkout that materialized them.
+ * <p>
+ * Files are copied, linked or read outside the lock of the cache; the entry
+ * is pinned meanwhile, so that it is not deleted by an eviction.
+ */
+public final class StarTeamContentCache {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamContentCache.class.getName());
+
+  private static final String PROPERTY_PREFIX = StarTeamContentCache.class.getName() + ".";
+
+  private static StarTeamContentCache instance;
+
+  private final File directory;
+  private final long maxSize;
+  private final boolean hardlink;
+
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private long size;
+  private long hits;
+  private long misses;
+  private long evictions;
+  private boolean loaded;
+
+  StarTeamContentCache(File directory, long maxSize, boolean hardlink) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.hardlink = hardlink;
+  }
+
+  /**
+   * @return the cache of this agent, or null if it is disabled
+   */
+  public static synchronized StarTeamContentCache getInstance() {
+    long maxSize = Long.getLong(PROPERTY_PREFIX + "maxSize", 0L) * 1024 * 1024;
+    if (maxSize <= 0) {
+      return null;
+    }
+    if (instance == null) {
+      String directory = System.getProperty(PROPERTY_PREFIX + "directory");
+      instance = new StarTeamContentCache(directory != null ? new File(directory)
+          : new File(new File(System.getProperty("user.home"), ".starteam"), "content-cache"),
+          maxSize, Boolean.getBoolean(PROPERTY_PREFIX + "hardlink"));
+    }
+    return instance;
+  }
+
+  /**
+   * Forget the cache of this agent, so that the system properties are read
+   * again, for tests.
+   */
+  static synchronized void reset() {
+    instance = null;
+  }
+
+  /**
+   * Materialize a file from the cache. The entry is pinned while the file is
+   * copied or linked, outside the lock of the cache, so that it is not
+   * deleted meanwhile. In hard link mode, setting the modification time of
+   * the target sets the one of the cached file and of every other file
+   * linked to it.
+   *
+   * @param md5          the MD5 of the content
+   * @param target       the file to create or replace
+   * @param lastModified the modification time to give the file
+   * @return whether the content was cached; if not, the target is left alone
+   */
+  public boolean materialize(byte[] md5, File target, long lastModified) {
+    String key = hex(md5);
+    File cached = cacheFile(key);
+    Entry entry = pin(key);
+    if (entry == null) {
+      return false;
+    }
+    boolean hit = false;
+    try {
+      long length = verify(key, entry, md5);
+      if (length < 0) {
+        return false;
+      }
+      File parent = target.getParentFile();
+      if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Unable to create " + parent);
+      }
+      if (hardlink) {
+        Files.deleteIfExists(target.toPath());
+        Files.createLink(target.toPath(), cached.toPath());
+        target.setLastModified(lastModified);
+        // the cached file shares the modification time
+        long linked = cached.lastModified();
+        synchronized (this) {
+          entry.lastModified = linked;
+        }
+      } else {
+        Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        target.setLastModified(lastModified);
+      }
+      if (target.length() != length) {
+        throw new IOException("Size of " + target + " differs from the cached content " + key);
+      }
+      hit = true;
+      return true;
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to materialize " + target + " from the StarTeam content cache", e);
+      return false;
+    } finally {
+      unpin(key, entry, hit);
+    }
+  }
+
+  /**
+   * Read a content from the cache. The entry is pinned while the content is
+   * read, outside the lock of the cache.
+   *
+   * @param md5 the MD5 of the content
+   * @return the content, or null if it is not cached
+   */
+  public byte[] read(byte[] md5) {
+    String key = hex(md5);
+    Entry entry = pin(key);
+    if (entry == null) {
+      return null;
+    }
+    boolean hit = false;
+    try {
+      long length = verify(key, entry, md5);
+      if (length < 0) {
+        return null;
+      }
+      byte[] content = Files.readAllBytes(cacheFile(key).toPath());
+      if (content.length != length) {
+        throw new IOException("Size of the cached content " + key + " changed");
+      }
+      hit = true;
+      return content;
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to read " + key + " from the StarTeam content cache", e);
+      return null;
+    } finally {
+      unpin(key, entry, hit);
+    }
+  }
+
+  /**
+   * @return the entry of a content, pinned so that its file is not deleted
+   *         until {@link #unpin(String, Entry, boolean)}, or null if the
+   *         content is not cached
+   */
+  synchronized Entry pin(String key) {
+    load();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    entry.pins++;
+    return entry;
+  }
+
+  /**
+   * Release an entry pinned by {@link #pin(String)}, deleting its file if it
+   * was evicted meanwhile.
+   */
+  synchronized void unpin(String key, Entry entry, boolean hit) {
+    if (hit) {
+      hits++;
+    } else {
+      misses++;
+    }
+    entry.pins--;
+    if (entry.pins == 0 && entry.dropped && !entries.containsKey(key)) {
+      cacheFile(key).delete();
+    }
+  }
+
+  /**
+   * Add a file to the cache, unless its content is cached already or does
+   * not have the given MD5.
+   *
+   * @param md5    the MD5 StarTeam keeps for the content of the file
+   * @param source a file just checked out
+   * @throws IOException if the file cannot be read or the cache cannot be written
+   */
+  public void store(byte[] md5, File source) throws IOException {
+    String key = hex(md5);
+    synchronized (this) {
+      load();
+      if (entries.containsKey(key)) {
+        return;
+      }
+    }
+    if (!Arrays.equals(md5, StarTeamFileVerifier.md5(source))) {
+      // modified locally, or converted while checking out
+      return;
+    }
+    File cached = cacheFile(key);
+    File parent = cached.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create " + parent);
+    }
+    if (hardlink) {
+      Files.deleteIfExists(cached.toPath());
+      Files.createLink(cached.toPath(), source.toPath());
+    } else {
+      Path temp = Files.createTempFile(parent.toPath(), key, ".tmp");
+      try {
+        Files.copy(source.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+    synchronized (this) {
+      Entry previous = entries.put(key, new Entry(cached.length(), cached.lastModified()));
+      if (previous != null) {
+        size -= previous.length;
+      }
+      size += cached.length();
+      evict();
+    }
+  }
+
+  /**
+   * Check a pinned entry, outside the lock of the cache.
+   *
+   * @return the size of the cached file if it still has the size and
+   *         modification time it was added with, or else still has the
+   *         expected content, or -1 if it was dropped
+   */
+  private long verify(String key, Entry entry, byte[] md5) {
+    File cached = cacheFile(key);
+    long length;
+    long lastModified;
+    synchronized (this) {
+      length = entry.length;
+      lastModified = entry.lastModified;
+    }
+    if (cached.length() == length && cached.lastModified() == lastModified) {
+      return length;
+    }
+    try {
+      if (cached.isFile() && Arrays.equals(md5, StarTeamFileVerifier.md5(cached))) {
+        length = cached.length();
+        lastModified = cached.lastModified();
+        synchronized (this) {
+          entry.length = length;
+          entry.lastModified = lastModified;
+        }
+        return length;
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to verify " + cached, e);
+    }
+    LOGGER.warning("Dropping corrupted StarTeam content cache entry " + cached);
+    synchronized (this) {
+      if (entries.get(key) == entry) {
+        remove(key);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Read the cached files when the cache is first used.
+   */
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    File[] subdirectories = directory.listFiles();
+    if (subdirectories == null) {
+      return;
+    }
+    List<File> files = new ArrayList<File>();
+    for (File subdirectory : subdirectories) {
+      File[] cached = subdirectory.listFiles();
+      if (cached == null) {
+        continue;
+      }
+      for (File file : cached) {
+        if (file.getName().endsWith(".tmp")) {
+          file.delete();
+        } else {
+          files.add(file);
+        }
+      }
+    }
+    // least recently added first
+    Collections.sort(files, new Comparator<File>() {
+      public int compare(File o1, File o2) {
+        long m1 = o1.lastModified();
+        long m2 = o2.lastModified();
+        return m1 < m2 ? -1 : m1 > m2 ? 1 : 0;
+      }
+    });
+    for (File file : files) {
+      entries.put(file.getName(), new Entry(file.length(), file.lastModified()));
+      size += file.length();
+    }
+    evict();
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (size > maxSize && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      evictions++;
+      drop(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      drop(key, entry);
+    }
+  }
+
+  /**
+   * Delete the file of an entry removed from the cache, or leave that to
+   * {@link #unpin(String, Entry, boolean)} while it is pinned.
+   */
+  private void drop(String key, Entry entry) {
+    size -= entry.length;
+    if (entry.pins > 0) {
+      entry.dropped = true;
+    } else {
+      cacheFile(key).delete();
+    }
+  }
+
+  File cacheFile(String key) {
+    return new File(new File(directory, key.substring(0, 2)), key);
+  }
+
+  static String hex(byte[] md5) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : md5) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "StarTeam content cache: " + entries.size() + " files, " + size + " bytes, " + hits + " hits, " + misses
+        + " misses, " + evictions + " evictions";
+  }
+
+  static final class Entry {
+    private long length;
+    private long lastModified;
+    private int pins;
+    private boolean dropped;
+
+    private Entry(long length, long lastModified) {
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.starteam.community;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides file contents by MD5, as an alternative to fetching them from
+ * StarTeam during a checkout. An agent gets a proxy to the source of the
+ * controller, see {@link StarTeamControllerContentSource}.
+ */
+public interface StarTeamContentSource {
+
+  /**
+   * Maximum total size of the files requested at once.
+   */
+  long MAX_REQUEST_SIZE = 8L * 1024 * 1024;
+
+  /**
+   * Maximum number of files requested at once.
+   */
+  int MAX_REQUEST_FILES = 256;
+
+  /**
+   * @param requests the files whose content is needed
+   * @return the contents found, by hexadecimal MD5; files missing from the
+   *         result have to be fetched from StarTeam
+   * @throws IOException if the source cannot be used any more
+   */
+  Map<String, byte[]> fetch(List<Request> requests) throws IOException;
+
+  /**
+   * The content of a StarTeam file revision.
+   */
+  final class Request implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String md5;
+    private final int itemId;
+    private final int folderId;
+    private final long size;
+
+    /**
+     * @param md5      the hexadecimal MD5 of the content
+     * @param itemId   the StarTeam ID of the file, to fetch the content with
+     * @param folderId the StarTeam ID of the folder holding the file, to find
+     *                 the files of a request together
+     * @param size     the size of the content
+     */
+    public Request(String md5, int itemId, int folderId, long size) {
+      this.md5 = md5;
+      this.itemId = itemId;
+      this.folderId = folderId;
+      this.size = size;
+    }
+
+    public String getMd5() {
+      return md5;
+    }
+
+    public int getItemId() {
+      return itemId;
+    }
+
+    public int getFolderId() {
+      return folderId;
+    }
+
+    public long getSize() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+package hudson.plugins.starteam.community;
+
+import jenkins.model.Jenkins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves file contents to the agents from a cache on the controller, keyed by
+ * the MD5 StarTeam keeps for every file revision.
+ * <p>
+ * A checkout on an agent requests the files it does not have in its own
+ * {@link StarTeamContentCache} from the controller, through a proxy exported
+ * on the channel of the agent, before fetching the remaining ones from
+ * StarTeam. The controller answers from its cache, and fetches a missing
+ * content from StarTeam on a session of its own, once for all agents: while
+ * one request fetches a content, other requests for the same MD5 wait for it.
+ * A fetched content is only cached, and served, if it has the MD5 StarTeam
+ * claims.
+ * <p>
+ * The agent is not trusted: a content is only served for a file of the view
+ * of the build, on the session of the build's own credentials, whose MD5
+ * StarTeam reports to be the requested one. The files of a request are found
+ * by populating the folders holding them, each once per build, rather than
+ * looked up one at a time, so that an agent only gets
+ * contents it could check out itself. The cache is therefore shared by all
+ * views. Sizes claimed by the agent are ignored; at most
+ * {@link #MAX_REQUEST_FILES} files and {@link #MAX_REQUEST_SIZE} bytes of
+ * actual content are answered at once.
+ * <p>
+ * The cache is kept in the <code>starteam-content-cache</code> directory of
+ * the controller. It is disabled unless a size is set with the system
+ * property
+ * <code>hudson.plugins.starteam.community.StarTeamControllerContentSource.maxSize</code>,
+ * in MB.
+ */
+public class StarTeamControllerContentSource implements StarTeamContentSource, Closeable {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamControllerContentSource.class.getName());
+
+  static final String DIRNAME = "starteam-content-cache";
+
+  private static StarTeamContentCache controllerCache;
+
+  /**
+   * Contents being fetched from StarTeam, by hexadecimal MD5.
+   */
+  private static final ConcurrentMap<String, Object> FETCHING = new ConcurrentHashMap<String, Object>();
+
+  private final StarTeamContentCache cache;
+  private final StarTeamConnection connection;
+  private final int buildNumber;
+  private final Map<Integer, com.starteam.File> files = new HashMap<Integer, com.starteam.File>();
+  private final Set<Integer> folders = new HashSet<Integer>();
+  private boolean open;
+  private int fetched;
+
+  /**
+   * @param cache       the cache to serve contents from
+   * @param connection  the connection to fetch missing contents with, not
+   *                    initialized yet
+   * @param buildNumber the build the contents are checked out for
+   */
+  StarTeamControllerContentSource(StarTeamContentCache cache, StarTeamConnection connection, int buildNumber) {
+    this.cache = cache;
+    this.connection = connection;
+    this.buildNumber = buildNumber;
+  }
+
+  /**
+   * @param connection  the connection to fetch missing contents with, not
+   *                    initialized yet
+   * @param buildNumber the build the contents are checked out for
+   * @return a source serving the contents of the view of the connection, or
+   *         null if the cache of the controller is disabled
+   */
+  public static StarTeamControllerContentSource create(StarTeamConnection connection, int buildNumber) {
+    StarTeamContentCache cache = getCache();
+    return cache == null ? null : new StarTeamControllerContentSource(cache, connection, buildNumber);
+  }
+
+  private static synchronized StarTeamContentCache getCache() {
+    long maxSize = Long.getLong(StarTeamControllerContentSource.class.getName() + ".maxSize", 0L) * 1024 * 1024;
+    if (maxSize <= 0) {
+      return null;
+    }
+    if (controllerCache == null) {
+      controllerCache = new StarTeamContentCache(new File(Jenkins.get().getRootDir(), DIRNAME), maxSize, false);
+    }
+    return controllerCache;
+  }
+
+  public Map<String, byte[]> fetch(List<Request> requests) throws IOException {
+    Map<String, byte[]> result = new HashMap<String, byte[]>();
+    long total = 0;
+    List<Request> window = requests.subList(0, Math.min(requests.size(), MAX_REQUEST_FILES));
+    resolve(window);
+    for (Request request : window) {
+      byte[] md5 = unhex(request.getMd5());
+      if (md5 == null) {
+        continue;
+      }
+      long size = sizeOf(request.getItemId(), md5);
+      if (size < 0 || total + size > MAX_REQUEST_SIZE) {
+        continue;
+      }
+      byte[] content = cache.read(md5);
+      if (content == null) {
+        content = fetchOnce(request, md5);
+      }
+      if (content != null && total + content.length <= MAX_REQUEST_SIZE) {
+        result.put(request.getMd5(), content);
+        total += content.length;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Fetch a content from StarTeam into the cache, unless another request is
+   * fetching it already, in which case the cached content is read once it is
+   * done.
+   */
+  private byte[] fetchOnce(Request request, byte[] md5) throws IOException {
+    Object lock = new Object();
+    Object fetching = FETCHING.putIfAbsent(request.getMd5(), lock);
+    if (fetching != null) {
+      lock = fetching;
+    }
+    synchronized (lock) {
+      try {
+        byte[] content = cache.read(md5);
+        if (content != null) {
+          return content;
+        }
+        File temp = File.createTempFile("starteam-content", ".tmp");
+        try {
+          checkOutTo(request.getItemId(), temp);
+          cache.store(md5, temp);
+        } finally {
+          temp.delete();
+        }
+        return cache.read(md5);
+      } finally {
+        FETCHING.remove(request.getMd5(), lock);
+      }
+    }
+  }
+
+  /**
+   * Find the files of requests in the view of the build, populating each
+   * folder holding them that was not populated before.
+   *
+   * @param requests the requests
+   * @throws IOException if StarTeam cannot be reached
+   */
+  synchronized void resolve(List<Request> requests) throws IOException {
+    for (Request request : requests) {
+      if (!files.containsKey(request.getItemId()) && folders.add(request.getFolderId())) {
+        files.putAll(filesOf(request.getFolderId()));
+      }
+    }
+  }
+
+  /**
+   * Find the files of a folder in the view of the build, opening the view the
+   * first time.
+   *
+   * @param folderId the StarTeam ID of the folder
+   * @return the files of the folder by StarTeam ID, none if the view has no
+   *         such folder
+   * @throws IOException if StarTeam cannot be reached
+   */
+  Map<Integer, com.starteam.File> filesOf(int folderId) throws IOException {
+    try {
+      if (!open) {
+        connection.openView(buildNumber);
+        open = true;
+      }
+    } catch (StarTeamSCMException e) {
+      throw new IOException("Unable to open the StarTeam view: " + e.getMessage(), e);
+    }
+    return connection.findFolderFiles(folderId);
+  }
+
+  /**
+   * @param itemId the StarTeam ID of a file found by {@link #resolve(List)}
+   * @param md5    the requested MD5
+   * @return the size of the file, or -1 if the view has no such file with the
+   *         requested MD5
+   */
+  synchronized long sizeOf(int itemId, byte[] md5) throws IOException {
+    com.starteam.File file = files.get(itemId);
+    if (file == null || file.getMD5() == null || !Arrays.equals(md5, file.getMD5().toByteArray())) {
+      return -1;
+    }
+    return file.getSizeEx();
+  }
+
+  /**
+   * Check out a file found by {@link #resolve(List)}.
+   *
+   * @param itemId the StarTeam ID of the file
+   * @param target the file to check out to
+   * @throws IOException if the file cannot be checked out
+   */
+  synchronized void checkOutTo(int itemId, File target) throws IOException {
+    com.starteam.File file = files.get(itemId);
+    if (file == null) {
+      throw new IOException("StarTeam file " + itemId + " was not looked up");
+    }
+    connection.checkOutTo(file, target);
+    fetched++;
+  }
+
+  /**
+   * @return the number of contents fetched from StarTeam
+   */
+  public synchronized int getFetched() {
+    return fetched;
+  }
+
+  /**
+   * Close the session opened to fetch missing contents.
+   */
+  public synchronized void close() {
+    if (open) {
+      connection.close();
+      open = false;
+    }
+    LOGGER.log(Level.FINE, "Fetched {0} files from StarTeam for build {1}, {2}",
+        new Object[]{fetched, buildNumber, cache});
+  }
+
+  /**
+   * @param hex a hexadecimal MD5
+   * @return its bytes, or null if it is not a valid MD5
+   */
+  static byte[] unhex(String hex) {
+    if (hex == null || hex.length() != 32) {
+      return null;
+    }
+    byte[] result = new byte[16];
+    for (int i = 0; i < result.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        return null;
+      }
+      result[i] = (byte) (high << 4 | low);
+    }
+    return result;
+  }
+}
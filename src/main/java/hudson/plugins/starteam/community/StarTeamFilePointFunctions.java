@@ -1,11 +1,11 @@
 package hudson.plugins.starteam.community;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.logging.Logger;
 
 /**
  * Functions operating on StarTeamFilePoint type.
@@ -13,6 +13,8 @@ import java.util.*;
 
 public class StarTeamFilePointFunctions {
 
+  private static final Logger LOGGER = Logger.getLogger(StarTeamFilePointFunctions.class.getName());
+
   private StarTeamFilePointFunctions() {
     throw new InstantiationError();
   }
@@ -69,47 +71,98 @@ public class StarTeamFilePointFunctions {
   }
 
   /**
-   * Recursive file system discovery
+   * File system discovery, see {@link StarTeamWorkspaceScan}. The plugin's
+   * metadata directory is skipped.
    *
    * @param workFolder a Hudson workFolder directory
    * @return collection of files within workFolder
    */
   public static Collection<java.io.File> listAllFiles(final java.io.File workFolder) {
-    Collection<java.io.File> result = new ArrayList<java.io.File>();
-    listAllFiles(result, workFolder.getAbsoluteFile());
-    return result;
+    return new ArrayList<java.io.File>(StarTeamWorkspaceScan.scan(workFolder).getFiles());
   }
 
-  private static void listAllFiles(final Collection<java.io.File> result, final java.io.File dir) {
-    List<java.io.File> sub = new ArrayList<java.io.File>();
-    java.io.File[] files = dir.listFiles();
-    if (files != null) {
-      for (java.io.File f : files) {
-        if (f.isFile()) {
-          result.add(f);
-        } else if (f.isDirectory()) {
-          sub.add(f);
-        }
-      }
-      for (java.io.File f : sub) {
-        listAllFiles(result, f);
-      }
-    } else {
-      if (dir.isFile()) {
-        result.add(dir);
-      }
+  // storage
+
+  /**
+   * @param buildDir the root directory of a build
+   * @return the file the file points of the build are stored in, preferring
+   *         the binary manifest over the CSV file of older builds, or null if
+   *         the build has none
+   */
+  public static java.io.File findFilePointFile(final java.io.File buildDir) {
+    java.io.File manifest = new java.io.File(buildDir, StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    if (manifest.exists()) {
+      return manifest;
     }
+    java.io.File csv = new java.io.File(buildDir, StarTeamConnection.FILE_POINT_FILENAME);
+    return csv.exists() ? csv : null;
   }
 
-  // storage
+  /**
+   * Look up the file point a build recorded for a file, without loading all
+   * file points of the build if they are stored as a binary manifest.
+   *
+   * @param buildDir the root directory of a build
+   * @param path     the full path of a file, or its path relative to the work
+   *                 folder if the build stored relative paths
+   * @return the file point of the file, or null if the build has none
+   * @throws IOException if the file points cannot be read
+   */
+  public static StarTeamFilePoint lookupFilePoint(final java.io.File buildDir, final String path) throws IOException {
+    java.io.File file = findFilePointFile(buildDir);
+    if (file == null) {
+      return null;
+    }
+    Collection<StarTeamFilePoint> filePoints = loadCollection(file);
+    if (filePoints instanceof StarTeamManifest) {
+      return ((StarTeamManifest) filePoints).lookup(path);
+    }
+    for (StarTeamFilePoint filePoint : filePoints) {
+      if (filePoint.getFullfilepath().equals(path)) {
+        return filePoint;
+      }
+    }
+    return null;
+  }
 
+  /**
+   * Load file points stored either as a binary manifest, as a reference to
+   * the chunks of a {@link StarTeamManifestStore}, as a delta to the file
+   * points of a previous build or as CSV.
+   *
+   * @param file a file written by {@link #storeCollection(OutputStream, Collection, Collection)}
+   *             or by an older version of the plugin
+   * @return the file points; those of a binary manifest are decoded on
+   *         demand, see {@link StarTeamManifest}. If a build a delta depends
+   *         on is gone, there are no file points to compare with.
+   * @throws IOException if the file cannot be read
+   */
   @SuppressWarnings("unchecked")
   public static Collection<StarTeamFilePoint> loadCollection(final java.io.File file) throws IOException {
+    if (StarTeamManifest.isManifest(file)) {
+      StarTeamManifest manifest = StarTeamManifest.open(file);
+      manifest.setSource(file.getAbsoluteFile().getParentFile().getName(), 0);
+      return manifest;
+    }
+    if (StarTeamManifestStore.isReference(file)) {
+      StarTeamManifest manifest = StarTeamManifestStore.getInstance().load(file);
+      manifest.setSource(file.getAbsoluteFile().getParentFile().getName(), 0);
+      return manifest;
+    }
+    if (StarTeamManifestDelta.isDelta(file)) {
+      StarTeamManifest manifest = StarTeamManifestDelta.load(file.getAbsoluteFile());
+      if (manifest == null) {
+        LOGGER.info("A build the StarTeam file points in " + file + " depend on is gone, ignoring them");
+        return new ArrayList<StarTeamFilePoint>();
+      }
+      return manifest;
+    }
     Collection<String> stringCollection = FileUtils.readLines(file, "ISO-8859-1");
     Collection<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
     for (String str : stringCollection) {
 
-      String[] data = str.split(",");
+      // the path is the last field and may contain commas
+      String[] data = str.split(",", 3);
 
       String revision = data[0];
       String lastModifyTime = data[1];
@@ -128,12 +181,133 @@ public class StarTeamFilePointFunctions {
     return result;
   }
 
+  /**
+   * Store file points as a binary manifest, sorted by path. The manifest is
+   * deflated if the system property
+   * <code>hudson.plugins.starteam.community.StarTeamFilePointFunctions.compress</code>
+   * is set.
+   *
+   * @param bos        the stream to write to, closed when done
+   * @param collection the file points
+   * @throws IOException if the manifest cannot be written
+   */
   public static void storeCollection(final OutputStream bos, final Collection<StarTeamFilePoint> collection) throws IOException {
-    Collection<String> stringCollection = new ArrayList<String>();
-    for (StarTeamFilePoint i : collection) {
-      stringCollection.add(i.getRevisionNumber() + "," + i.getLastModifyDate() + "," + i.getFullfilepath());
+    storeCollection(bos, collection, null);
+  }
+
+  /**
+   * Store file points, as a delta to the file points of the previous build
+   * when possible, see {@link StarTeamManifestDelta}, or else as a binary
+   * manifest.
+   *
+   * @param bos        the stream to write to, closed when done
+   * @param collection the file points
+   * @param previous   the file points of the previous build, may be null
+   * @throws IOException if the file points cannot be written
+   */
+  public static void storeCollection(final OutputStream bos, final Collection<StarTeamFilePoint> collection,
+                                     final Collection<StarTeamFilePoint> previous) throws IOException {
+    storeCollection(bos, collection, previous, null);
+  }
+
+  /**
+   * Store file points, as a delta to the file points of the previous build
+   * when possible, see {@link StarTeamManifestDelta}, or else as a binary
+   * manifest. The paths are stored relative to the work folder if they all
+   * are within it.
+   *
+   * @param bos        the stream to write to, closed when done
+   * @param collection the file points
+   * @param previous   the file points of the previous build, may be null
+   * @param workFolder the work folder the files were checked out to, may be
+   *                   null to store absolute paths
+   * @throws IOException if the file points cannot be written
+   */
+  public static void storeCollection(final OutputStream bos, final Collection<StarTeamFilePoint> collection,
+                                     final Collection<StarTeamFilePoint> previous,
+                                     final java.io.File workFolder) throws IOException {
+    Iterable<StarTeamFilePoint> sorted;
+    String base;
+    if (collection instanceof StarTeamManifest && ((StarTeamManifest) collection).isSorted()) {
+      // stream the entries of an encoded manifest without decoding them all
+      sorted = collection;
+      base = ((StarTeamManifest) collection).getBase();
+    } else if (collection instanceof StarTeamManifestFile && ((StarTeamManifestFile) collection).isSorted()) {
+      // or read them from the file they were spilled to
+      sorted = collection;
+      base = ((StarTeamManifestFile) collection).getBase();
+    } else {
+      StarTeamFilePoint[] array = collection.toArray(new StarTeamFilePoint[collection.size()]);
+      Arrays.sort(array, StarTeamFilePointMerge.FILE_POINT_ORDER);
+      sorted = Arrays.asList(array);
+      base = StarTeamManifestWriter.commonBase(StarTeamManifestWriter.paths(sorted));
+    }
+    String root = workFolder == null ? null : root(workFolder);
+    if (root != null && !base.startsWith(root)) {
+      root = null;
+    }
+    boolean compress = Boolean.getBoolean(StarTeamFilePointFunctions.class.getName() + ".compress");
+    if (StarTeamManifestDelta.canStoreDelta(previous)
+        && ((StarTeamManifest) previous).isRelative() == (root != null)
+        && ((StarTeamManifest) previous).getRoot().equals(root == null ? "" : root)) {
+      StarTeamManifestDelta.store(bos, sorted, base, root, (StarTeamManifest) previous, compress);
+      return;
+    }
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(bos, root,
+        root == null ? base : base.substring(root.length()), compress);
+    try {
+      for (StarTeamFilePoint i : sorted) {
+        writer.write(i);
+      }
+    } finally {
+      writer.close();
     }
-    IOUtils.writeLines(stringCollection, null, bos, "ISO-8859-1");
+  }
+
+  /**
+   * @param workFolder a work folder
+   * @return the path relative file points are resolved against
+   */
+  public static String root(final java.io.File workFolder) {
+    return workFolder.getAbsolutePath() + java.io.File.separator;
+  }
+
+  /**
+   * Resolve the file points of a previous build against a work folder. The
+   * paths of file points stored relative to the work folder are resolved
+   * against the given one; absolute paths stored by older versions of the
+   * plugin are moved from the previous work folder to the given one.
+   *
+   * @param filePoints         the file points of the previous build, may be null
+   * @param previousWorkFolder the work folder of the previous build, may be
+   *                           null if unknown
+   * @param workFolder         the work folder to compare with
+   * @return the file points with paths within the work folder
+   */
+  public static Collection<StarTeamFilePoint> relocate(final Collection<StarTeamFilePoint> filePoints,
+                                                       final java.io.File previousWorkFolder,
+                                                       final java.io.File workFolder) {
+    String root = root(workFolder);
+    if (filePoints instanceof StarTeamManifest) {
+      StarTeamManifest manifest = (StarTeamManifest) filePoints;
+      if (manifest.isRelative() || previousWorkFolder == null) {
+        return manifest.relocate(root);
+      }
+      return manifest.rebase(root(previousWorkFolder), root);
+    }
+    if (filePoints == null || previousWorkFolder == null || root(previousWorkFolder).equals(root)) {
+      return filePoints;
+    }
+    String previousRoot = root(previousWorkFolder);
+    Collection<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>(filePoints.size());
+    for (StarTeamFilePoint filePoint : filePoints) {
+      String path = filePoint.getFullfilepath();
+      if (path.startsWith(previousRoot)) {
+        path = root + path.substring(previousRoot.length());
+      }
+      result.add(new StarTeamFilePoint(path, filePoint.getRevisionNumber(), filePoint.getLastModifyDate()));
+    }
+    return result;
   }
 
 }
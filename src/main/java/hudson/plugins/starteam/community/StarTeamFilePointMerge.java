@@ -0,0 +1,284 @@
+package hudson.plugins.starteam.community;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Single pass merge of the current and the historic file points, both sorted
+ * by path, classifying every file as unchanged, changed, rolled back, added or
+ * removed without building intermediate sets.
+ * <p>
+ * Large inputs are split into chunks by path range and merged in parallel.
+ * Inputs too large for the heap can be merged from sorted iterators, see
+ * {@link #merge(Iterator, Iterator, LocalTimestamps, Visitor)}. The number of file points from which the merge runs in parallel (default
+ * 50000) can be set with the system property
+ * <code>hudson.plugins.starteam.community.StarTeamFilePointMerge.parallelThreshold</code>.
+ */
+public final class StarTeamFilePointMerge {
+
+  public static final byte UNCHANGED = 0;
+  public static final byte CHANGED = 1;
+  public static final byte ROLLBACK = 2;
+  public static final byte ADDED = 3;
+
+  private static final int PARALLEL_THRESHOLD = Integer.getInteger(
+      StarTeamFilePointMerge.class.getName() + ".parallelThreshold", 50000);
+
+  /**
+   * Orders paths the way {@link java.io.File} compares them on this platform,
+   * i.e. ignoring case on Windows.
+   */
+  public static final Comparator<String> PATH_ORDER = java.io.File.separatorChar == '\\'
+      ? String.CASE_INSENSITIVE_ORDER
+      : new Comparator<String>() {
+        public int compare(String o1, String o2) {
+          return o1.compareTo(o2);
+        }
+      };
+
+  /**
+   * Orders file points by path, see {@link #PATH_ORDER}.
+   */
+  public static final Comparator<StarTeamFilePoint> FILE_POINT_ORDER = new Comparator<StarTeamFilePoint>() {
+    public int compare(StarTeamFilePoint o1, StarTeamFilePoint o2) {
+      return PATH_ORDER.compare(o1.getFullfilepath(), o2.getFullfilepath());
+    }
+  };
+
+  /**
+   * Source of the modification time of the local copy of a file.
+   */
+  public interface LocalTimestamps {
+    /**
+     * @param filePoint a current file point
+     * @return the modification time of the local file, or 0 if it does not exist
+     */
+    long lastModified(StarTeamFilePoint filePoint);
+  }
+
+  /**
+   * Reads modification times from the file system.
+   */
+  public static final LocalTimestamps FILE_SYSTEM = new LocalTimestamps() {
+    public long lastModified(StarTeamFilePoint filePoint) {
+      return filePoint.getFile().lastModified();
+    }
+  };
+
+  /**
+   * Receives the outcome of a merge from sorted iterators.
+   *
+   * @param <T> the type of the current file points
+   */
+  public interface Visitor<T extends StarTeamFilePoint> {
+    /**
+     * @param filePoint a current file point
+     * @param verdict   one of {@link #UNCHANGED}, {@link #CHANGED}, {@link #ROLLBACK} or {@link #ADDED}
+     */
+    void visit(T filePoint, byte verdict);
+
+    /**
+     * @param filePoint a historic file point that is no longer current
+     */
+    void removed(StarTeamFilePoint filePoint);
+  }
+
+  private final StarTeamFilePoint[] current;
+  private final StarTeamFilePoint[] historic;
+  private final LocalTimestamps timestamps;
+  private final byte[] verdicts;
+  private final boolean[] removed;
+
+  private StarTeamFilePointMerge(StarTeamFilePoint[] current, StarTeamFilePoint[] historic, LocalTimestamps timestamps) {
+    this.current = current;
+    this.historic = historic;
+    this.timestamps = timestamps;
+    this.verdicts = new byte[current.length];
+    this.removed = new boolean[historic.length];
+  }
+
+  /**
+   * Merge the file points.
+   *
+   * @param current    the current file points, sorted by {@link #FILE_POINT_ORDER}
+   * @param historic   the historic file points, sorted by {@link #FILE_POINT_ORDER}
+   * @param timestamps source of local modification times, consulted for files
+   *                   whose revision has not changed
+   * @return the merge, holding a verdict for every current file point and the
+   *         historic file points that were removed
+   */
+  public static StarTeamFilePointMerge merge(StarTeamFilePoint[] current, StarTeamFilePoint[] historic,
+                                             LocalTimestamps timestamps) {
+    StarTeamFilePointMerge merge = new StarTeamFilePointMerge(current, historic, timestamps);
+    if (current.length < PARALLEL_THRESHOLD) {
+      merge.merge(0, current.length, 0, historic.length);
+    } else {
+      int parallelism = Runtime.getRuntime().availableProcessors();
+      int chunks = Math.max(1, Math.min(parallelism * 4, current.length / (PARALLEL_THRESHOLD / 4)));
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      try {
+        pool.invoke(merge.new ChunkTask(0, chunks, chunks));
+      } finally {
+        pool.shutdown();
+      }
+    }
+    return merge;
+  }
+
+  /**
+   * Merge the file points in a single sequential pass, holding only the
+   * current pair of file points on the heap.
+   *
+   * @param current    the current file points, sorted by {@link #FILE_POINT_ORDER}
+   * @param historic   the historic file points, sorted by {@link #FILE_POINT_ORDER}
+   * @param timestamps source of local modification times, consulted for files
+   *                   whose revision has not changed
+   * @param visitor    receives the verdict of every current file point, and
+   *                   the historic file points that were removed, in path order
+   */
+  public static <T extends StarTeamFilePoint> void merge(Iterator<T> current,
+                                                         Iterator<? extends StarTeamFilePoint> historic,
+                                                         LocalTimestamps timestamps, Visitor<T> visitor) {
+    T c = current.hasNext() ? current.next() : null;
+    StarTeamFilePoint h = historic.hasNext() ? historic.next() : null;
+    while (c != null || h != null) {
+      int cmp;
+      if (c == null) {
+        cmp = 1;
+      } else if (h == null) {
+        cmp = -1;
+      } else {
+        cmp = FILE_POINT_ORDER.compare(c, h);
+      }
+      if (cmp < 0) {
+        visitor.visit(c, ADDED);
+        c = current.hasNext() ? current.next() : null;
+      } else if (cmp > 0) {
+        visitor.removed(h);
+        h = historic.hasNext() ? historic.next() : null;
+      } else {
+        visitor.visit(c, compare(c, h, timestamps));
+        // a path recorded twice in the historic file points counts once
+        do {
+          h = historic.hasNext() ? historic.next() : null;
+        } while (h != null && FILE_POINT_ORDER.compare(c, h) == 0);
+        c = current.hasNext() ? current.next() : null;
+      }
+    }
+  }
+
+  /**
+   * @param index position in the current file points
+   * @return one of {@link #UNCHANGED}, {@link #CHANGED}, {@link #ROLLBACK} or {@link #ADDED}
+   */
+  public byte getVerdict(int index) {
+    return verdicts[index];
+  }
+
+  /**
+   * @return the historic file points that are no longer current, in path order
+   */
+  public List<StarTeamFilePoint> getRemoved() {
+    List<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
+    for (int i = 0; i < removed.length; i++) {
+      if (removed[i]) {
+        result.add(historic[i]);
+      }
+    }
+    return result;
+  }
+
+  private void merge(int currentFrom, int currentTo, int historicFrom, int historicTo) {
+    int c = currentFrom;
+    int h = historicFrom;
+    while (c < currentTo || h < historicTo) {
+      int cmp;
+      if (c >= currentTo) {
+        cmp = 1;
+      } else if (h >= historicTo) {
+        cmp = -1;
+      } else {
+        cmp = FILE_POINT_ORDER.compare(current[c], historic[h]);
+      }
+      if (cmp < 0) {
+        verdicts[c++] = ADDED;
+      } else if (cmp > 0) {
+        removed[h++] = true;
+      } else {
+        verdicts[c] = compare(current[c], historic[h], timestamps);
+        c++;
+        h++;
+        // a path recorded twice in the historic file points counts once
+        while (h < historicTo && FILE_POINT_ORDER.compare(current[c - 1], historic[h]) == 0) {
+          h++;
+        }
+      }
+    }
+  }
+
+  private static byte compare(StarTeamFilePoint starteam, StarTeamFilePoint historic, LocalTimestamps timestamps) {
+    if (starteam.getRevisionNumber() > historic.getRevisionNumber()) {
+      return CHANGED;
+    } else if (starteam.getRevisionNumber() < historic.getRevisionNumber()) {
+      return ROLLBACK;
+    } else if (starteam.getLastModifyDate() == timestamps.lastModified(starteam)) {
+      return UNCHANGED;
+    }
+    return CHANGED;
+  }
+
+  /**
+   * @return the first position in the historic file points whose path is not
+   *         less than the path of the given current file point
+   */
+  private int lowerBound(StarTeamFilePoint key) {
+    int low = 0;
+    int high = historic.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (FILE_POINT_ORDER.compare(historic[middle], key) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Merges the chunks [from, to) out of the given number of chunks, each
+   * chunk covering an equal share of the current file points and the historic
+   * file points in the same path range.
+   */
+  private final class ChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final int chunks;
+
+    private ChunkTask(int from, int to, int chunks) {
+      this.from = from;
+      this.to = to;
+      this.chunks = chunks;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        int currentFrom = (int) ((long) current.length * from / chunks);
+        int currentTo = (int) ((long) current.length * to / chunks);
+        int historicFrom = from == 0 ? 0 : lowerBound(current[currentFrom]);
+        int historicTo = to == chunks ? historic.length : lowerBound(current[currentTo]);
+        merge(currentFrom, currentTo, historicFrom, historicTo);
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ChunkTask(from, middle, chunks), new ChunkTask(middle, to, chunks));
+      }
+    }
+  }
+}
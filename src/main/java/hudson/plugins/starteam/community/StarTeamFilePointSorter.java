@@ -0,0 +1,302 @@
+package hudson.plugins.starteam.community;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts file points by path within a bounded amount of heap.
+ * <p>
+ * File points are kept on the heap until their estimated size exceeds the
+ * heap budget; the buffered file points are then sorted and spilled as a run
+ * to a temporary file. Iterating merges the runs and the file points still on
+ * the heap, reading every run sequentially, so that a sorted pass over any
+ * number of file points needs the heap budget plus one read buffer per run.
+ * Every file point carries the position it was added at, so that it can be
+ * related back to its StarTeam file.
+ * <p>
+ * The heap budget in bytes (default 64 MB, 0 for no limit) can be set with
+ * the system property
+ * <code>hudson.plugins.starteam.community.StarTeamFilePointSorter.heapBudget</code>.
+ */
+public final class StarTeamFilePointSorter implements Iterable<StarTeamFilePointSorter.Entry>, Closeable {
+
+  private static final long HEAP_BUDGET = Long.getLong(StarTeamFilePointSorter.class.getName() + ".heapBudget",
+      64L * 1024 * 1024);
+
+  /**
+   * estimated heap taken by an entry besides the characters of its path
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+    public int compare(Entry o1, Entry o2) {
+      return StarTeamFilePointMerge.FILE_POINT_ORDER.compare(o1, o2);
+    }
+  };
+
+  private final long heapBudget;
+  private final java.io.File tempDir;
+  private final List<Run> runs = new ArrayList<Run>();
+  private final List<DataInputStream> openRuns = new ArrayList<DataInputStream>();
+  private List<Entry> buffer = new ArrayList<Entry>();
+  private long bufferSize;
+  private boolean sorted = true;
+  private int size;
+
+  /**
+   * Create a sorter with the configured heap budget, spilling to the
+   * temporary directory of the JVM.
+   */
+  public StarTeamFilePointSorter() {
+    this(HEAP_BUDGET, null);
+  }
+
+  /**
+   * @param heapBudget estimated bytes of file points to keep on the heap, 0
+   *                   to never spill
+   * @param tempDir    directory for the runs, null for the temporary
+   *                   directory of the JVM
+   */
+  StarTeamFilePointSorter(long heapBudget, java.io.File tempDir) {
+    this.heapBudget = heapBudget;
+    this.tempDir = tempDir;
+  }
+
+  /**
+   * A file point along with the position it was added at.
+   */
+  public static final class Entry extends StarTeamFilePoint {
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+
+    Entry(String fullFilePath, int revisionNumber, long lastModifyDate, int index) {
+      super(fullFilePath, revisionNumber, lastModifyDate);
+      this.index = index;
+    }
+
+    /**
+     * @return the position the file point was added at
+     */
+    public int getIndex() {
+      return index;
+    }
+  }
+
+  /**
+   * @param filePoint a file point
+   * @param index     the position of the file point, for instance in the list
+   *                  of StarTeam files it was made of
+   * @throws IOException if the file points on the heap cannot be spilled
+   */
+  public void add(StarTeamFilePoint filePoint, int index) throws IOException {
+    String path = filePoint.getFullfilepath();
+    buffer.add(new Entry(path, filePoint.getRevisionNumber(), filePoint.getLastModifyDate(), index));
+    bufferSize += ENTRY_OVERHEAD + 2L * path.length();
+    sorted = false;
+    size++;
+    if (heapBudget > 0 && bufferSize > heapBudget) {
+      spill();
+    }
+  }
+
+  /**
+   * @return the number of file points added
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return whether file points were spilled to disk
+   */
+  public boolean isSpilled() {
+    return !runs.isEmpty();
+  }
+
+  private void sortBuffer() {
+    if (!sorted) {
+      // stable, so file points with the same path keep the order they were added in
+      Collections.sort(buffer, ORDER);
+      sorted = true;
+    }
+  }
+
+  private void spill() throws IOException {
+    sortBuffer();
+    java.io.File file = java.io.File.createTempFile("starteam-filepoints", ".run", tempDir);
+    Run run = new Run(file, buffer.size());
+    runs.add(run);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    try {
+      for (Entry entry : buffer) {
+        byte[] path = entry.getFullfilepath().getBytes(UTF8);
+        out.writeInt(path.length);
+        out.write(path);
+        out.writeInt(entry.getRevisionNumber());
+        out.writeLong(entry.getLastModifyDate());
+        out.writeInt(entry.getIndex());
+      }
+    } finally {
+      out.close();
+    }
+    buffer = new ArrayList<Entry>();
+    bufferSize = 0;
+  }
+
+  /**
+   * Iterate the file points sorted by {@link StarTeamFilePointMerge#FILE_POINT_ORDER}.
+   * The sorter can be iterated any number of times, but not while file points
+   * are added.
+   *
+   * @return the file points in path order
+   */
+  public Iterator<Entry> iterator() {
+    sortBuffer();
+    if (runs.isEmpty()) {
+      return Collections.unmodifiableList(buffer).iterator();
+    }
+    final PriorityQueue<Source> sources = new PriorityQueue<Source>();
+    try {
+      for (int i = 0; i < runs.size(); i++) {
+        Source source = new Source(i, runs.get(i));
+        if (source.advance()) {
+          sources.add(source);
+        }
+      }
+      Source memory = new Source(runs.size(), buffer.iterator());
+      if (memory.advance()) {
+        sources.add(memory);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read spilled StarTeam file points", e);
+    }
+    return new Iterator<Entry>() {
+      public boolean hasNext() {
+        return !sources.isEmpty();
+      }
+
+      public Entry next() {
+        Source source = sources.poll();
+        if (source == null) {
+          throw new NoSuchElementException();
+        }
+        Entry result = source.head;
+        try {
+          if (source.advance()) {
+            sources.add(source);
+          }
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to read spilled StarTeam file points", e);
+        }
+        return result;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Delete the spilled runs.
+   */
+  public void close() {
+    for (DataInputStream in : openRuns) {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // ignore, the run is deleted anyway
+      }
+    }
+    openRuns.clear();
+    for (Run run : runs) {
+      run.file.delete();
+    }
+    runs.clear();
+    buffer = new ArrayList<Entry>();
+    bufferSize = 0;
+    size = 0;
+  }
+
+  private static final class Run {
+    private final java.io.File file;
+    private final int count;
+
+    private Run(java.io.File file, int count) {
+      this.file = file;
+      this.count = count;
+    }
+  }
+
+  /**
+   * A run, or the file points on the heap, positioned at its smallest file
+   * point not yet returned.
+   */
+  private final class Source implements Comparable<Source> {
+    private final int ordinal;
+    private final Iterator<Entry> memory;
+    private final DataInputStream in;
+    private int remaining;
+    private Entry head;
+
+    private Source(int ordinal, Run run) throws IOException {
+      this.ordinal = ordinal;
+      this.memory = null;
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), BUFFER_SIZE));
+      this.remaining = run.count;
+      openRuns.add(in);
+    }
+
+    private Source(int ordinal, Iterator<Entry> memory) {
+      this.ordinal = ordinal;
+      this.memory = memory;
+      this.in = null;
+    }
+
+    /**
+     * @return whether there is a next file point
+     */
+    private boolean advance() throws IOException {
+      if (memory != null) {
+        head = memory.hasNext() ? memory.next() : null;
+        return head != null;
+      }
+      if (remaining == 0) {
+        head = null;
+        in.close();
+        openRuns.remove(in);
+        return false;
+      }
+      remaining--;
+      byte[] path = new byte[in.readInt()];
+      in.readFully(path);
+      head = new Entry(new String(path, UTF8), in.readInt(), in.readLong(), in.readInt());
+      return true;
+    }
+
+    public int compareTo(Source other) {
+      int result = ORDER.compare(head, other.head);
+      // earlier runs hold the file points added first
+      return result != 0 ? result : ordinal - other.ordinal;
+    }
+  }
+}
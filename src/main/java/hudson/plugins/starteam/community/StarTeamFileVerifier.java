@@ -0,0 +1,221 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.util.MD5;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies in parallel whether local files are identical to their StarTeam
+ * counterparts, for builds that have no historic file points to compare with.
+ * Files whose size and modification time are unchanged since their MD5 was
+ * last recorded in the {@link StarTeamWorkspaceIndex} are not read at all.
+ * <p>
+ * A local file is up to date when it exists and either its modification time
+ * equals the content modification time in StarTeam, or its MD5 equals the MD5
+ * stored in StarTeam. Files are hashed on a bounded fork-join pool with large
+ * channel reads into a direct buffer per thread. The number of threads (default: the
+ * number of processors, at most 8) can be set with the system property
+ * <code>hudson.plugins.starteam.community.StarTeamFileVerifier.threads</code>.
+ */
+public final class StarTeamFileVerifier {
+
+  private static final int THREADS = Integer.getInteger(StarTeamFileVerifier.class.getName() + ".threads",
+      Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * number of files verified by one task before it stops splitting
+   */
+  private static final int BATCH_SIZE = 64;
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+  };
+
+  private StarTeamFileVerifier() {
+    throw new InstantiationError();
+  }
+
+  /**
+   * What StarTeam knows about a file, captured on the calling thread since the
+   * StarTeam SDK objects must not be used concurrently.
+   */
+  public static final class Candidate {
+    private final java.io.File localFile;
+    private final boolean scanned;
+    private final StarTeamWorkspaceScan.Attributes localAttributes;
+    private final long contentModifiedTime;
+    private final MD5 md5;
+
+    /**
+     * A candidate whose local file is statted when verified.
+     */
+    public Candidate(java.io.File localFile, long contentModifiedTime, MD5 md5) {
+      this(localFile, false, null, contentModifiedTime, md5);
+    }
+
+    /**
+     * A candidate whose local file was already scanned.
+     *
+     * @param localAttributes the scanned attributes of the local file, or null
+     *                        if the scan did not find it
+     */
+    public Candidate(java.io.File localFile, StarTeamWorkspaceScan.Attributes localAttributes,
+                     long contentModifiedTime, MD5 md5) {
+      this(localFile, true, localAttributes, contentModifiedTime, md5);
+    }
+
+    private Candidate(java.io.File localFile, boolean scanned, StarTeamWorkspaceScan.Attributes localAttributes,
+                      long contentModifiedTime, MD5 md5) {
+      this.localFile = localFile;
+      this.scanned = scanned;
+      this.localAttributes = localAttributes;
+      this.contentModifiedTime = contentModifiedTime;
+      this.md5 = md5;
+    }
+
+    public java.io.File getLocalFile() {
+      return localFile;
+    }
+  }
+
+  /**
+   * Verify the given files.
+   *
+   * @param candidates the files to verify
+   * @param index      the content index of the workspace, answering for files
+   *                   whose size and modification time have not changed, and
+   *                   updated with the files that had to be hashed
+   * @return for each candidate, in the same order, null if the local file is
+   *         up to date, otherwise the MD5 of the local file, or an empty
+   *         string if the local file does not exist or cannot be read.
+   */
+  public static String[] verify(final List<Candidate> candidates, final StarTeamWorkspaceIndex index) {
+    final String[] verdicts = new String[candidates.size()];
+    if (candidates.isEmpty()) {
+      return verdicts;
+    }
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, THREADS));
+    try {
+      pool.invoke(new VerifyTask(candidates, index, verdicts, 0, candidates.size()));
+    } finally {
+      pool.shutdown();
+    }
+    return verdicts;
+  }
+
+  static String verify(Candidate candidate, StarTeamWorkspaceIndex index) {
+    java.io.File localFile = candidate.localFile;
+    long lastModified;
+    if (candidate.scanned) {
+      if (candidate.localAttributes == null) {
+        return "";
+      }
+      lastModified = candidate.localAttributes.getLastModified();
+    } else {
+      lastModified = localFile.lastModified();
+      if (lastModified == 0L && !localFile.exists()) {
+        return "";
+      }
+    }
+    if (candidate.contentModifiedTime == lastModified) {
+      return null;
+    }
+    long size = candidate.scanned ? candidate.localAttributes.getSize() : localFile.length();
+    String starTeamMD5 = candidate.md5 == null ? null : candidate.md5.toString();
+    String indexedMD5 = index == null ? null : index.lookup(localFile, size, lastModified);
+    if (indexedMD5 != null) {
+      return indexedMD5.equals(starTeamMD5) ? null : indexedMD5;
+    }
+    byte[] digest;
+    try {
+      digest = md5(localFile);
+    } catch (IOException e) {
+      return "";
+    }
+    MD5 localFileMD5 = new MD5(digest);
+    if (index != null) {
+      index.record(localFile, size, lastModified, localFileMD5.toString());
+    }
+    if (candidate.md5 != null && candidate.md5.equals(localFileMD5)) {
+      return null;
+    }
+    return localFileMD5.toString();
+  }
+
+  /**
+   * @param file a local file
+   * @return the MD5 digest of the file's content
+   * @throws IOException if the file cannot be read
+   */
+  static byte[] md5(java.io.File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      // never mapped: a mapped file cannot be replaced or deleted on Windows
+      // until the mapping is garbage collected, and checkOut replaces exactly
+      // the files found to differ
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = BUFFERS.get();
+      buffer.clear();
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    } finally {
+      in.close();
+    }
+    return digest.digest();
+  }
+
+  private static final class VerifyTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Candidate> candidates;
+    private final StarTeamWorkspaceIndex index;
+    private final String[] verdicts;
+    private final int from;
+    private final int to;
+
+    private VerifyTask(List<Candidate> candidates, StarTeamWorkspaceIndex index, String[] verdicts, int from, int to) {
+      this.candidates = candidates;
+      this.index = index;
+      this.verdicts = verdicts;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH_SIZE) {
+        // every task writes its own slots only, so no locking is needed; the
+        // results are visible to the caller once the pool has joined the task
+        for (int i = from; i < to; i++) {
+          verdicts[i] = verify(candidates.get(i), index);
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new VerifyTask(candidates, index, verdicts, from, middle),
+            new VerifyTask(candidates, index, verdicts, middle, to));
+      }
+    }
+  }
+}
@@ -13,13 +13,20 @@ public class StarTeamFunctions {
 
   /**
    * Find the given folder in the given view.
+   * <p>
+   * The folder is resolved by descending the folder tree one path segment at a
+   * time, and the resolved folder ID is cached per view in the
+   * {@link StarTeamResolutionCache}, so the lookup costs a few round trips
+   * regardless of the size of the view.
    *
    * @param view       The view to look in.
    * @param foldername The view-relative path of the folder to look for.
+   * @param serverKey  The server and user the view was opened with, see
+   *                   {@link StarTeamResolutionCache#serverKey(String, int, String)}.
    * @return The folder or null if a folder by the given name was not found.
    * @throws StarTeamSCMException
    */
-  public static Folder findFolderInView(final View view, final String foldername)
+  public static Folder findFolderInView(final View view, final String foldername, final String serverKey)
       throws StarTeamSCMException {
     // Check the root folder of the view
     if (view.getName().equalsIgnoreCase(foldername)) {
@@ -29,19 +36,86 @@ public class StarTeamFunctions {
     // Create a File object with the folder name for system-
     // independent matching
     java.io.File thefolder = new java.io.File(foldername.toLowerCase());
+    String hierarchy = thefolder.getPath() + java.io.File.separator;
 
-    // Search for the folder in subfolders
-    Folder result = findFolderInView(view.getRootFolder(), thefolder);
+    Server server = view.getProject().getServer();
+    StarTeamResolutionCache cache = StarTeamResolutionCache.getInstance();
+    String key = StarTeamResolutionCache.folderKey(serverKey, view.getID(), hierarchy);
+    Integer id = cache.get(key);
+    if (id != null) {
+      Folder cached = null;
+      try {
+        cached = (Folder) view.findItem(server.getTypes().FOLDER, id);
+      } catch (RuntimeException e) {
+        // stale ID, resolve by path below
+      }
+      if (cached != null && cached.getFolderHierarchy().equalsIgnoreCase(hierarchy)) {
+        return cached;
+      }
+      cache.invalidate(key);
+    }
+
+    Folder result = findFolderByPath(view.getRootFolder(), splitFolderPath(foldername), hierarchy);
+    if (result == null) {
+      // Search for the folder in subfolders
+      result = findFolderInView(view.getRootFolder(), thefolder);
+    }
     if (result == null) {
       throw new StarTeamSCMException("Couldn't find folder " + foldername
           + " in view " + view.getName());
     }
+    cache.put(key, result.getID());
+    return result;
+  }
+
+  /**
+   * Descend from the root folder one path segment at a time. The first segment
+   * is the name of the root folder itself.
+   *
+   * @param root      the root folder of the view
+   * @param segments  the path segments of the folder to look for
+   * @param hierarchy the expected folder hierarchy of the folder
+   * @return the folder, or null if the path does not lead to it
+   */
+  private static Folder findFolderByPath(Folder root, List<String> segments, String hierarchy) {
+    if (segments.isEmpty() || !root.getName().equalsIgnoreCase(segments.get(0))) {
+      return null;
+    }
+    Folder current = root;
+    for (String segment : segments.subList(1, segments.size())) {
+      Folder next = null;
+      for (Folder f : current.getSubFolders()) {
+        if (f.getName().equalsIgnoreCase(segment)) {
+          next = f;
+          break;
+        }
+      }
+      if (next == null) {
+        return null;
+      }
+      current = next;
+    }
+    if (!current.getFolderHierarchy().equalsIgnoreCase(hierarchy)) {
+      return null;
+    }
+    return current;
+  }
+
+  static List<String> splitFolderPath(String foldername) {
+    List<String> result = new ArrayList<String>();
+    for (String segment : foldername.split("[/\\\\]")) {
+      if (segment.length() > 0) {
+        result.add(segment);
+      }
+    }
     return result;
   }
 
   /**
    * Do a breadth-first search for a folder with the given name, starting with
-   * children of the provided folder.
+   * children of the provided folder. Only used when the folder cannot be found
+   * by its path, e.g. when the configured name does not start with the name of
+   * the root folder.
    *
    * @param folder    the folder whose children to check
    * @param thefolder the folder to look for
@@ -75,8 +149,8 @@ public class StarTeamFunctions {
     return null;
   }
 
-  public static Collection<File> listAllFiles(Map<String, Folder> rootFolderMap, java.io.File workspace) {
-    Collection<File> result = new ArrayList<File>();
+  public static List<File> listAllFiles(Map<String, Folder> rootFolderMap, java.io.File workspace) {
+    List<File> result = new ArrayList<File>();
 
     for (Map.Entry<String, Folder> f : rootFolderMap.entrySet()) {
       result.addAll(listAllFiles(f.getValue(), workspace));
@@ -85,8 +159,8 @@ public class StarTeamFunctions {
     return result;
   }
 
-  public static Collection<File> listAllFiles(Folder rootFolder, java.io.File workspace) {
-    Collection<File> result = new ArrayList<File>();
+  public static List<File> listAllFiles(Folder rootFolder, java.io.File workspace) {
+    List<File> result = new ArrayList<File>();
     // set root folder
     String alternatePath = rootFolder.getAlternatePathFragment();
     if (alternatePath == null) {
@@ -120,6 +194,40 @@ public class StarTeamFunctions {
     }
   }
 
+  /**
+   * @param rootFolder a root folder whose alternate path fragment has been set,
+   *                   see {@link #listAllFiles(Folder, java.io.File)}
+   * @return the local directories of the root folder and all its sub folders
+   */
+  public static Collection<java.io.File> listAllFolderPaths(Folder rootFolder) {
+    Collection<java.io.File> result = new ArrayList<java.io.File>();
+    listAllFolderPaths(result, rootFolder);
+    return result;
+  }
+
+  private static void listAllFolderPaths(Collection<java.io.File> result, Folder folder) {
+    result.add(new java.io.File(folder.getPath()));
+    for (Folder f : folder.getSubFolders()) {
+      listAllFolderPaths(result, f);
+    }
+  }
+
+  /**
+   * @param patterns patterns, one per line
+   * @return the non blank patterns, trimmed
+   */
+  public static List<String> splitPatterns(String patterns) {
+    List<String> result = new ArrayList<String>();
+    if (patterns != null) {
+      for (String line : patterns.split("\n")) {
+        String pattern = StringUtils.trimToNull(line);
+        if (pattern != null) {
+          result.add(pattern);
+        }
+      }
+    }
+    return result;
+  }
 
   public static Map<String, String> splitCsvString(String multiplefolder) {
     Map<String, String> folderMap = new HashMap<String, String>();
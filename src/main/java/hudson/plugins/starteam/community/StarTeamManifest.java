@@ -0,0 +1,478 @@
+package hudson.plugins.starteam.community;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The file points of a binary manifest, see {@link StarTeamManifestWriter} for
+ * the format, decoded on demand.
+ * <p>
+ * A manifest file is read to the heap once, inflated if it is compressed, and
+ * is never memory-mapped, so that it does not keep its file, or the build
+ * directory holding it, locked on Windows. Entries are only decoded while iterating, in path order, or
+ * around the restart point found by a binary search when looking up a single
+ * path, so a manifest of any size can be queried without deserializing it. A
+ * manifest is serialized as its encoded body, which keeps it compact when it
+ * is sent to an agent.
+ * <p>
+ * A manifest loaded from a build remembers the build directory it belongs to
+ * and how many deltas were applied to reconstruct it, see
+ * {@link StarTeamManifestDelta}.
+ * <p>
+ * The paths of a relative manifest are relative to the work folder they were
+ * checked out to, and are only resolved once the manifest is
+ * {@link #relocate(String) relocated} to a work folder, so that the file
+ * points can be compared with any workspace on any agent.
+ */
+public final class StarTeamManifest extends AbstractCollection<StarTeamFilePoint> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  static final int MAGIC = 0x53544650; // STFP
+  static final int VERSION = 1;
+  static final int FLAG_DEFLATE = 1;
+  static final int FLAG_RELATIVE = 2;
+  static final int RESTART_INTERVAL = 16;
+
+  /**
+   * restart point offset, entry count, sorted flag and checksum
+   */
+  static final int TRAILER_SIZE = 4 + 4 + 1 + 4;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private String buildDirName;
+  private int chainLength;
+  private boolean relative;
+  private String root = "";
+  private int stripped;
+
+  private transient ByteBuffer body;
+  private transient String base;
+  private transient String prefix;
+  private transient int firstEntry;
+  private transient int restartTable;
+  private transient int restartCount;
+  private transient int count;
+  private transient boolean sorted;
+
+  private StarTeamManifest(ByteBuffer body, boolean relative) throws IOException {
+    this.relative = relative;
+    parse(body);
+  }
+
+  private StarTeamManifest(StarTeamManifest manifest, String root, int stripped) {
+    this.buildDirName = manifest.buildDirName;
+    this.chainLength = manifest.chainLength;
+    this.relative = manifest.relative;
+    this.root = root;
+    this.stripped = stripped;
+    this.body = manifest.body;
+    this.base = manifest.base;
+    this.firstEntry = manifest.firstEntry;
+    this.restartTable = manifest.restartTable;
+    this.restartCount = manifest.restartCount;
+    this.count = manifest.count;
+    this.sorted = manifest.sorted;
+    this.prefix = root + base.substring(stripped);
+  }
+
+  /**
+   * @param file a file
+   * @return whether the file starts like a binary manifest
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isManifest(java.io.File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Open a manifest file.
+   *
+   * @param file a binary manifest
+   * @return the manifest
+   * @throws IOException if the manifest cannot be read or is corrupted
+   */
+  public static StarTeamManifest open(java.io.File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(6);
+      readFully(channel, header);
+      header.flip();
+      int flags = checkHeader(header);
+      boolean relative = (flags & FLAG_RELATIVE) != 0;
+      if ((flags & FLAG_DEFLATE) != 0) {
+        return new StarTeamManifest(inflate(in), relative);
+      }
+      long size = channel.size() - 6;
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("StarTeam file point manifest " + file + " is too large");
+      }
+      ByteBuffer body = ByteBuffer.allocate((int) size);
+      readFully(channel, body);
+      body.flip();
+      return new StarTeamManifest(body, relative);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+      // fill the buffer
+    }
+  }
+
+  /**
+   * Read a manifest from a stream.
+   *
+   * @param stream a binary manifest, positioned at its start
+   * @return the manifest
+   * @throws IOException if the manifest cannot be read or is corrupted
+   */
+  public static StarTeamManifest read(InputStream stream) throws IOException {
+    byte[] header = new byte[6];
+    new DataInputStream(stream).readFully(header);
+    int flags = checkHeader(ByteBuffer.wrap(header));
+    boolean relative = (flags & FLAG_RELATIVE) != 0;
+    if ((flags & FLAG_DEFLATE) != 0) {
+      return new StarTeamManifest(inflate(stream), relative);
+    }
+    return new StarTeamManifest(ByteBuffer.wrap(readFully(stream)), relative);
+  }
+
+  private static int checkHeader(ByteBuffer header) throws IOException {
+    if (header.remaining() < 6 || header.getInt(0) != MAGIC) {
+      throw new IOException("Not a StarTeam file point manifest");
+    }
+    int version = header.get(4) & 0xFF;
+    if (version != VERSION) {
+      throw new IOException("Unsupported StarTeam file point manifest version " + version);
+    }
+    return header.get(5) & 0xFF;
+  }
+
+  private static ByteBuffer inflate(InputStream in) throws IOException {
+    return ByteBuffer.wrap(readFully(new InflaterInputStream(in)));
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+    byte[] buffer = new byte[64 * 1024];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private void parse(ByteBuffer buffer) throws IOException {
+    int length = buffer.limit();
+    if (length < TRAILER_SIZE + 5) {
+      throw new IOException("Truncated StarTeam file point manifest");
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer checked = buffer.duplicate();
+    checked.limit(length - 4);
+    crc.update(checked);
+    if ((int) crc.getValue() != buffer.getInt(length - 4)) {
+      throw new IOException("Corrupted StarTeam file point manifest");
+    }
+    this.body = buffer;
+    this.restartTable = buffer.getInt(length - TRAILER_SIZE);
+    this.count = buffer.getInt(length - TRAILER_SIZE + 4);
+    this.sorted = buffer.get(length - TRAILER_SIZE + 8) != 0;
+    if (restartTable < 0 || restartTable > length - TRAILER_SIZE - 4) {
+      throw new IOException("Corrupted StarTeam file point manifest");
+    }
+    this.restartCount = buffer.getInt(restartTable);
+    if (restartCount != (count + RESTART_INTERVAL - 1) / RESTART_INTERVAL) {
+      throw new IOException("Corrupted StarTeam file point manifest");
+    }
+    int[] position = {0};
+    int baseLength = (int) readVarint(position);
+    this.base = new String(bytes(position[0], baseLength), UTF8);
+    this.firstEntry = position[0] + baseLength;
+    this.prefix = root + base.substring(stripped);
+  }
+
+  /**
+   * @return the name of the build directory the manifest was loaded from, or
+   *         null if it does not belong to a build
+   */
+  public String getBuildDirName() {
+    return buildDirName;
+  }
+
+  /**
+   * @return the number of deltas the manifest was reconstructed from, 0 if
+   *         it was stored in full
+   */
+  public int getChainLength() {
+    return chainLength;
+  }
+
+  void setSource(String buildDirName, int chainLength) {
+    this.buildDirName = buildDirName;
+    this.chainLength = chainLength;
+  }
+
+  /**
+   * @return the size of the encoded body in bytes
+   */
+  public int getEncodedSize() {
+    return body.limit();
+  }
+
+  /**
+   * @return whether the paths are stored relative to the work folder
+   */
+  public boolean isRelative() {
+    return relative;
+  }
+
+  /**
+   * @return the work folder the paths are resolved against, with a trailing
+   *         separator, or an empty string if they are not resolved
+   */
+  public String getRoot() {
+    return root;
+  }
+
+  /**
+   * @param root a work folder, with a trailing separator
+   * @return a view of a relative manifest whose paths are resolved against
+   *         the work folder, or this manifest if its paths are absolute
+   */
+  public StarTeamManifest relocate(String root) {
+    if (!relative) {
+      return this;
+    }
+    return new StarTeamManifest(this, root, 0);
+  }
+
+  /**
+   * Move the paths of a manifest stored with absolute paths by an older
+   * version of the plugin to another work folder.
+   *
+   * @param oldRoot the work folder the files were checked out to, with a
+   *                trailing separator
+   * @param newRoot a work folder, with a trailing separator
+   * @return a view of the manifest whose paths within the old work folder are
+   *         within the new one, or this manifest if that is not possible
+   */
+  public StarTeamManifest rebase(String oldRoot, String newRoot) {
+    if (relative) {
+      return relocate(newRoot);
+    }
+    if (root.length() > 0 || stripped > 0 || !base.startsWith(oldRoot)) {
+      return this;
+    }
+    return new StarTeamManifest(this, newRoot, oldRoot.length());
+  }
+
+  /**
+   * @return the path all file point paths start with
+   */
+  public String getBase() {
+    return prefix;
+  }
+
+  /**
+   * @return whether the entries are in path order, see
+   *         {@link StarTeamFilePointMerge#FILE_POINT_ORDER}
+   */
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return the file points, in the order they were written
+   */
+  @Override
+  public Iterator<StarTeamFilePoint> iterator() {
+    final Cursor cursor = new Cursor(firstEntry, 0);
+    return new Iterator<StarTeamFilePoint>() {
+      public boolean hasNext() {
+        return cursor.index < count;
+      }
+
+      public StarTeamFilePoint next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        cursor.next();
+        return cursor.filePoint();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Look up the file point of a path.
+   *
+   * @param path the full path of a file
+   * @return the file point of the file, or null if the manifest has none
+   */
+  public StarTeamFilePoint lookup(String path) {
+    if (!path.startsWith(prefix)) {
+      return null;
+    }
+    String key = path.substring(prefix.length());
+    int from = 0;
+    int to = restartCount;
+    if (sorted) {
+      // find the last restart point whose key is not after the key
+      int low = 0;
+      int high = restartCount - 1;
+      int found = -1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        Cursor cursor = new Cursor(restartOffset(middle), middle * RESTART_INTERVAL);
+        cursor.next();
+        if (StarTeamFilePointMerge.PATH_ORDER.compare(cursor.key(), key) <= 0) {
+          found = middle;
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+      if (found < 0) {
+        return null;
+      }
+      from = found;
+      to = found + 1;
+    }
+    Cursor cursor = new Cursor(restartOffset(from), from * RESTART_INTERVAL);
+    int end = Math.min(count, to * RESTART_INTERVAL);
+    while (cursor.index < end) {
+      cursor.next();
+      if (cursor.key().equals(key)) {
+        return cursor.filePoint();
+      }
+    }
+    return null;
+  }
+
+  private int restartOffset(int restart) {
+    return body.getInt(restartTable + 4 + restart * 4);
+  }
+
+  private long readVarint(int[] position) {
+    long value = 0L;
+    for (int shift = 0; ; shift += 7) {
+      int b = body.get(position[0]++);
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private byte[] bytes(int position, int length) {
+    byte[] result = new byte[length];
+    ByteBuffer view = body.duplicate();
+    view.position(position);
+    view.get(result);
+    return result;
+  }
+
+  /**
+   * Decodes entries sequentially from a restart point.
+   */
+  private final class Cursor {
+    private final int[] position;
+    private int index;
+    private byte[] key = new byte[256];
+    private int keyLength;
+    private int revision;
+    private long modified;
+
+    private Cursor(int offset, int index) {
+      this.position = new int[]{offset};
+      this.index = index;
+    }
+
+    private void next() {
+      int suffix = (int) readVarint(position) - 1;
+      int shared = (int) readVarint(position);
+      if (index % RESTART_INTERVAL == 0) {
+        modified = 0L;
+      }
+      if (shared + suffix > key.length) {
+        key = Arrays.copyOf(key, Math.max(key.length * 2, shared + suffix));
+      }
+      ByteBuffer view = body.duplicate();
+      view.position(position[0]);
+      view.get(key, shared, suffix);
+      position[0] += suffix;
+      keyLength = shared + suffix;
+      revision = (int) unzigzag(readVarint(position));
+      modified += unzigzag(readVarint(position));
+      index++;
+    }
+
+    private String key() {
+      return new String(key, 0, keyLength, UTF8);
+    }
+
+    private StarTeamFilePoint filePoint() {
+      return new StarTeamFilePoint(prefix + key(), revision, modified);
+    }
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    byte[] buffer = new byte[64 * 1024];
+    ByteBuffer view = body.duplicate();
+    view.position(0);
+    out.writeInt(view.remaining());
+    while (view.hasRemaining()) {
+      int length = Math.min(buffer.length, view.remaining());
+      view.get(buffer, 0, length);
+      out.write(buffer, 0, length);
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    parse(ByteBuffer.wrap(bytes));
+  }
+}
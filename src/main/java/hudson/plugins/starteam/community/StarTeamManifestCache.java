@@ -0,0 +1,172 @@
+package hudson.plugins.starteam.community;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the file points of builds on the controller.
+ * <p>
+ * The file points of a build never change once it completed, yet polling
+ * loads those of the last build every time. Loaded file points are remembered
+ * here by the path of their file and reused as long as the file keeps its
+ * modification time and length.
+ * <p>
+ * The cache is bounded by the estimated heap size of its entries and evicts
+ * the least recently used ones first. The bound (in bytes, default 64MB) can be set with the
+ * system property
+ * <code>hudson.plugins.starteam.community.StarTeamManifestCache.maxSize</code>.
+ */
+public final class StarTeamManifestCache {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamManifestCache.class.getName());
+
+  /**
+   * estimated heap size of a file point besides the characters of its path
+   */
+  private static final int FILE_POINT_OVERHEAD = 96;
+
+  private static final StarTeamManifestCache INSTANCE = new StarTeamManifestCache(
+      Long.getLong(StarTeamManifestCache.class.getName() + ".maxSize", 64L * 1024 * 1024));
+
+  private final long maxSize;
+
+  private final Map<String, Manifest> entries = new LinkedHashMap<String, Manifest>(16, 0.75f, true);
+
+  private long size;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  StarTeamManifestCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public static StarTeamManifestCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Load file points, see {@link StarTeamFilePointFunctions#loadCollection(File)},
+   * unless they are cached.
+   *
+   * @param file a file holding file points
+   * @return the file points, which must not be modified
+   * @throws IOException if the file cannot be read
+   */
+  public Collection<StarTeamFilePoint> load(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+    synchronized (this) {
+      Manifest entry = entries.get(key);
+      if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+        hits++;
+        return entry.filePoints;
+      }
+      if (entry != null) {
+        remove(key);
+      }
+      misses++;
+    }
+    Collection<StarTeamFilePoint> filePoints = StarTeamFilePointFunctions.loadCollection(file);
+    long estimatedSize;
+    if (filePoints instanceof StarTeamManifest) {
+      estimatedSize = ((StarTeamManifest) filePoints).getEncodedSize();
+    } else {
+      filePoints = Collections.unmodifiableCollection(new ArrayList<StarTeamFilePoint>(filePoints));
+      estimatedSize = 0L;
+      for (StarTeamFilePoint filePoint : filePoints) {
+        estimatedSize += FILE_POINT_OVERHEAD + 2L * filePoint.getFullfilepath().length();
+      }
+    }
+    synchronized (this) {
+      if (estimatedSize <= maxSize) {
+        remove(key);
+        entries.put(key, new Manifest(filePoints, lastModified, length, estimatedSize));
+        size += estimatedSize;
+        evict();
+      }
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Loaded StarTeam file points of " + file + ", " + this);
+      }
+    }
+    return filePoints;
+  }
+
+  private void remove(String key) {
+    Manifest entry = entries.remove(key);
+    if (entry != null) {
+      size -= entry.estimatedSize;
+    }
+  }
+
+  private void evict() {
+    Iterator<Manifest> it = entries.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      size -= it.next().estimatedSize;
+      it.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    size = 0L;
+  }
+
+  /**
+   * @return the number of loads answered from the cache
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return the number of loads that read the file
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * @return the number of entries evicted to stay within the size bound
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * @return the estimated heap size of the cached file points in bytes
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "StarTeam file point cache: " + entries.size() + " entries, " + size + " of " + maxSize
+        + " bytes, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+  }
+
+  private static final class Manifest {
+    private final Collection<StarTeamFilePoint> filePoints;
+    private final long lastModified;
+    private final long length;
+    private final long estimatedSize;
+
+    private Manifest(Collection<StarTeamFilePoint> filePoints, long lastModified, long length, long estimatedSize) {
+      this.filePoints = filePoints;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.estimatedSize = estimatedSize;
+    }
+  }
+}
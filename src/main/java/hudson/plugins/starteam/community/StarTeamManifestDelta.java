@@ -0,0 +1,362 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * File points of a build stored as the differences to the file points of a
+ * previous build.
+ * <p>
+ * A delta starts with its own magic number, a version, the name of the build
+ * directory of the base build and the length of the chain of deltas down to
+ * the last full manifest. A manifest of the changed file points follows, see
+ * {@link StarTeamManifestWriter}, holding the new or changed file points and
+ * the paths of the removed ones, marked with the revision {@link #REMOVED}.
+ * <p>
+ * Every {@link #CHECKPOINT_INTERVAL}th build stores a full manifest again, so
+ * that a snapshot is reconstructed from a bounded number of deltas. The
+ * interval (default 10) can be set with the system property
+ * <code>hudson.plugins.starteam.community.StarTeamManifestDelta.checkpointInterval</code>.
+ * <p>
+ * A build whose delta is stored records itself in the directory of its base
+ * build, see {@link #recordDependent(java.io.File)}. Before a build is
+ * deleted, e.g. by log rotation, the builds recorded there are stored as full
+ * manifests, see {@link #rebaseDependents(java.io.File)}, so that no chain
+ * goes through a deleted build. A chain whose base is gone anyway, e.g. because a build
+ * directory was removed by hand, yields no file points, and the next build
+ * stores a full manifest again.
+ */
+public final class StarTeamManifestDelta {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamManifestDelta.class.getName());
+
+  static final int MAGIC = 0x53544644; // STFD
+  static final int VERSION = 1;
+
+  /**
+   * revision of the entries of removed files
+   */
+  static final int REMOVED = Integer.MIN_VALUE;
+
+  static final int CHECKPOINT_INTERVAL = Math.max(1, Integer.getInteger(
+      StarTeamManifestDelta.class.getName() + ".checkpointInterval", 10));
+
+  private StarTeamManifestDelta() {
+    throw new InstantiationError();
+  }
+
+  /**
+   * @param file a file
+   * @return whether the file starts like a delta
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isDelta(java.io.File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param previous the file points of the previous build
+   * @return whether the file points of the next build can be stored as a
+   *         delta to the previous ones
+   */
+  public static boolean canStoreDelta(Object previous) {
+    if (!(previous instanceof StarTeamManifest)) {
+      return false;
+    }
+    StarTeamManifest manifest = (StarTeamManifest) previous;
+    return manifest.getBuildDirName() != null && manifest.isSorted()
+        && manifest.getChainLength() + 1 < CHECKPOINT_INTERVAL;
+  }
+
+  /**
+   * Store file points as a delta, streaming the changes to the stream as
+   * they are found.
+   *
+   * @param out         the stream to write to, closed when done
+   * @param current     the file points to store, sorted by
+   *                    {@link StarTeamFilePointMerge#FILE_POINT_ORDER}
+   * @param currentBase a path all current file point paths start with
+   * @param root        the work folder, with a trailing separator, the paths
+   *                    are stored relative to, or null to store them as they
+   *                    are; the previous file points must be resolved against
+   *                    the same work folder
+   * @param previous    the file points of the base build, see
+   *                    {@link #canStoreDelta(Object)}
+   * @param compress    whether to deflate the delta
+   * @throws IOException if the delta cannot be written
+   */
+  public static void store(OutputStream out, Iterable<StarTeamFilePoint> current, String currentBase, String root,
+                           StarTeamManifest previous, boolean compress) throws IOException {
+    DataOutputStream header = new DataOutputStream(out);
+    header.writeInt(MAGIC);
+    header.writeByte(VERSION);
+    header.writeUTF(previous.getBuildDirName());
+    header.writeInt(previous.getChainLength() + 1);
+    String base = StarTeamManifestWriter.commonBase(Arrays.asList(currentBase, previous.getBase()));
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(out, root,
+        root == null ? base : base.substring(root.length()), compress);
+    try {
+      Iterator<StarTeamFilePoint> historic = previous.iterator();
+      StarTeamFilePoint h = historic.hasNext() ? historic.next() : null;
+      for (StarTeamFilePoint c : current) {
+        while (h != null && StarTeamFilePointMerge.FILE_POINT_ORDER.compare(h, c) < 0) {
+          writer.write(new StarTeamFilePoint(h.getFullfilepath(), REMOVED, 0L));
+          h = historic.hasNext() ? historic.next() : null;
+        }
+        if (h != null && StarTeamFilePointMerge.FILE_POINT_ORDER.compare(h, c) == 0) {
+          if (h.getRevisionNumber() != c.getRevisionNumber() || h.getLastModifyDate() != c.getLastModifyDate()) {
+            writer.write(c);
+          }
+          h = historic.hasNext() ? historic.next() : null;
+        } else {
+          writer.write(c);
+        }
+      }
+      for (; h != null; h = historic.hasNext() ? historic.next() : null) {
+        writer.write(new StarTeamFilePoint(h.getFullfilepath(), REMOVED, 0L));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Reconstruct the file points of a build stored as a delta, following the
+   * chain of deltas through the sibling build directories.
+   *
+   * @param file a delta in a build directory
+   * @return the file points, or null if a build of the chain is gone
+   * @throws IOException if a manifest of the chain cannot be read
+   */
+  public static StarTeamManifest load(java.io.File file) throws IOException {
+    java.io.File buildsDir = file.getParentFile().getParentFile();
+    String fileName = file.getName();
+    List<StarTeamManifest> deltas = new ArrayList<StarTeamManifest>();
+    java.io.File current = file;
+    StarTeamManifest snapshot = null;
+    while (snapshot == null) {
+      if (!current.isFile() || deltas.size() > CHECKPOINT_INTERVAL * 4) {
+        return null;
+      }
+      InputStream in = new FileInputStream(current);
+      try {
+        DataInputStream header = new DataInputStream(in);
+        int magic = header.readInt();
+        if (magic == StarTeamManifestStore.MAGIC) {
+          snapshot = StarTeamManifestStore.getInstance().load(current);
+          break;
+        }
+        if (magic != MAGIC) {
+          snapshot = StarTeamManifest.open(current);
+          break;
+        }
+        int version = header.readUnsignedByte();
+        if (version != VERSION) {
+          throw new IOException("Unsupported StarTeam file point delta version " + version);
+        }
+        String baseBuildDirName = header.readUTF();
+        header.readInt(); // chain length
+        deltas.add(StarTeamManifest.read(in));
+        current = new java.io.File(new java.io.File(buildsDir, baseBuildDirName), fileName);
+      } finally {
+        in.close();
+      }
+    }
+    for (int i = deltas.size() - 1; i >= 0; i--) {
+      snapshot = apply(snapshot, deltas.get(i));
+    }
+    snapshot.setSource(file.getParentFile().getName(), deltas.size());
+    return snapshot;
+  }
+
+  /**
+   * Record a build whose file points are stored as a delta in the directory
+   * of its base build, so that deleting the base build need not look at any
+   * other build.
+   *
+   * @param file the file points of a build
+   * @throws IOException if the build cannot be recorded
+   */
+  public static void recordDependent(java.io.File file) throws IOException {
+    java.io.File buildDir = file.getAbsoluteFile().getParentFile();
+    String baseBuildDirName = file.isFile() ? baseBuildDirName(file) : null;
+    if (baseBuildDirName == null) {
+      return;
+    }
+    java.io.File baseBuildDir = new java.io.File(buildDir.getParentFile(), baseBuildDirName);
+    if (!baseBuildDir.isDirectory()) {
+      return;
+    }
+    synchronized (StarTeamManifestDelta.class) {
+      FileUtils.writeLines(new java.io.File(baseBuildDir, StarTeamConnection.FILE_POINT_DEPENDENTS_FILENAME), "UTF-8",
+          Collections.singletonList(buildDir.getName()), true);
+    }
+  }
+
+  /**
+   * Store the file points of the builds recorded as dependents of a build
+   * about to be deleted as full manifests, unless their delta is not based on
+   * it any more. Deltas based on those builds are left alone, their chains
+   * now end there.
+   *
+   * @param buildDir the directory of the build about to be deleted, still
+   *                 intact
+   * @return the rewritten file point files
+   */
+  public static List<java.io.File> rebaseDependents(java.io.File buildDir) {
+    List<java.io.File> result = new ArrayList<java.io.File>();
+    java.io.File dependents = new java.io.File(buildDir, StarTeamConnection.FILE_POINT_DEPENDENTS_FILENAME);
+    if (!dependents.isFile()) {
+      return result;
+    }
+    List<String> names;
+    try {
+      synchronized (StarTeamManifestDelta.class) {
+        names = FileUtils.readLines(dependents, "UTF-8");
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to read " + dependents, e);
+      return result;
+    }
+    java.io.File buildsDir = buildDir.getAbsoluteFile().getParentFile();
+    String fileName = StarTeamConnection.FILE_POINT_MANIFEST_FILENAME;
+    for (String name : new LinkedHashSet<String>(names)) {
+      java.io.File sibling = new java.io.File(buildsDir, name);
+      java.io.File file = new java.io.File(sibling, fileName);
+      try {
+        if (name.length() == 0 || name.equals(buildDir.getName()) || !file.isFile()
+            || !buildDir.getName().equals(baseBuildDirName(file))) {
+          continue;
+        }
+        StarTeamManifest snapshot = load(file);
+        if (snapshot == null) {
+          // broken already, nothing to keep
+          continue;
+        }
+        storeFull(file, snapshot);
+        result.add(file);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to rebase the StarTeam file points of " + sibling, e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the name of the base build directory of a delta, or null if the
+   *         file is not a delta
+   */
+  private static String baseBuildDirName(java.io.File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      if (in.readInt() != MAGIC) {
+        return null;
+      }
+      int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported StarTeam file point delta version " + version);
+      }
+      return in.readUTF();
+    } catch (EOFException e) {
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Replace a file with a full manifest of the file points.
+   */
+  private static void storeFull(java.io.File file, StarTeamManifest snapshot) throws IOException {
+    java.io.File temp = new java.io.File(file.getPath() + ".tmp");
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(new FileOutputStream(temp),
+        snapshot.isRelative() ? "" : null, snapshot.getBase(),
+        Boolean.getBoolean(StarTeamFilePointFunctions.class.getName() + ".compress"));
+    try {
+      Iterator<StarTeamFilePoint> it = sorted(snapshot);
+      while (it.hasNext()) {
+        writer.write(it.next());
+      }
+    } finally {
+      writer.close();
+    }
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * @return the file points of the base with the changes applied
+   */
+  private static StarTeamManifest apply(StarTeamManifest base, StarTeamManifest delta) throws IOException {
+    if (delta.isEmpty()) {
+      return base;
+    }
+    Iterator<StarTeamFilePoint> historic = sorted(base);
+    Iterator<StarTeamFilePoint> changes = sorted(delta);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(bytes, base.isRelative() ? "" : null,
+        StarTeamManifestWriter.commonBase(Arrays.asList(base.getBase(), delta.getBase())), false);
+    try {
+      StarTeamFilePoint h = historic.hasNext() ? historic.next() : null;
+      StarTeamFilePoint c = changes.hasNext() ? changes.next() : null;
+      while (h != null || c != null) {
+        int cmp = h == null ? 1 : c == null ? -1 : StarTeamFilePointMerge.FILE_POINT_ORDER.compare(h, c);
+        if (cmp < 0) {
+          writer.write(h);
+          h = historic.hasNext() ? historic.next() : null;
+        } else {
+          if (c.getRevisionNumber() != REMOVED) {
+            writer.write(c);
+          }
+          if (cmp == 0) {
+            h = historic.hasNext() ? historic.next() : null;
+          }
+          c = changes.hasNext() ? changes.next() : null;
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    return StarTeamManifest.read(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  private static Iterator<StarTeamFilePoint> sorted(StarTeamManifest manifest) {
+    if (manifest.isSorted()) {
+      return manifest.iterator();
+    }
+    StarTeamFilePoint[] filePoints = manifest.toArray(new StarTeamFilePoint[manifest.size()]);
+    Arrays.sort(filePoints, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    return Arrays.asList(filePoints).iterator();
+  }
+}
@@ -0,0 +1,205 @@
+package hudson.plugins.starteam.community;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The file points of an uncompressed binary manifest in a temporary file,
+ * decoded by reading the file sequentially each time they are iterated, so
+ * that file points that did not fit the heap budget of
+ * {@link StarTeamFilePointSorter} never have to be on the heap at once.
+ * <p>
+ * The file is deleted when the manifest is closed, once the file points have
+ * been stored, see {@link StarTeamFilePointFunctions#storeCollection}.
+ */
+public final class StarTeamManifestFile extends AbstractCollection<StarTeamFilePoint> implements Closeable {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final java.io.File file;
+  private final String base;
+  private final int count;
+  private final boolean sorted;
+  private final List<InputStream> streams = new ArrayList<InputStream>();
+
+  private StarTeamManifestFile(java.io.File file, String base, int count, boolean sorted) {
+    this.file = file;
+    this.base = base;
+    this.count = count;
+    this.sorted = sorted;
+  }
+
+  /**
+   * Encode file points as a manifest in a temporary file.
+   *
+   * @param filePoints file points, sorted by {@link StarTeamFilePointMerge#FILE_POINT_ORDER}
+   * @param tempDir    directory for the file, null for the temporary
+   *                   directory of the JVM
+   * @return the manifest, which must be closed to delete the file
+   * @throws IOException if the file points cannot be encoded
+   */
+  public static StarTeamManifestFile encode(Iterable<? extends StarTeamFilePoint> filePoints, java.io.File tempDir)
+      throws IOException {
+    java.io.File file = java.io.File.createTempFile("starteam-manifest", ".bin", tempDir);
+    boolean done = false;
+    try {
+      String base = StarTeamManifestWriter.commonBase(StarTeamManifestWriter.paths(filePoints));
+      StarTeamManifestWriter writer = new StarTeamManifestWriter(new FileOutputStream(file), base, false);
+      try {
+        for (StarTeamFilePoint filePoint : filePoints) {
+          writer.write(filePoint);
+        }
+      } finally {
+        writer.close();
+      }
+      done = true;
+      return new StarTeamManifestFile(file, base, writer.getCount(), writer.isSorted());
+    } finally {
+      if (!done) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * @return the path all file point paths start with
+   */
+  public String getBase() {
+    return base;
+  }
+
+  /**
+   * @return whether the entries are in path order, see
+   *         {@link StarTeamFilePointMerge#FILE_POINT_ORDER}
+   */
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  @Override
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return the file points, in the order they were written
+   * @throws IllegalStateException if the file cannot be read
+   */
+  @Override
+  public Iterator<StarTeamFilePoint> iterator() {
+    final DataInputStream in;
+    try {
+      in = open();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read StarTeam file points from " + file, e);
+    }
+    return new Iterator<StarTeamFilePoint>() {
+      private int index;
+      private byte[] key = new byte[256];
+      private long modified;
+
+      public boolean hasNext() {
+        return index < count;
+      }
+
+      public StarTeamFilePoint next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        try {
+          int suffix = (int) readVarint(in) - 1;
+          int shared = (int) readVarint(in);
+          if (index % StarTeamManifest.RESTART_INTERVAL == 0) {
+            modified = 0L;
+          }
+          if (shared + suffix > key.length) {
+            key = Arrays.copyOf(key, Math.max(key.length * 2, shared + suffix));
+          }
+          in.readFully(key, shared, suffix);
+          int revision = (int) unzigzag(readVarint(in));
+          modified += unzigzag(readVarint(in));
+          if (++index == count) {
+            close(in);
+          }
+          return new StarTeamFilePoint(base + new String(key, 0, shared + suffix, UTF8), revision, modified);
+        } catch (IOException e) {
+          close(in);
+          throw new IllegalStateException("Unable to read StarTeam file points from " + file, e);
+        }
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private synchronized DataInputStream open() throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    streams.add(in);
+    boolean positioned = false;
+    try {
+      // skip the header and the base path
+      if (in.skipBytes(6) != 6) {
+        throw new EOFException();
+      }
+      int baseLength = (int) readVarint(in);
+      if (in.skipBytes(baseLength) != baseLength) {
+        throw new EOFException();
+      }
+      positioned = true;
+      return in;
+    } finally {
+      if (!positioned) {
+        close(in);
+      }
+    }
+  }
+
+  private synchronized void close(InputStream in) {
+    streams.remove(in);
+    try {
+      in.close();
+    } catch (IOException e) {
+      // nothing more is read from it
+    }
+  }
+
+  private static long readVarint(DataInputStream in) throws IOException {
+    long value = 0L;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Close the iterations that were not completed and delete the file.
+   */
+  public synchronized void close() {
+    for (InputStream in : new ArrayList<InputStream>(streams)) {
+      close(in);
+    }
+    file.delete();
+  }
+}
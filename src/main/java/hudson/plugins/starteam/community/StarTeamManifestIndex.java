@@ -0,0 +1,159 @@
+package hudson.plugins.starteam.community;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the file points of the build a workspace was last checked out by.
+ * <p>
+ * The file points of a build describe the workspace it ran in, so comparing
+ * with those of the previous build is wrong if it ran on another node or in
+ * another workspace. Instead the nearest earlier build that ran on the same
+ * node in the same workspace and stored file points is used. The latest such
+ * build of every job, node and workspace is remembered here, so that the
+ * build history is only searched if the remembered build is gone.
+ * <p>
+ * A search that finds no build is remembered as well, so that polling a
+ * workspace no build stored file points for does not search the history
+ * again: a later search only looks at the builds started since, and a build
+ * storing file points in the workspace replaces the miss when it completes.
+ * <p>
+ * The number of builds searched (default 50) can be set with the system
+ * property
+ * <code>hudson.plugins.starteam.community.StarTeamManifestIndex.searchDepth</code>.
+ */
+public final class StarTeamManifestIndex {
+
+  private static final int MAX_ENTRIES = 4096;
+
+  private static final StarTeamManifestIndex INSTANCE = new StarTeamManifestIndex(
+      Integer.getInteger(StarTeamManifestIndex.class.getName() + ".searchDepth", 50));
+
+  private final int searchDepth;
+
+  private final Map<String, Location> entries = new LinkedHashMap<String, Location>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  StarTeamManifestIndex(int searchDepth) {
+    this.searchDepth = searchDepth;
+  }
+
+  public static StarTeamManifestIndex getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param from      the build to start searching from, backwards, may be null
+   * @param node      the name of the node the workspace is on
+   * @param workspace the path of the workspace on the node, or null if it is
+   *                  unknown, in which case the starting build is used
+   * @return the root directory of the nearest build that ran on the node in
+   *         the workspace and stored file points, or null if there is none
+   */
+  public File find(AbstractBuild<?, ?> from, String node, String workspace) {
+    if (from == null) {
+      return null;
+    }
+    if (workspace == null) {
+      return StarTeamFilePointFunctions.findFilePointFile(from.getRootDir()) == null ? null : from.getRootDir();
+    }
+    String key = key(from.getRootDir().getParentFile(), node, workspace);
+    // builds up to this one are known not to have run in the workspace
+    int searched = 0;
+    synchronized (this) {
+      Location location = entries.get(key);
+      if (location != null && location.buildDir == null) {
+        if (location.number == from.getNumber()) {
+          return null;
+        }
+        if (location.number < from.getNumber()) {
+          searched = location.number;
+        }
+      } else if (location != null && location.number <= from.getNumber()
+          && StarTeamFilePointFunctions.findFilePointFile(location.buildDir) != null) {
+        return location.buildDir;
+      } else {
+        entries.remove(key);
+      }
+    }
+    AbstractBuild<?, ?> build = from;
+    for (int i = 0; build != null && i < searchDepth && build.getNumber() > searched;
+         i++, build = build.getPreviousBuild()) {
+      if (ranIn(build, node, workspace) && StarTeamFilePointFunctions.findFilePointFile(build.getRootDir()) != null) {
+        synchronized (this) {
+          Location location = entries.get(key);
+          if (location == null || location.buildDir == null || location.number < build.getNumber()) {
+            entries.put(key, new Location(build.getRootDir(), build.getNumber()));
+          }
+        }
+        return build.getRootDir();
+      }
+    }
+    synchronized (this) {
+      Location location = entries.get(key);
+      if (location == null || location.buildDir == null && location.number < from.getNumber()) {
+        entries.put(key, new Location(null, from.getNumber()));
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remember a build that stored file points.
+   *
+   * @param build     the build
+   * @param node      the name of the node it ran on
+   * @param workspace the path of the workspace it ran in
+   */
+  public synchronized void record(AbstractBuild<?, ?> build, String node, String workspace) {
+    String key = key(build.getRootDir().getParentFile(), node, workspace);
+    Location location = entries.get(key);
+    if (location == null || location.buildDir == null || location.number <= build.getNumber()) {
+      entries.put(key, new Location(build.getRootDir(), build.getNumber()));
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private static boolean ranIn(AbstractBuild<?, ?> build, String node, String workspace) {
+    FilePath buildWorkspace = build.getWorkspace();
+    return buildWorkspace != null && workspace.equals(buildWorkspace.getRemote())
+        && (node == null ? "" : node).equals(build.getBuiltOnStr() == null ? "" : build.getBuiltOnStr());
+  }
+
+  /**
+   * @param buildsDir the directory holding the builds of a job
+   * @param node      the name of a node
+   * @param workspace the path of a workspace on the node
+   * @return key for the latest build of the job in the workspace
+   */
+  static String key(File buildsDir, String node, String workspace) {
+    return buildsDir.getAbsolutePath() + "\n" + (node == null ? "" : node) + "\n" + workspace;
+  }
+
+  private static final class Location {
+    /**
+     * the root directory of the build, or null if no build up to the number
+     * stored file points in the workspace
+     */
+    private final File buildDir;
+    private final int number;
+
+    private Location(File buildDir, int number) {
+      this.buildDir = buildDir;
+      this.number = number;
+    }
+  }
+}
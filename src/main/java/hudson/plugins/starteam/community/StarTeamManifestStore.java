@@ -0,0 +1,361 @@
+package hudson.plugins.starteam.community;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the file points of builds on the controller as shared chunks.
+ * <p>
+ * Jobs checking out the same view store the same file points, and so do
+ * consecutive builds of a job whose files did not change. Once a build
+ * stored a full manifest, its entries are split into chunks, each stored as a
+ * manifest of its own named after its SHA-1 hash in the
+ * <code>starteam-manifests</code> directory of the controller, and the file in
+ * the build directory is replaced by a reference listing the hashes of its
+ * chunks. Identical chunks are stored once.
+ * <p>
+ * Chunk boundaries are chosen by the paths of the entries rather than their
+ * positions, so that adding or removing a file only changes the chunk it is
+ * in. A chunk holds {@value #CHUNK_SIZE} entries on average. Every chunk
+ * counts the references to it and is deleted along with the last build
+ * referencing it. Counts are replaced atomically; a chunk whose count cannot
+ * be read is logged and kept rather than risk deleting a chunk in use.
+ */
+public final class StarTeamManifestStore {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamManifestStore.class.getName());
+
+  static final int MAGIC = 0x53544652; // STFR
+  static final int VERSION = 1;
+  static final int CHUNK_SIZE = 1 << 12;
+
+  static final String DIRNAME = "starteam-manifests";
+
+  private static final int HASH_LENGTH = 20;
+
+  private static StarTeamManifestStore instance;
+
+  private final File directory;
+
+  StarTeamManifestStore(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return the store of the controller
+   */
+  public static synchronized StarTeamManifestStore getInstance() {
+    if (instance == null) {
+      instance = new StarTeamManifestStore(new File(Jenkins.get().getRootDir(), DIRNAME));
+    }
+    return instance;
+  }
+
+  /**
+   * @param file a file
+   * @return whether the file is a reference to chunks of the store
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isReference(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Move the entries of a full manifest to the store, replacing the manifest
+   * by a reference to its chunks. Other files are left alone.
+   *
+   * @param file the file points of a build
+   * @throws IOException if the manifest cannot be moved
+   */
+  public synchronized void intern(File file) throws IOException {
+    if (!file.isFile() || !StarTeamManifest.isManifest(file)) {
+      return;
+    }
+    StarTeamManifest manifest = StarTeamManifest.open(file);
+    if (!manifest.isSorted()) {
+      return;
+    }
+    List<byte[]> hashes = new ArrayList<byte[]>();
+    List<StarTeamFilePoint> chunk = new ArrayList<StarTeamFilePoint>();
+    for (StarTeamFilePoint filePoint : manifest) {
+      chunk.add(filePoint);
+      if (endsChunk(filePoint.getFullfilepath())) {
+        hashes.add(storeChunk(chunk, manifest.isRelative()));
+        chunk.clear();
+      }
+    }
+    if (!chunk.isEmpty() || hashes.isEmpty()) {
+      hashes.add(storeChunk(chunk, manifest.isRelative()));
+    }
+
+    File reference = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(reference));
+    try {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeByte(manifest.isRelative() ? StarTeamManifest.FLAG_RELATIVE : 0);
+      out.writeInt(hashes.size());
+      for (byte[] hash : hashes) {
+        out.write(hash);
+      }
+    } finally {
+      out.close();
+    }
+    try {
+      Files.move(reference.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      release(hashes);
+      throw e;
+    }
+  }
+
+  /**
+   * @return whether a chunk ends with the entry of the path, for one path in
+   *         {@link #CHUNK_SIZE} on average
+   */
+  private static boolean endsChunk(String path) {
+    // the high bits of a multiplicative hash are well mixed, unlike the low bits of String.hashCode
+    return (path.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(CHUNK_SIZE)) == 0;
+  }
+
+  /**
+   * @return the hash of the chunk, whose reference count is incremented
+   */
+  private byte[] storeChunk(List<StarTeamFilePoint> filePoints, boolean relative) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(bytes, relative ? "" : null,
+        StarTeamManifestWriter.commonBase(StarTeamManifestWriter.paths(filePoints)), false);
+    try {
+      for (StarTeamFilePoint filePoint : filePoints) {
+        writer.write(filePoint);
+      }
+    } finally {
+      writer.close();
+    }
+    byte[] encoded = bytes.toByteArray();
+    byte[] hash = sha1(encoded);
+    File chunkFile = chunkFile(hash);
+    if (!chunkFile.isFile()) {
+      File parent = chunkFile.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Unable to create " + parent);
+      }
+      File temp = new File(chunkFile.getPath() + ".tmp");
+      FileUtils.writeByteArrayToFile(temp, encoded);
+      if (!temp.renameTo(chunkFile)) {
+        throw new IOException("Unable to create " + chunkFile);
+      }
+    }
+    int count = readReferenceCount(hash);
+    if (count >= 0) {
+      writeReferenceCount(hash, count + 1);
+    }
+    return hash;
+  }
+
+  /**
+   * @param file a reference written by {@link #intern(File)}
+   * @return the file points of the chunks
+   * @throws IOException if the reference or a chunk cannot be read
+   */
+  public synchronized StarTeamManifest load(File file) throws IOException {
+    List<StarTeamManifest> chunks = new ArrayList<StarTeamManifest>();
+    List<String> bases = new ArrayList<String>();
+    for (byte[] hash : readHashes(file)) {
+      InputStream in = new FileInputStream(chunkFile(hash));
+      try {
+        StarTeamManifest chunk = StarTeamManifest.read(in);
+        chunks.add(chunk);
+        bases.add(chunk.getBase());
+      } finally {
+        in.close();
+      }
+    }
+    boolean relative = !chunks.isEmpty() && chunks.get(0).isRelative();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(bytes, relative ? "" : null,
+        StarTeamManifestWriter.commonBase(bases), false);
+    try {
+      for (StarTeamManifest chunk : chunks) {
+        for (StarTeamFilePoint filePoint : chunk) {
+          writer.write(filePoint);
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    return StarTeamManifest.read(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  /**
+   * Drop the references of a build to its chunks, deleting the chunks no
+   * build refers to any more.
+   *
+   * @param file a reference written by {@link #intern(File)}
+   * @throws IOException if the reference cannot be read
+   */
+  public synchronized void release(File file) throws IOException {
+    release(readHashes(file));
+  }
+
+  private void release(List<byte[]> hashes) {
+    for (byte[] hash : hashes) {
+      try {
+        int count = readReferenceCount(hash);
+        if (count < 0) {
+          // unknown, the chunk is kept
+          continue;
+        }
+        count--;
+        if (count > 0) {
+          writeReferenceCount(hash, count);
+        } else {
+          FileUtils.deleteQuietly(chunkFile(hash));
+          FileUtils.deleteQuietly(referenceCountFile(hash));
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to release StarTeam file point chunk " + hex(hash), e);
+      }
+    }
+  }
+
+  private List<byte[]> readHashes(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a StarTeam file point reference");
+      }
+      int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported StarTeam file point reference version " + version);
+      }
+      in.readUnsignedByte(); // flags
+      int count = in.readInt();
+      List<byte[]> hashes = new ArrayList<byte[]>(count);
+      for (int i = 0; i < count; i++) {
+        byte[] hash = new byte[HASH_LENGTH];
+        in.readFully(hash);
+        hashes.add(hash);
+      }
+      return hashes;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the reference count of a chunk, 0 if it has none, or -1 if the
+   *         count is corrupt; a chunk with a corrupt count is never deleted
+   */
+  private int readReferenceCount(byte[] hash) throws IOException {
+    File file = referenceCountFile(hash);
+    if (!file.isFile()) {
+      return 0;
+    }
+    String count = FileUtils.readFileToString(file, "US-ASCII").trim();
+    try {
+      return Integer.parseInt(count);
+    } catch (NumberFormatException e) {
+      LOGGER.warning("Corrupt reference count '" + count + "' in " + file + ", keeping the chunk");
+      return -1;
+    }
+  }
+
+  /**
+   * Replace the reference count of a chunk atomically, so that an interrupted
+   * write never leaves a partial count.
+   */
+  private void writeReferenceCount(byte[] hash, int count) throws IOException {
+    File file = referenceCountFile(hash);
+    File temp = new File(file.getPath() + ".tmp");
+    FileUtils.writeStringToFile(temp, Integer.toString(count), "US-ASCII");
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  File chunkFile(byte[] hash) {
+    String name = hex(hash);
+    return new File(new File(directory, name.substring(0, 2)), name + ".bin");
+  }
+
+  private File referenceCountFile(byte[] hash) {
+    String name = hex(hash);
+    return new File(new File(directory, name.substring(0, 2)), name + ".refs");
+  }
+
+  private static byte[] sha1(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] hash) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : hash) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Stores the builds whose file point delta is based on a deleted build as
+   * full manifests, and releases the chunks of the deleted build.
+   */
+  @Extension
+  public static final class DeletedBuildListener extends RunListener<Run> {
+    @Override
+    public void onDeleted(Run run) {
+      File file = new File(run.getRootDir(), StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+      // while the build is still there to reconstruct the deltas based on it
+      for (File rebased : StarTeamManifestDelta.rebaseDependents(run.getRootDir())) {
+        try {
+          getInstance().intern(rebased);
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Unable to store the StarTeam file points of " + rebased.getParentFile(), e);
+        }
+      }
+      try {
+        if (file.isFile() && isReference(file)) {
+          getInstance().release(file);
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to release the StarTeam file points of " + run.getRootDir(), e);
+      }
+    }
+  }
+}
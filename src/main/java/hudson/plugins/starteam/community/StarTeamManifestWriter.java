@@ -0,0 +1,280 @@
+package hudson.plugins.starteam.community;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes file points in the binary manifest format, one entry at a time.
+ * <p>
+ * A manifest starts with a header: the magic number, a version and flags. The
+ * paths of the entries are relative to the work folder if
+ * {@link StarTeamManifest#FLAG_RELATIVE} is set. The body follows, deflated if
+ * {@link StarTeamManifest#FLAG_DEFLATE} is set:
+ * <ul>
+ * <li>the base path shared by all entries;</li>
+ * <li>the entries, each holding its path relative to the base as the length of
+ * the prefix shared with the previous path plus the remaining bytes, its
+ * revision as a varint, and its modification time as a varint delta to the
+ * previous entry. Every {@value StarTeamManifest#RESTART_INTERVAL}th
+ * entry is a restart point that is encoded on its own;</li>
+ * <li>the body offsets of the restart points;</li>
+ * <li>a trailer holding the offset of the restart points, the number of
+ * entries, whether the entries are sorted by path, and the CRC32 of the
+ * body.</li>
+ * </ul>
+ * Writing takes constant memory apart from the restart point offsets.
+ */
+public final class StarTeamManifestWriter implements Closeable {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final OutputStream target;
+  private final DeflaterOutputStream deflater;
+  private final CRC32 crc = new CRC32();
+  private final DataOutputStream out;
+  private final String prefix;
+
+  private int offset;
+  private int count;
+  private boolean sorted = true;
+  private String previousKey;
+  private byte[] previousBytes = new byte[0];
+  private long previousModified;
+  private int[] restarts = new int[64];
+  private boolean closed;
+
+  /**
+   * @param target   the stream to write the manifest to, closed with the writer
+   * @param base     the path every file point path starts with, e.g. the
+   *                 folder the files are checked out to
+   * @param compress whether to deflate the body
+   * @throws IOException if the header cannot be written
+   */
+  public StarTeamManifestWriter(OutputStream target, String base, boolean compress) throws IOException {
+    this(target, null, base, compress);
+  }
+
+  /**
+   * @param target   the stream to write the manifest to, closed with the writer
+   * @param root     the work folder, with a trailing separator, the paths are
+   *                 stored relative to, or null to store them as they are
+   * @param base     the path relative to the root every file point path
+   *                 starts with
+   * @param compress whether to deflate the body
+   * @throws IOException if the header cannot be written
+   */
+  public StarTeamManifestWriter(OutputStream target, String root, String base, boolean compress) throws IOException {
+    this.target = target;
+    this.prefix = root == null ? base : root + base;
+    DataOutputStream header = new DataOutputStream(target);
+    header.writeInt(StarTeamManifest.MAGIC);
+    header.writeByte(StarTeamManifest.VERSION);
+    header.writeByte((compress ? StarTeamManifest.FLAG_DEFLATE : 0) | (root == null ? 0 : StarTeamManifest.FLAG_RELATIVE));
+    OutputStream body = target;
+    if (compress) {
+      deflater = new DeflaterOutputStream(target, new Deflater(Deflater.BEST_SPEED), 64 * 1024);
+      body = deflater;
+    } else {
+      deflater = null;
+    }
+    out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(body, 64 * 1024), crc));
+    byte[] baseBytes = base.getBytes(UTF8);
+    writeVarint(baseBytes.length);
+    write(baseBytes, 0, baseBytes.length);
+  }
+
+  /**
+   * Append a file point. Entries should be written in path order, see
+   * {@link StarTeamFilePointMerge#FILE_POINT_ORDER}, so that the manifest can
+   * be searched.
+   *
+   * @param filePoint a file point whose path starts with the root and base path
+   * @throws IOException if the entry cannot be written
+   */
+  public void write(StarTeamFilePoint filePoint) throws IOException {
+    String path = filePoint.getFullfilepath();
+    if (!path.startsWith(prefix)) {
+      throw new IllegalArgumentException(path + " is not within " + prefix);
+    }
+    String key = path.substring(prefix.length());
+    if (sorted && previousKey != null && StarTeamFilePointMerge.PATH_ORDER.compare(previousKey, key) > 0) {
+      sorted = false;
+    }
+    byte[] bytes = key.getBytes(UTF8);
+    boolean restart = count % StarTeamManifest.RESTART_INTERVAL == 0;
+    int shared = 0;
+    if (restart) {
+      int index = count / StarTeamManifest.RESTART_INTERVAL;
+      if (index == restarts.length) {
+        restarts = Arrays.copyOf(restarts, index * 2);
+      }
+      restarts[index] = offset;
+      previousModified = 0L;
+    } else {
+      int max = Math.min(bytes.length, previousBytes.length);
+      while (shared < max && bytes[shared] == previousBytes[shared]) {
+        shared++;
+      }
+    }
+    writeVarint(bytes.length - shared + 1);
+    writeVarint(shared);
+    write(bytes, shared, bytes.length - shared);
+    writeVarint(zigzag(filePoint.getRevisionNumber()));
+    writeVarint(zigzag(filePoint.getLastModifyDate() - previousModified));
+
+    previousKey = key;
+    previousBytes = bytes;
+    previousModified = filePoint.getLastModifyDate();
+    count++;
+  }
+
+  /**
+   * Write the restart points and the trailer, and close the target stream.
+   *
+   * @throws IOException if the manifest cannot be completed
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writeVarint(0);
+      int restartOffset = offset;
+      int restartCount = (count + StarTeamManifest.RESTART_INTERVAL - 1) / StarTeamManifest.RESTART_INTERVAL;
+      out.writeInt(restartCount);
+      for (int i = 0; i < restartCount; i++) {
+        out.writeInt(restarts[i]);
+      }
+      out.writeInt(restartOffset);
+      out.writeInt(count);
+      out.writeByte(sorted ? 1 : 0);
+      out.flush();
+      // the checksum itself is not part of the checksum
+      new DataOutputStream(deflater == null ? target : deflater).writeInt((int) crc.getValue());
+      if (deflater != null) {
+        deflater.finish();
+      }
+      target.flush();
+    } finally {
+      target.close();
+    }
+  }
+
+  /**
+   * @return the number of entries written so far
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return whether the entries written so far are in path order
+   */
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  private void write(byte[] bytes, int from, int length) throws IOException {
+    out.write(bytes, from, length);
+    offset += length;
+  }
+
+  private void writeVarint(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+      offset++;
+    }
+    out.writeByte((int) value);
+    offset++;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /**
+   * Encode file points as an in-memory manifest.
+   *
+   * @param filePoints file points, sorted by {@link StarTeamFilePointMerge#FILE_POINT_ORDER}
+   * @return the manifest
+   * @throws IOException if the file points cannot be encoded
+   */
+  public static StarTeamManifest encode(Iterable<? extends StarTeamFilePoint> filePoints) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(bytes, commonBase(paths(filePoints)), false);
+    try {
+      for (StarTeamFilePoint filePoint : filePoints) {
+        writer.write(filePoint);
+      }
+    } finally {
+      writer.close();
+    }
+    return StarTeamManifest.read(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  /**
+   * @param filePoints file points
+   * @return a view of the paths of the file points
+   */
+  public static Iterable<String> paths(final Iterable<? extends StarTeamFilePoint> filePoints) {
+    return new Iterable<String>() {
+      public Iterator<String> iterator() {
+        final Iterator<? extends StarTeamFilePoint> it = filePoints.iterator();
+        return new Iterator<String>() {
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          public String next() {
+            return it.next().getFullfilepath();
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * @param paths paths of files
+   * @return the longest directory prefix, including the trailing separator,
+   *         that all paths start with
+   */
+  public static String commonBase(Iterable<String> paths) {
+    String prefix = null;
+    for (String path : paths) {
+      if (prefix == null) {
+        prefix = path;
+      } else {
+        int max = Math.min(prefix.length(), path.length());
+        int i = 0;
+        while (i < max && prefix.charAt(i) == path.charAt(i)) {
+          i++;
+        }
+        prefix = prefix.substring(0, i);
+      }
+    }
+    if (prefix == null) {
+      return "";
+    }
+    int separator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf('\\'));
+    return prefix.substring(0, separator + 1);
+  }
+}
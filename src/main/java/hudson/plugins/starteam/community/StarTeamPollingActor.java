@@ -47,12 +47,18 @@ public class StarTeamPollingActor implements FileCallable<Boolean> {
 
   private String subfolder;
 
+  private final String prunepatterns;
+
   private final TaskListener listener;
 
   private final StarTeamViewSelector config;
 
   private Collection<StarTeamFilePoint> historicFilePoints;
 
+  private String workspaceManifestDigest;
+
+  private String historicWorkspace;
+
   /**
    * Default constructor.
    *
@@ -72,6 +78,21 @@ public class StarTeamPollingActor implements FileCallable<Boolean> {
                               String passwd, String projectname, String viewname,
                               String foldername, String subfolder, StarTeamViewSelector config, TaskListener listener,
                               Collection<StarTeamFilePoint> historicFilePoints) {
+    this(hostname, port, agentHost, agentPort, user, passwd, projectname, viewname, foldername, subfolder, null,
+        config, listener, historicFilePoints);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param prunepatterns glob patterns of local directories never to scan for
+   *                      files to remove, one per line
+   */
+  public StarTeamPollingActor(String hostname, int port, String agentHost, int agentPort, String user,
+                              String passwd, String projectname, String viewname,
+                              String foldername, String subfolder, String prunepatterns,
+                              StarTeamViewSelector config, TaskListener listener,
+                              Collection<StarTeamFilePoint> historicFilePoints) {
     this.hostname = hostname;
     this.port = port;
     this.agenthost = agentHost;
@@ -83,10 +104,30 @@ public class StarTeamPollingActor implements FileCallable<Boolean> {
     this.foldername = foldername;
     this.listener = listener;
     this.subfolder = subfolder;
+    this.prunepatterns = prunepatterns;
     this.config = config;
     this.historicFilePoints = historicFilePoints;
   }
 
+  /**
+   * Compare with the copy of the file points of the last build kept in the
+   * work folder instead of sending them, see {@link StarTeamWorkspaceManifest}.
+   *
+   * @param digest the digest of the file points of the last build
+   */
+  void useWorkspaceManifest(String digest) {
+    this.workspaceManifestDigest = digest;
+    this.historicFilePoints = null;
+  }
+
+  /**
+   * @param workspace the workspace of the last build, whose absolute file
+   *                  point paths are moved to this workspace, may be null
+   */
+  void setHistoricWorkspace(String workspace) {
+    this.historicWorkspace = workspace;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -98,23 +139,35 @@ public class StarTeamPollingActor implements FileCallable<Boolean> {
     StarTeamConnection connection = new StarTeamConnection(
         hostname, port, agenthost, agentport, user, passwd,
         projectname, viewname, foldername, config, false);
+    // whatever fails once a session may have been borrowed, it is handed back
+    // to the agent's session pool
     try {
-      connection.initialize(-1);
-    } catch (StarTeamSCMException e) {
-      listener.getLogger().println(e.getLocalizedMessage());
+      try {
+        connection.initialize(-1);
+      } catch (StarTeamSCMException e) {
+        listener.getLogger().println(e.getLocalizedMessage());
+        return false;
+      }
+
+      StarTeamChangeSet changeSet = null;
+      File workFolder = Strings.isNullOrEmpty(subfolder) ? f : new File(f, subfolder.trim());
+      Collection<StarTeamFilePoint> historic = historicFilePoints;
+      if (workspaceManifestDigest != null) {
+        historic = StarTeamWorkspaceManifest.load(workFolder, workspaceManifestDigest);
+      }
+      historic = StarTeamFilePointFunctions.relocate(historic, historicWorkspace == null ? null
+          : Strings.isNullOrEmpty(subfolder) ? new File(historicWorkspace) : new File(historicWorkspace, subfolder.trim()),
+          workFolder);
+      try {
+        changeSet = connection.computeChangeSet(connection.getRootFolder(), workFolder, historic,
+            StarTeamFunctions.splitPatterns(prunepatterns), true, listener.getLogger());
+      } catch (Exception e) {
+        e.printStackTrace(listener.getLogger());
+      }
+      return changeSet != null && changeSet.hasChanges();
+    } finally {
       connection.close();
-      return false;
-    }
-
-    StarTeamChangeSet changeSet = null;
-    File workFolder = Strings.isNullOrEmpty(subfolder) ? f : new File(f, subfolder.trim());
-    try {
-      changeSet = connection.computeChangeSet(connection.getRootFolder(), workFolder, historicFilePoints, listener.getLogger());
-    } catch (Exception e) {
-      e.printStackTrace(listener.getLogger());
     }
-    connection.close();
-    return changeSet != null && changeSet.hasChanges();
   }
 
   @Override
@@ -0,0 +1,124 @@
+package hudson.plugins.starteam.community;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the resolution of StarTeam object names to object IDs.
+ * <p>
+ * Looking up a project or a view by name means enumerating every project on
+ * the server or every view in the project, and looking up a folder means
+ * walking the folder tree, which is slow on large servers.
+ * Once a name has been resolved, its ID is remembered here so that later
+ * connections can open the object by ID instead.
+ * <p>
+ * Entries expire after a time to live, and callers are expected to
+ * {@link #invalidate(String) invalidate} an entry as soon as opening the
+ * object by its cached ID fails. The time to live (in seconds, default 1800)
+ * can be set with the system property
+ * <code>hudson.plugins.starteam.community.StarTeamResolutionCache.ttl</code>.
+ */
+public final class StarTeamResolutionCache {
+
+  private static final int MAX_ENTRIES = 4096;
+
+  private static final StarTeamResolutionCache INSTANCE = new StarTeamResolutionCache(
+      Long.getLong(StarTeamResolutionCache.class.getName() + ".ttl", 1800L) * 1000L);
+
+  private final long ttl;
+
+  private final Map<String, Resolution> entries = new LinkedHashMap<String, Resolution>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  StarTeamResolutionCache(long ttl) {
+    this.ttl = ttl;
+  }
+
+  public static StarTeamResolutionCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param key the resolution key, see the <code>*Key</code> methods
+   * @return the cached ID, or null if the key is unknown or expired
+   */
+  public synchronized Integer get(String key) {
+    Resolution entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - entry.resolvedAt >= ttl) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.id;
+  }
+
+  public synchronized void put(String key, int id) {
+    entries.put(key, new Resolution(id, System.currentTimeMillis()));
+  }
+
+  public synchronized void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * @param hostName host name of the server
+   * @param port     port of the server
+   * @param userName the user resolving names, whose access rights decide
+   *                 which objects a name resolves to
+   * @return the server part of a key
+   */
+  public static String serverKey(String hostName, int port, String userName) {
+    return userName + "@" + hostName + ":" + port;
+  }
+
+  /**
+   * @param serverKey   the server and user, see {@link #serverKey(String, int, String)}
+   * @param projectName the project's name
+   * @return key for the ID of a project
+   */
+  public static String projectKey(String serverKey, String projectName) {
+    return serverKey + "/project/" + projectName;
+  }
+
+  /**
+   * @param serverKey the server and user, see {@link #serverKey(String, int, String)}
+   * @param projectId ID of the project containing the view
+   * @param viewName  the view's name
+   * @return key for the ID of a view
+   */
+  public static String viewKey(String serverKey, int projectId, String viewName) {
+    return serverKey + "/project#" + projectId + "/view/" + viewName;
+  }
+
+  /**
+   * @param serverKey  the server and user, see {@link #serverKey(String, int, String)}
+   * @param viewId     ID of the view containing the folder
+   * @param folderPath view-relative path of the folder
+   * @return key for the ID of a folder
+   */
+  public static String folderKey(String serverKey, int viewId, String folderPath) {
+    return serverKey + "/view#" + viewId + "/folder/" + folderPath;
+  }
+
+  private static final class Resolution {
+    private final int id;
+    private final long resolvedAt;
+
+    private Resolution(int id, long resolvedAt) {
+      this.id = id;
+      this.resolvedAt = resolvedAt;
+    }
+  }
+}
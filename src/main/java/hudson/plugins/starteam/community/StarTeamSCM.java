@@ -7,6 +7,7 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.TaskListener;
+import hudson.remoting.Channel;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
@@ -54,6 +55,7 @@ public class StarTeamSCM extends SCM {
   private final int cacheagentport;
   private final boolean cleanupstate;
   private final String subfolder;
+  private final String prunepatterns;
 
   private final StarTeamViewSelector config;
 
@@ -71,10 +73,24 @@ public class StarTeamSCM extends SCM {
    * @param promotionstate indication if label name is actual label name or a promotion state name
    * @param cleanupstate   indication if files not in StarTeam should be removed
    */
-  @DataBoundConstructor
   public StarTeamSCM(String hostname, int port, String projectname, String viewname, String foldername,
                      String username, String password, String labelname, boolean promotionstate,
                      String cacheagenthost, int cacheagentport, boolean cleanupstate, String subfolder) {
+    this(hostname, port, projectname, viewname, foldername, username, password, labelname, promotionstate,
+        cacheagenthost, cacheagentport, cleanupstate, subfolder, null);
+  }
+
+  /**
+   * default stapler constructor.
+   *
+   * @param prunepatterns glob patterns of workspace directories never to scan
+   *                      for files to clean up, one per line
+   */
+  @DataBoundConstructor
+  public StarTeamSCM(String hostname, int port, String projectname, String viewname, String foldername,
+                     String username, String password, String labelname, boolean promotionstate,
+                     String cacheagenthost, int cacheagentport, boolean cleanupstate, String subfolder,
+                     String prunepatterns) {
     this.hostname = hostname;
     this.port = port;
     this.projectname = projectname;
@@ -88,6 +104,7 @@ public class StarTeamSCM extends SCM {
     this.cacheagentport = cacheagentport;
     this.cleanupstate = cleanupstate;
     this.subfolder = subfolder;
+    this.prunepatterns = prunepatterns;
     StarTeamViewSelector result = null;
     if ((this.labelname != null) && (this.labelname.length() != 0)) {
       try {
@@ -118,13 +135,49 @@ public class StarTeamSCM extends SCM {
     FilePath changeLogFilePath = new FilePath(changelogFile);
 
     //create a FilePath to be able to create the filePointFile
-    FilePath filePointFilePath = new FilePath(new File(build.getRootDir(), StarTeamConnection.FILE_POINT_FILENAME));
+    FilePath filePointFilePath = new FilePath(new File(build.getRootDir(), StarTeamConnection.FILE_POINT_MANIFEST_FILENAME));
 
     // Create an actor to do the checkout, possibly on a remote machine
     StarTeamCheckoutActor co_actor = new StarTeamCheckoutActor(hostname, port, cacheagenthost, cacheagentport,
-        user, passwd, cleanupstate, projectname, viewname, foldername, subfolder, config,
+        user, passwd, cleanupstate, projectname, viewname, foldername, subfolder, prunepatterns, config,
         changeLogFilePath, listener, build, filePointFilePath);
-    if (workspace.act(co_actor)) {
+    // only the digest is sent if the work folder holds a copy of the file points
+    String historicDigest = co_actor.getHistoricDigest();
+    if (historicDigest != null && workspace.act(new StarTeamWorkspaceManifest.Check(subfolder, historicDigest))) {
+      co_actor.useWorkspaceManifest();
+    }
+    // agents request the contents they miss from the controller, see StarTeamControllerContentSource
+    StarTeamControllerContentSource contentSource = null;
+    if (workspace.isRemote() && workspace.getChannel() instanceof Channel) {
+      contentSource = StarTeamControllerContentSource.create(new StarTeamConnection(hostname, port, cacheagenthost,
+          cacheagentport, user, passwd, projectname, viewname, foldername, config, cleanupstate), build.getNumber());
+      if (contentSource != null) {
+        co_actor.useContentSource(((Channel) workspace.getChannel()).export(StarTeamContentSource.class, contentSource));
+      }
+    }
+    boolean checkedOut;
+    try {
+      checkedOut = workspace.act(co_actor);
+    } finally {
+      if (contentSource != null) {
+        contentSource.close();
+      }
+    }
+    if (checkedOut) {
+      StarTeamManifestIndex.getInstance().record(build, build.getBuiltOnStr(), workspace.getRemote());
+      File filePointFile = new File(build.getRootDir(), StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+      try {
+        // keep the file points when the build they are a delta to is deleted
+        StarTeamManifestDelta.recordDependent(filePointFile);
+      } catch (IOException e) {
+        listener.getLogger().println("unable to record the file points as a delta " + e.getMessage());
+      }
+      try {
+        // share the chunks of the file points with other builds
+        StarTeamManifestStore.getInstance().intern(filePointFile);
+      } catch (IOException e) {
+        listener.getLogger().println("unable to store the file points in the shared store " + e.getMessage());
+      }
       // change log is written during checkout (only one pass for
       // comparison)
       return true;
@@ -169,17 +222,31 @@ public class StarTeamSCM extends SCM {
     AbstractBuild<?, ?> lastBuild = (AbstractBuild<?, ?>) proj.getLastBuild();
 
     Collection<StarTeamFilePoint> historicFilePoints = null;
-    if (lastBuild != null) {
-      File historicFilePointFile = new File(lastBuild.getRootDir(), StarTeamConnection.FILE_POINT_FILENAME);
-      if (historicFilePointFile.exists()) {
-        historicFilePoints = StarTeamFilePointFunctions.loadCollection(historicFilePointFile);
+    String historicDigest = null;
+    // the file points of the last build in the workspace being polled
+    File historicBuildDir = lastBuild == null ? null
+        : StarTeamManifestIndex.getInstance().find(lastBuild, lastBuild.getBuiltOnStr(), workspace.getRemote());
+    if (historicBuildDir != null) {
+      // only the digest is sent if the work folder holds a copy of the file points
+      historicDigest = StarTeamWorkspaceManifest.readDigest(historicBuildDir);
+      if (historicDigest != null
+          && !workspace.act(new StarTeamWorkspaceManifest.Check(subfolder, historicDigest))) {
+        historicDigest = null;
+      }
+      File historicFilePointFile = StarTeamFilePointFunctions.findFilePointFile(historicBuildDir);
+      if (historicDigest == null && historicFilePointFile != null) {
+        historicFilePoints = StarTeamManifestCache.getInstance().load(historicFilePointFile);
       }
     }
     // Create an actor to do the polling, possibly on a remote machine
     StarTeamPollingActor p_actor = new StarTeamPollingActor(hostname, port, cacheagenthost, cacheagentport,
-        user, passwd, projectname, viewname, foldername, subfolder,
+        user, passwd, projectname, viewname, foldername, subfolder, prunepatterns,
         config, listener,
         historicFilePoints);
+    if (historicDigest != null) {
+      p_actor.useWorkspaceManifest(historicDigest);
+    }
+    p_actor.setHistoricWorkspace(workspace.getRemote());
     if (workspace.act(p_actor)) {
       status = true;
     } else {
@@ -337,4 +404,8 @@ public class StarTeamSCM extends SCM {
   public String getSubfolder() {
     return subfolder;
   }
+
+  public String getPrunepatterns() {
+    return prunepatterns;
+  }
 }
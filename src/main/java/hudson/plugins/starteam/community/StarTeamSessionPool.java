@@ -0,0 +1,321 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.Server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of logged-on StarTeam server sessions, one per JVM (i.e. per agent).
+ * <p>
+ * Logging on to a StarTeam server is expensive, and every checkout and every
+ * poll used to open and close its own session. Sessions are now borrowed from
+ * this pool by {@link StarTeamConnection#initialize(int)} and handed back by
+ * {@link StarTeamConnection#close()}, so builds and polls of jobs talking to
+ * the same server reuse the same authenticated sessions.
+ * <p>
+ * A borrowed session is used exclusively by one connection at a time. Idle
+ * sessions are health-checked before they are handed out, disconnected after
+ * being idle for too long, and the total number of idle sessions is capped.
+ * <p>
+ * The pool can be tuned with the following system properties:
+ * <ul>
+ * <li><code>hudson.plugins.starteam.community.StarTeamSessionPool.disabled</code> - do not pool sessions at all</li>
+ * <li><code>hudson.plugins.starteam.community.StarTeamSessionPool.maxIdle</code> - maximum number of idle sessions (default 8)</li>
+ * <li><code>hudson.plugins.starteam.community.StarTeamSessionPool.idleTimeout</code> - idle time in seconds before a session is disconnected (default 600)</li>
+ * </ul>
+ */
+public final class StarTeamSessionPool {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamSessionPool.class.getName());
+
+  private static final String PROPERTY_PREFIX = StarTeamSessionPool.class.getName() + ".";
+
+  private static final StarTeamSessionPool INSTANCE = new StarTeamSessionPool(
+      !Boolean.getBoolean(PROPERTY_PREFIX + "disabled"),
+      Integer.getInteger(PROPERTY_PREFIX + "maxIdle", 8),
+      Long.getLong(PROPERTY_PREFIX + "idleTimeout", 600L) * 1000L);
+
+  private final boolean enabled;
+  private final int maxIdle;
+  private final long idleTimeout;
+
+  /**
+   * idle sessions per key, most recently released last.
+   */
+  private final Map<SessionKey, LinkedList<IdleSession>> idle = new HashMap<SessionKey, LinkedList<IdleSession>>();
+  private int idleCount = 0;
+  private Timer evictionTimer;
+
+  StarTeamSessionPool(boolean enabled, int maxIdle, long idleTimeout) {
+    this.enabled = enabled;
+    this.maxIdle = maxIdle;
+    this.idleTimeout = idleTimeout;
+  }
+
+  public static StarTeamSessionPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Take an idle, healthy session for the given key out of the pool.
+   *
+   * @param key identifies the server, user and cache agent of the session
+   * @return a logged-on server session, or null if the pool has none and the
+   *         caller must open a new one.
+   */
+  public Server borrow(SessionKey key) {
+    if (!enabled) {
+      return null;
+    }
+    Collection<Server> toDisconnect = new ArrayList<Server>();
+    Server result = null;
+    synchronized (this) {
+      collectExpired(System.currentTimeMillis(), toDisconnect);
+      LinkedList<IdleSession> sessions = idle.get(key);
+      while (result == null && sessions != null && !sessions.isEmpty()) {
+        IdleSession session = sessions.removeLast();
+        idleCount--;
+        if (isHealthy(session.server)) {
+          result = session.server;
+        } else {
+          toDisconnect.add(session.server);
+        }
+      }
+      if (sessions != null && sessions.isEmpty()) {
+        idle.remove(key);
+      }
+    }
+    disconnectAll(toDisconnect);
+    return result;
+  }
+
+  /**
+   * Hand a session back to the pool. Sessions that are no longer healthy, or
+   * that do not fit in the pool, are disconnected.
+   *
+   * @param key    the key the session was borrowed or opened with
+   * @param server the session
+   */
+  public void release(SessionKey key, Server server) {
+    if (server == null) {
+      return;
+    }
+    if (!enabled || !isHealthy(server)) {
+      disconnect(server);
+      return;
+    }
+    Collection<Server> toDisconnect = new ArrayList<Server>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      collectExpired(now, toDisconnect);
+      if (idleCount >= maxIdle) {
+        evictOldest(toDisconnect);
+      }
+      if (idleCount < maxIdle) {
+        LinkedList<IdleSession> sessions = idle.get(key);
+        if (sessions == null) {
+          sessions = new LinkedList<IdleSession>();
+          idle.put(key, sessions);
+        }
+        sessions.addLast(new IdleSession(server, now));
+        idleCount++;
+        scheduleEviction();
+      } else {
+        toDisconnect.add(server);
+      }
+    }
+    disconnectAll(toDisconnect);
+  }
+
+  /**
+   * Disconnect a session that must not be reused, e.g. after a failed logon.
+   *
+   * @param server the session
+   */
+  public void invalidate(Server server) {
+    if (server != null) {
+      disconnect(server);
+    }
+  }
+
+  /**
+   * Disconnect every idle session that has been idle longer than the idle
+   * timeout.
+   */
+  public void evictExpired() {
+    Collection<Server> toDisconnect = new ArrayList<Server>();
+    synchronized (this) {
+      collectExpired(System.currentTimeMillis(), toDisconnect);
+    }
+    disconnectAll(toDisconnect);
+  }
+
+  /**
+   * Disconnect every idle session.
+   */
+  public void clear() {
+    Collection<Server> toDisconnect = new ArrayList<Server>();
+    synchronized (this) {
+      for (List<IdleSession> sessions : idle.values()) {
+        for (IdleSession session : sessions) {
+          toDisconnect.add(session.server);
+        }
+      }
+      idle.clear();
+      idleCount = 0;
+    }
+    disconnectAll(toDisconnect);
+  }
+
+  synchronized int getIdleCount() {
+    return idleCount;
+  }
+
+  private void collectExpired(long now, Collection<Server> toDisconnect) {
+    Iterator<LinkedList<IdleSession>> it = idle.values().iterator();
+    while (it.hasNext()) {
+      LinkedList<IdleSession> sessions = it.next();
+      Iterator<IdleSession> sessionIt = sessions.iterator();
+      while (sessionIt.hasNext()) {
+        IdleSession session = sessionIt.next();
+        if (now - session.releasedAt >= idleTimeout) {
+          sessionIt.remove();
+          idleCount--;
+          toDisconnect.add(session.server);
+        }
+      }
+      if (sessions.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private void evictOldest(Collection<Server> toDisconnect) {
+    SessionKey oldestKey = null;
+    IdleSession oldest = null;
+    for (Map.Entry<SessionKey, LinkedList<IdleSession>> entry : idle.entrySet()) {
+      IdleSession candidate = entry.getValue().getFirst();
+      if (oldest == null || candidate.releasedAt < oldest.releasedAt) {
+        oldest = candidate;
+        oldestKey = entry.getKey();
+      }
+    }
+    if (oldest != null) {
+      LinkedList<IdleSession> sessions = idle.get(oldestKey);
+      sessions.removeFirst();
+      if (sessions.isEmpty()) {
+        idle.remove(oldestKey);
+      }
+      idleCount--;
+      toDisconnect.add(oldest.server);
+    }
+  }
+
+  private void scheduleEviction() {
+    if (evictionTimer == null) {
+      evictionTimer = new Timer("StarTeam session pool eviction", true);
+      long period = Math.max(1000L, idleTimeout / 2);
+      evictionTimer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          evictExpired();
+        }
+      }, period, period);
+    }
+  }
+
+  private static boolean isHealthy(Server server) {
+    try {
+      return server.isConnected() && server.isLoggedOn();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.FINE, "StarTeam session health check failed", e);
+      return false;
+    }
+  }
+
+  private static void disconnectAll(Collection<Server> servers) {
+    for (Server server : servers) {
+      disconnect(server);
+    }
+  }
+
+  private static void disconnect(Server server) {
+    try {
+      if (server.isConnected()) {
+        server.disconnect();
+      }
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.FINE, "Failed to disconnect StarTeam session", e);
+    }
+  }
+
+  private static final class IdleSession {
+    private final Server server;
+    private final long releasedAt;
+
+    private IdleSession(Server server, long releasedAt) {
+      this.server = server;
+      this.releasedAt = releasedAt;
+    }
+  }
+
+  /**
+   * Identifies interchangeable sessions: same server, same user and same
+   * cache agent. The password is part of the key so that a session is never
+   * handed to a connection configured with different credentials.
+   */
+  public static final class SessionKey {
+    private final String hostName;
+    private final int port;
+    private final String userName;
+    private final String password;
+    private final String agentHost;
+    private final int agentPort;
+
+    public SessionKey(String hostName, int port, String userName, String password, String agentHost, int agentPort) {
+      this.hostName = hostName;
+      this.port = port;
+      this.userName = userName;
+      this.password = password;
+      this.agentHost = agentHost;
+      this.agentPort = agentPort;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      SessionKey that = (SessionKey) o;
+      return port == that.port && agentPort == that.agentPort && hostName.equals(that.hostName)
+          && userName.equals(that.userName) && password.equals(that.password)
+          && (agentHost != null ? agentHost.equals(that.agentHost) : that.agentHost == null);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = hostName.hashCode();
+      result = 31 * result + port;
+      result = 31 * result + userName.hashCode();
+      result = 31 * result + (agentHost != null ? agentHost.hashCode() : 0);
+      result = 31 * result + agentPort;
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return userName + "@" + hostName + ":" + port + (agentHost == null ? "" : " via " + agentHost + ":" + agentPort);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.Server;
+import com.starteam.User;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the user accounts of a StarTeam server, used to translate the
+ * users of change log entries into Jenkins user names.
+ * <p>
+ * The user list is fetched from the server once and indexed by user ID and
+ * by user name. Directories are shared by every connection to the same server
+ * in this JVM, and are fetched again once they are older than the time to
+ * live (in seconds, default 600), which can be set with the system property
+ * <code>hudson.plugins.starteam.community.StarTeamUserDirectory.ttl</code>.
+ * A user list that cannot be fetched, e.g. because the user lacks the
+ * permission to administer user accounts, is not remembered: the next
+ * request fetches it again, and uses the expired directory meanwhile.
+ */
+public final class StarTeamUserDirectory {
+
+  private static final long TTL = Long.getLong(StarTeamUserDirectory.class.getName() + ".ttl", 600L) * 1000L;
+
+  private static final Map<String, StarTeamUserDirectory> DIRECTORIES = new HashMap<String, StarTeamUserDirectory>();
+
+  private final Map<Integer, String> usernamesById = new HashMap<Integer, String>();
+  private final Map<String, String> usernamesByName = new HashMap<String, String>();
+  private final boolean readable;
+  private final long fetchedAt;
+
+  StarTeamUserDirectory(User[] userAccts, long fetchedAt) {
+    this.readable = userAccts != null;
+    this.fetchedAt = fetchedAt;
+    if (userAccts != null) {
+      for (User ua : userAccts) {
+        String name = ua.getName();
+        String email = ua.getEmailAddress();
+        int index = email == null ? -1 : email.indexOf('@');
+        // as with a linear scan, the first account with this name and an email
+        // address wins
+        if (index > -1 && !usernamesByName.containsKey(name)) {
+          usernamesByName.put(name, email.substring(0, index));
+        }
+      }
+      for (User ua : userAccts) {
+        String username = usernamesByName.get(ua.getName());
+        if (username != null) {
+          usernamesById.put(ua.getID(), username);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the directory of the given server, fetching the user list if there is
+   * no directory yet or if it has expired. A failed fetch is not remembered.
+   *
+   * @param serverKey identifies the server and the user the list was fetched with
+   * @param server    the logged on server
+   * @return the user directory
+   */
+  public static StarTeamUserDirectory get(String serverKey, Server server) {
+    StarTeamUserDirectory cached;
+    synchronized (DIRECTORIES) {
+      cached = DIRECTORIES.get(serverKey);
+      if (cached != null && System.currentTimeMillis() - cached.fetchedAt < TTL) {
+        return cached;
+      }
+    }
+    User[] userAccts = null;
+    try {
+      userAccts = server.getAdministration().getUsers();
+    } catch (Exception e) {
+      // Looks like this user does not have the permission "Administer User
+      // Accounts" on the StarTeam Server; default to just using User Full Names.
+    }
+    if (userAccts == null) {
+      return cached != null ? cached : new StarTeamUserDirectory(null, System.currentTimeMillis());
+    }
+    StarTeamUserDirectory directory = new StarTeamUserDirectory(userAccts, System.currentTimeMillis());
+    synchronized (DIRECTORIES) {
+      DIRECTORIES.put(serverKey, directory);
+    }
+    return directory;
+  }
+
+  /**
+   * Returns the name of the given StarTeam user as known to Jenkins: the local
+   * part of the user's email address, or the user's full name if the email
+   * address is not known.
+   *
+   * @param stUser a StarTeam user
+   * @return the user name
+   */
+  public String getUsername(User stUser) {
+    if (!readable) {
+      // Since the user account running the build does not have user admin perms
+      // use the User Full Name
+      return stUser.getName();
+    }
+    String username = usernamesById.get(stUser.getID());
+    if (username == null) {
+      username = usernamesByName.get(stUser.getName());
+    }
+    return username != null ? username : stUser.getName();
+  }
+}
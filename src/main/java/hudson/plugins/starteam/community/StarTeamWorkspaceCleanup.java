@@ -0,0 +1,218 @@
+package hudson.plugins.starteam.community;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes the files of a workspace that are no longer in StarTeam, along with
+ * the directories left empty.
+ * <p>
+ * Files are deleted in parallel on a fork-join pool. Afterwards the
+ * directories that held deleted files are removed if they are empty, deepest
+ * first, continuing with the parents of every removed directory. The work
+ * folder itself, the plugin's metadata directory and the directories of
+ * StarTeam folders, which a checkout leaves empty if the folder is, are never
+ * removed.
+ * <p>
+ * The number of threads (default: the number of processors) can be set with
+ * the system property
+ * <code>hudson.plugins.starteam.community.StarTeamWorkspaceCleanup.threads</code>.
+ */
+public final class StarTeamWorkspaceCleanup {
+
+  private static final int THREADS = Integer.getInteger(StarTeamWorkspaceCleanup.class.getName() + ".threads",
+      Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Number of files deleted by one task.
+   */
+  private static final int BATCH_SIZE = 256;
+
+  /**
+   * Orders directories deepest first.
+   */
+  private static final Comparator<Path> DEEPEST_FIRST = new Comparator<Path>() {
+    public int compare(Path o1, Path o2) {
+      int result = o2.getNameCount() - o1.getNameCount();
+      return result != 0 ? result : o1.compareTo(o2);
+    }
+  };
+
+  private final Path root;
+  private final Path metadataDir;
+  private final Set<Path> folders = new HashSet<Path>();
+  private final Path[] files;
+  private final AtomicInteger removed = new AtomicInteger();
+  private final AtomicInteger missing = new AtomicInteger();
+  private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+  private final Set<Path> parents = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+  private int removedDirectories;
+
+  private StarTeamWorkspaceCleanup(java.io.File workFolder, Collection<java.io.File> files,
+                                   Collection<java.io.File> folderPaths) {
+    this.root = workFolder.getAbsoluteFile().toPath().normalize();
+    this.metadataDir = root.resolve(StarTeamConnection.WORKSPACE_METADATA_DIRNAME);
+    for (java.io.File folderPath : folderPaths) {
+      folders.add(folderPath.getAbsoluteFile().toPath().normalize());
+    }
+    this.files = new Path[files.size()];
+    int i = 0;
+    for (java.io.File file : files) {
+      this.files[i++] = file.getAbsoluteFile().toPath().normalize();
+    }
+  }
+
+  /**
+   * Remove files and the directories they leave empty.
+   *
+   * @param workFolder the work folder, which is never removed
+   * @param files      the files to remove
+   * @return the counts of what was removed
+   */
+  public static StarTeamWorkspaceCleanup remove(java.io.File workFolder, Collection<java.io.File> files) {
+    return remove(workFolder, files, Collections.<java.io.File>emptyList());
+  }
+
+  /**
+   * Remove files and the directories they leave empty, except for the
+   * directories of StarTeam folders.
+   *
+   * @param workFolder  the work folder, which is never removed
+   * @param files       the files to remove
+   * @param folderPaths the local directories of the folders of the view, see
+   *                    {@link StarTeamFunctions#listAllFolderPaths(com.starteam.Folder)}
+   * @return the counts of what was removed
+   */
+  public static StarTeamWorkspaceCleanup remove(java.io.File workFolder, Collection<java.io.File> files,
+                                                Collection<java.io.File> folderPaths) {
+    StarTeamWorkspaceCleanup cleanup = new StarTeamWorkspaceCleanup(workFolder, files, folderPaths);
+    if (cleanup.files.length > 0) {
+      ForkJoinPool pool = new ForkJoinPool(Math.max(1, THREADS));
+      try {
+        pool.invoke(cleanup.new DeleteTask(0, cleanup.files.length));
+      } finally {
+        pool.shutdown();
+      }
+      cleanup.prune();
+    }
+    return cleanup;
+  }
+
+  /**
+   * Remove the directories that held deleted files if they are empty and
+   * are no StarTeam folders, deepest first, continuing upwards from every
+   * removed directory.
+   */
+  private void prune() {
+    TreeSet<Path> candidates = new TreeSet<Path>(DEEPEST_FIRST);
+    candidates.addAll(parents);
+    while (!candidates.isEmpty()) {
+      Path directory = candidates.pollFirst();
+      if (!directory.startsWith(root) || directory.equals(root) || directory.startsWith(metadataDir)
+          || folders.contains(directory)) {
+        continue;
+      }
+      try {
+        Files.delete(directory);
+        removedDirectories++;
+        candidates.add(directory.getParent());
+      } catch (DirectoryNotEmptyException e) {
+        // still in use
+      } catch (NoSuchFileException e) {
+        // removed already
+      } catch (IOException e) {
+        failures.add(directory + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * @return the number of files removed
+   */
+  public int getRemoved() {
+    return removed.get();
+  }
+
+  /**
+   * @return the number of files that did not exist any more
+   */
+  public int getMissing() {
+    return missing.get();
+  }
+
+  /**
+   * @return the number of empty directories removed
+   */
+  public int getRemovedDirectories() {
+    return removedDirectories;
+  }
+
+  /**
+   * @return the files and directories that could not be removed, along with the reason
+   */
+  public List<String> getFailures() {
+    return failures;
+  }
+
+  @Override
+  public String toString() {
+    return "removed " + getRemoved() + " files and " + getRemovedDirectories() + " empty directories, "
+        + getMissing() + " files were already gone, " + failures.size() + " failures";
+  }
+
+  /**
+   * Deletes the files [from, to), splitting the range while it holds more
+   * than one batch.
+   */
+  private final class DeleteTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+
+    private DeleteTask(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > BATCH_SIZE) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new DeleteTask(from, middle), new DeleteTask(middle, to));
+        return;
+      }
+      for (int i = from; i < to; i++) {
+        Path file = files[i];
+        if (file.startsWith(metadataDir)) {
+          continue;
+        }
+        try {
+          if (Files.deleteIfExists(file)) {
+            removed.incrementAndGet();
+            parents.add(file.getParent());
+          } else {
+            missing.incrementAndGet();
+          }
+        } catch (IOException e) {
+          failures.add(file + ": " + e);
+        }
+      }
+    }
+  }
+}
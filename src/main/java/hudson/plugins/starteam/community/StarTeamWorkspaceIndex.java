@@ -0,0 +1,210 @@
+package hudson.plugins.starteam.community;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistent index of the content of the files in a workspace: for each file,
+ * the size and modification time it had when its MD5 was last known.
+ * <p>
+ * As long as a file's size and modification time have not changed, the index
+ * tells whether it is identical to a StarTeam MD5 without reading the file.
+ * Entries are recorded when files are checked out, and when local files are
+ * hashed because there are no historic file points. The index is stored in
+ * the workspace metadata directory and is rebuilt from scratch if it cannot
+ * be read.
+ * <p>
+ * MD5s are kept in their {@link com.starteam.util.MD5#toString()} form, the
+ * form they are compared and logged in.
+ */
+public final class StarTeamWorkspaceIndex {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamWorkspaceIndex.class.getName());
+
+  public static final String INDEX_FILENAME = "content-index.bin";
+
+  private static final int MAGIC = 0x53544349; // STCI
+  private static final int VERSION = 1;
+
+  private final java.io.File indexFile;
+  private final String rootPath;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean dirty;
+
+  private StarTeamWorkspaceIndex(java.io.File workFolder) {
+    java.io.File root = workFolder.getAbsoluteFile();
+    this.rootPath = root.getPath() + java.io.File.separator;
+    this.indexFile = new java.io.File(new java.io.File(root, StarTeamConnection.WORKSPACE_METADATA_DIRNAME), INDEX_FILENAME);
+  }
+
+  /**
+   * Load the index of a workspace. A missing, corrupted or unreadable index
+   * yields an empty index that will replace it when saved.
+   *
+   * @param workFolder the folder files are checked out to
+   * @return the index
+   */
+  public static StarTeamWorkspaceIndex load(java.io.File workFolder) {
+    StarTeamWorkspaceIndex index = new StarTeamWorkspaceIndex(workFolder);
+    if (index.indexFile.isFile()) {
+      try {
+        index.read();
+      } catch (IOException e) {
+        LOGGER.log(Level.INFO, "Rebuilding unreadable StarTeam content index " + index.indexFile, e);
+        index.entries.clear();
+        index.dirty = true;
+      }
+    }
+    return index;
+  }
+
+  private void read() throws IOException {
+    CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(indexFile)), new CRC32());
+    DataInputStream in = new DataInputStream(checked);
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a StarTeam content index");
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        String md5 = in.readUTF();
+        entries.put(path, new Entry(size, lastModified, md5));
+      }
+      long expected = checked.getChecksum().getValue();
+      if (in.readLong() != expected) {
+        throw new IOException("Checksum mismatch");
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Store the index if it has changed since it was loaded.
+   *
+   * @throws IOException if the index cannot be written
+   */
+  public void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    java.io.File directory = indexFile.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    java.io.File tmp = new java.io.File(directory, INDEX_FILENAME + ".tmp");
+    CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), new CRC32());
+    DataOutputStream out = new DataOutputStream(checked);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      // snapshot, entries may be recorded concurrently
+      Map<String, Entry> snapshot = new HashMap<String, Entry>(entries);
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeLong(e.getValue().size);
+        out.writeLong(e.getValue().lastModified);
+        out.writeUTF(e.getValue().md5);
+      }
+      out.writeLong(checked.getChecksum().getValue());
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(indexFile)) {
+      indexFile.delete();
+      if (!tmp.renameTo(indexFile)) {
+        throw new IOException("Unable to replace " + indexFile);
+      }
+    }
+    dirty = false;
+  }
+
+  /**
+   * @param file         a file in the workspace
+   * @param size         the current size of the file
+   * @param lastModified the current modification time of the file
+   * @return the MD5 of the file if known for this size and modification time,
+   *         otherwise null
+   */
+  public String lookup(java.io.File file, long size, long lastModified) {
+    String path = relativize(file);
+    if (path == null) {
+      return null;
+    }
+    Entry entry = entries.get(path);
+    if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+      return entry.md5;
+    }
+    return null;
+  }
+
+  /**
+   * Record the MD5 of a file as of the given size and modification time.
+   */
+  public void record(java.io.File file, long size, long lastModified, String md5) {
+    String path = relativize(file);
+    if (path != null && md5 != null) {
+      entries.put(path, new Entry(size, lastModified, md5));
+      dirty = true;
+    }
+  }
+
+  /**
+   * Record the MD5 of a file as of its current size and modification time.
+   */
+  public void record(java.io.File file, String md5) {
+    long lastModified = file.lastModified();
+    if (lastModified != 0L) {
+      record(file, file.length(), lastModified, md5);
+    }
+  }
+
+  public void remove(java.io.File file) {
+    String path = relativize(file);
+    if (path != null && entries.remove(path) != null) {
+      dirty = true;
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private String relativize(java.io.File file) {
+    String path = file.getAbsolutePath();
+    if (!path.startsWith(rootPath)) {
+      return null;
+    }
+    return path.substring(rootPath.length());
+  }
+
+  private static final class Entry {
+    private final long size;
+    private final long lastModified;
+    private final String md5;
+
+    private Entry(long size, long lastModified, String md5) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.md5 = md5;
+    }
+  }
+}
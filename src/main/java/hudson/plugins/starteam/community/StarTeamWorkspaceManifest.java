@@ -0,0 +1,189 @@
+package hudson.plugins.starteam.community;
+
+import com.google.common.base.Strings;
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.remoting.RoleChecker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A copy of the file points of the last checkout kept in the work folder, so
+ * that the file points of the previous build need not be sent to the agent.
+ * <p>
+ * A checkout stores its file points in the metadata directory of the work
+ * folder along with their digest, and stores the same digest next to the
+ * file points of the build on the controller. Before a checkout or a poll,
+ * the controller asks the agent whether the copy in the work folder has the
+ * digest of the previous build, see {@link Check}; only if it has not are the
+ * file points sent along.
+ */
+public final class StarTeamWorkspaceManifest {
+
+  private static final Logger LOGGER = Logger.getLogger(StarTeamWorkspaceManifest.class.getName());
+
+  static final String MANIFEST_FILENAME = "filepoints.bin";
+  static final String DIGEST_FILENAME = "filepoints.digest";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private StarTeamWorkspaceManifest() {
+    throw new InstantiationError();
+  }
+
+  /**
+   * @param filePoints file points, sorted by {@link StarTeamFilePointMerge#FILE_POINT_ORDER}
+   * @return a digest of the paths, revisions and modification times of the
+   *         file points, independent of how they are stored
+   */
+  public static String digest(Iterable<StarTeamFilePoint> filePoints) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    DataOutputStream out = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        // only the digest is of interest
+      }
+    }, digest));
+    try {
+      for (StarTeamFilePoint filePoint : filePoints) {
+        out.write(filePoint.getFullfilepath().getBytes(UTF8));
+        out.writeByte(0);
+        out.writeInt(filePoint.getRevisionNumber());
+        out.writeLong(filePoint.getLastModifyDate());
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * @param buildDir the root directory of a build
+   * @return the digest of the file points of the build, or null if the build
+   *         has none
+   */
+  public static String readDigest(File buildDir) {
+    File file = new File(buildDir, StarTeamConnection.FILE_POINT_DIGEST_FILENAME);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      return FileUtils.readFileToString(file, UTF8).trim();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to read " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Store the file points of a checkout in the work folder. The digest is
+   * written last, so that an incomplete copy is never used.
+   *
+   * @param workFolder the work folder
+   * @param filePoints the file points of the checkout
+   * @param digest     their digest, see {@link #digest(Iterable)}
+   * @throws IOException if the copy cannot be written
+   */
+  public static void store(File workFolder, Collection<StarTeamFilePoint> filePoints, String digest) throws IOException {
+    File directory = new File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME);
+    File digestFile = new File(directory, DIGEST_FILENAME);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    if (digestFile.exists() && !digestFile.delete()) {
+      throw new IOException("Unable to delete " + digestFile);
+    }
+    StarTeamFilePointFunctions.storeCollection(
+        new BufferedOutputStream(new FileOutputStream(new File(directory, MANIFEST_FILENAME)), 64 * 1024), filePoints,
+        null, workFolder);
+    FileUtils.writeStringToFile(digestFile, digest, UTF8);
+  }
+
+  /**
+   * @param workFolder the work folder
+   * @param digest     the digest the copy must have
+   * @return whether the work folder holds a copy of the file points with the
+   *         digest
+   */
+  public static boolean matches(File workFolder, String digest) {
+    File digestFile = new File(new File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME), DIGEST_FILENAME);
+    try {
+      return digest != null && digestFile.isFile()
+          && digest.equals(FileUtils.readFileToString(digestFile, UTF8).trim());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param workFolder the work folder
+   * @param digest     the digest the copy must have
+   * @return the file points kept in the work folder, or null if they do not
+   *         have the digest or cannot be read
+   */
+  public static StarTeamManifest load(File workFolder, String digest) {
+    if (!matches(workFolder, digest)) {
+      return null;
+    }
+    File file = new File(new File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME), MANIFEST_FILENAME);
+    try {
+      return StarTeamManifest.open(file).relocate(StarTeamFilePointFunctions.root(workFolder));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to read " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Tells whether the work folder holds a copy of the file points with a
+   * digest.
+   */
+  public static final class Check implements FileCallable<Boolean> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String subfolder;
+    private final String digest;
+
+    /**
+     * @param subfolder the work folder relative to the workspace, may be empty
+     * @param digest    the digest of the file points of the previous build
+     */
+    public Check(String subfolder, String digest) {
+      this.subfolder = subfolder;
+      this.digest = digest;
+    }
+
+    public Boolean invoke(File workspace, VirtualChannel channel) {
+      return matches(Strings.isNullOrEmpty(subfolder) ? workspace : new File(workspace, subfolder.trim()), digest);
+    }
+
+    @Override
+    public void checkRoles(RoleChecker roleChecker) throws SecurityException {
+
+    }
+  }
+}
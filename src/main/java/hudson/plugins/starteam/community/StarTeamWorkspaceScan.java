@@ -0,0 +1,276 @@
+package hudson.plugins.starteam.community;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The files of a workspace along with their size and modification time, read
+ * in a single pass so that no file needs to be statted again while computing
+ * the changes.
+ * <p>
+ * Directories are listed in parallel on a fork-join pool, one task per
+ * directory. The plugin's metadata directory is skipped. A scan can be guided
+ * by the StarTeam folder tree: it then only descends into directories that
+ * correspond to StarTeam folders, and skips directories matching the prune
+ * patterns, so that build outputs are never walked.
+ * <p>
+ * Files in directories that were not listed are not part of the scan; their
+ * attributes are read from the file system on demand. The number of threads
+ * (default: the number of processors) can be set with the system property
+ * <code>hudson.plugins.starteam.community.StarTeamWorkspaceScan.threads</code>.
+ */
+public final class StarTeamWorkspaceScan implements StarTeamFilePointMerge.LocalTimestamps {
+
+  private static final int THREADS = Integer.getInteger(StarTeamWorkspaceScan.class.getName() + ".threads",
+      Runtime.getRuntime().availableProcessors());
+
+  private final Map<java.io.File, Attributes> files = new ConcurrentHashMap<java.io.File, Attributes>();
+  private final Set<java.io.File> listedDirectories =
+      Collections.newSetFromMap(new ConcurrentHashMap<java.io.File, Boolean>());
+
+  private final Path root;
+  private final Path metadataDir;
+  /**
+   * paths of the directories whose files are scanned, null to scan all
+   */
+  private final Set<String> managed;
+  /**
+   * paths of the directories leading to managed directories
+   */
+  private final Set<String> ancestors;
+  private final List<PathMatcher> namePatterns = new ArrayList<PathMatcher>();
+  private final List<PathMatcher> pathPatterns = new ArrayList<PathMatcher>();
+
+  private StarTeamWorkspaceScan(java.io.File root, Set<String> managed, Set<String> ancestors,
+                                Collection<String> prunePatterns) {
+    this.root = root.toPath();
+    this.metadataDir = new java.io.File(root, StarTeamConnection.WORKSPACE_METADATA_DIRNAME).toPath();
+    this.managed = managed;
+    this.ancestors = ancestors;
+    for (String pattern : prunePatterns) {
+      PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+      if (pattern.indexOf('/') < 0 && pattern.indexOf('\\') < 0) {
+        namePatterns.add(matcher);
+      } else {
+        pathPatterns.add(matcher);
+      }
+    }
+  }
+
+  /**
+   * Size and modification time of a scanned file.
+   */
+  public static final class Attributes {
+    private final long size;
+    private final long lastModified;
+
+    private Attributes(BasicFileAttributes attributes) {
+      this.size = attributes.size();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+  }
+
+  /**
+   * Scan a whole workspace.
+   *
+   * @param workFolder a Hudson workFolder directory
+   * @return the files within workFolder
+   */
+  public static StarTeamWorkspaceScan scan(java.io.File workFolder) {
+    StarTeamWorkspaceScan scan = new StarTeamWorkspaceScan(workFolder.getAbsoluteFile(), null, null,
+        Collections.<String>emptyList());
+    scan.run();
+    return scan;
+  }
+
+  /**
+   * Scan the part of a workspace managed by StarTeam.
+   *
+   * @param workFolder    a Hudson workFolder directory
+   * @param folderPaths   the local directories of the StarTeam folders
+   * @param prunePatterns glob patterns of directories not to scan; a pattern
+   *                      without a separator matches directory names at any
+   *                      depth, otherwise the path relative to workFolder
+   * @return the files within the directories of workFolder that correspond to
+   *         StarTeam folders
+   */
+  public static StarTeamWorkspaceScan scan(java.io.File workFolder, Collection<java.io.File> folderPaths,
+                                           Collection<String> prunePatterns) {
+    java.io.File root = workFolder.getAbsoluteFile();
+    Set<String> managed = new TreeSet<String>(StarTeamFilePointMerge.PATH_ORDER);
+    Set<String> ancestors = new TreeSet<String>(StarTeamFilePointMerge.PATH_ORDER);
+    managed.add(root.getPath());
+    for (java.io.File folderPath : folderPaths) {
+      java.io.File directory = folderPath.getAbsoluteFile().toPath().normalize().toFile();
+      if (managed.add(directory.getPath())) {
+        for (java.io.File parent = directory.getParentFile(); parent != null; parent = parent.getParentFile()) {
+          if (!ancestors.add(parent.getPath())) {
+            break;
+          }
+        }
+      }
+    }
+    StarTeamWorkspaceScan scan = new StarTeamWorkspaceScan(root, managed, ancestors, prunePatterns);
+    scan.run();
+    return scan;
+  }
+
+  private void run() {
+    BasicFileAttributes attributes = readAttributes(root);
+    if (attributes == null) {
+      return;
+    }
+    if (!attributes.isDirectory()) {
+      if (attributes.isRegularFile()) {
+        files.put(root.toFile(), new Attributes(attributes));
+      }
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, THREADS));
+    try {
+      pool.invoke(new DirectoryTask(root, true));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * @return the scanned files
+   */
+  public Collection<java.io.File> getFiles() {
+    return files.keySet();
+  }
+
+  /**
+   * @param file a file of the workspace
+   * @return whether the directory of the file was listed, i.e. whether
+   *         {@link #getAttributes(java.io.File)} is conclusive for it
+   */
+  public boolean isScanned(java.io.File file) {
+    return files.containsKey(file) || listedDirectories.contains(file.getParentFile());
+  }
+
+  /**
+   * @param file a file of the workspace
+   * @return the attributes of the file, or null if it was not found
+   */
+  public Attributes getAttributes(java.io.File file) {
+    return files.get(file);
+  }
+
+  public long lastModified(StarTeamFilePoint filePoint) {
+    java.io.File file = filePoint.getFile();
+    Attributes attributes = files.get(file);
+    if (attributes != null) {
+      return attributes.lastModified;
+    }
+    return isScanned(file) ? 0L : file.lastModified();
+  }
+
+  /**
+   * @return the attributes of the file, following links, or null if they
+   *         cannot be read, e.g. for a dangling link
+   */
+  private static BasicFileAttributes readAttributes(Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private boolean isPruned(Path directory) {
+    if (directory.equals(metadataDir)) {
+      return true;
+    }
+    Path name = directory.getFileName();
+    for (PathMatcher matcher : namePatterns) {
+      if (name != null && matcher.matches(name)) {
+        return true;
+      }
+    }
+    if (!pathPatterns.isEmpty()) {
+      Path relative = root.relativize(directory);
+      for (PathMatcher matcher : pathPatterns) {
+        if (matcher.matches(relative)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Lists a directory, collecting its files if it is managed, and forks a
+   * task for each subdirectory that is managed or leads to one.
+   */
+  private final class DirectoryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Path directory;
+    private final boolean collect;
+
+    private DirectoryTask(Path directory, boolean collect) {
+      this.directory = directory;
+      this.collect = collect;
+    }
+
+    @Override
+    protected void compute() {
+      List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+      try {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+        try {
+          for (Path path : stream) {
+            BasicFileAttributes attributes = readAttributes(path);
+            if (attributes == null) {
+              continue;
+            }
+            if (attributes.isRegularFile()) {
+              if (collect) {
+                files.put(path.toFile(), new Attributes(attributes));
+              }
+            } else if (attributes.isDirectory() && !isPruned(path)) {
+              if (managed == null || managed.contains(path.toString())) {
+                subdirectories.add(new DirectoryTask(path, true));
+              } else if (ancestors.contains(path.toString())) {
+                subdirectories.add(new DirectoryTask(path, false));
+              }
+            }
+          }
+        } finally {
+          stream.close();
+        }
+        if (collect) {
+          listedDirectories.add(directory.toFile());
+        }
+      } catch (IOException e) {
+        // an unreadable directory contributes no files, as with File.listFiles()
+      }
+      invokeAll(subdirectories);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamCheckoutJournalTest {
+
+  private File workFolder;
+
+  @Before
+  public void setUp() throws IOException {
+    workFolder = File.createTempFile("starteam-journal", "");
+    workFolder.delete();
+    workFolder.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workFolder);
+  }
+
+  private StarTeamFilePoint checkedOut(String name, int revision, long lastModified) throws IOException {
+    File file = new File(workFolder, name);
+    FileUtils.writeStringToFile(file, name, "UTF-8");
+    file.setLastModified(lastModified);
+    return new StarTeamFilePoint(file.getAbsolutePath(), revision, lastModified);
+  }
+
+  private File journalFile() {
+    return new File(new File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME),
+        StarTeamCheckoutJournal.JOURNAL_FILENAME);
+  }
+
+  @Test
+  public void resumesFromConfirmedFiles() throws IOException {
+    StarTeamFilePoint first = checkedOut("src/a.txt", 3, 1000000L);
+    StarTeamFilePoint second = checkedOut("src/b.txt", 1, 2000000L);
+    // never got its content
+    StarTeamFilePoint missing = new StarTeamFilePoint(new File(workFolder, "src/c.txt").getAbsolutePath(), 1, 3000000L);
+    StarTeamCheckoutJournal journal = StarTeamCheckoutJournal.open(workFolder);
+    journal.record(Arrays.asList(first, second, missing));
+    journal.close();
+    // an interrupted write
+    FileUtils.writeStringToFile(journalFile(), "7\t12", "UTF-8", true);
+
+    journal = StarTeamCheckoutJournal.open(workFolder);
+    assertEquals(2, journal.size());
+    assertTrue(journal.isConfirmed(first));
+    assertFalse(journal.isConfirmed(missing));
+    assertFalse(journal.isConfirmed(new StarTeamFilePoint(first.getFullfilepath(), 4, 1000000L)));
+    second.getFile().setLastModified(5000000L);
+    assertFalse(journal.isConfirmed(second));
+
+    journal.delete();
+    assertFalse(journalFile().exists());
+    assertEquals(0, StarTeamCheckoutJournal.open(workFolder).size());
+  }
+}
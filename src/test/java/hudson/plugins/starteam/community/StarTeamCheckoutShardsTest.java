@@ -0,0 +1,103 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.File;
+import com.starteam.Folder;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JMock.class)
+public class StarTeamCheckoutShardsTest {
+
+  private Mockery mockery = new Mockery() {{ setImposteriser(ClassImposteriser.INSTANCE); }};
+
+  /**
+   * groups paths by directory and weighs them by length
+   */
+  private static final StarTeamCheckoutShards.Weigher<String> BY_DIRECTORY = new StarTeamCheckoutShards.Weigher<String>() {
+    public Object group(String item) {
+      return item.substring(0, item.lastIndexOf('/'));
+    }
+
+    public long weight(String item) {
+      return item.length();
+    }
+  };
+
+  @Test
+  public void keepsFoldersTogether() {
+    List<String> files = Arrays.asList("/a/1", "/b/1", "/a/2", "/c/1", "/b/2", "/a/3");
+
+    List<List<String>> shards = StarTeamCheckoutShards.partition(files, 2, BY_DIRECTORY);
+
+    assertEquals(2, shards.size());
+    // the heaviest folder goes first, the other two share the second shard
+    assertEquals(Arrays.asList("/a/1", "/a/2", "/a/3"), shards.get(0));
+    assertEquals(Arrays.asList("/b/1", "/b/2", "/c/1"), shards.get(1));
+  }
+
+  @Test
+  public void balancesWeights() {
+    List<String> files = Arrays.asList("/a/xxxxxxxx", "/b/xxxxxx", "/c/xxxx", "/d/xx", "/e/xx");
+
+    List<List<String>> shards = StarTeamCheckoutShards.partition(files, 3, BY_DIRECTORY);
+
+    assertEquals(3, shards.size());
+    assertEquals(Arrays.asList("/a/xxxxxxxx"), shards.get(0));
+    assertEquals(Arrays.asList("/b/xxxxxx", "/e/xx"), shards.get(1));
+    assertEquals(Arrays.asList("/c/xxxx", "/d/xx"), shards.get(2));
+  }
+
+  @Test
+  public void neverMakesEmptyShards() {
+    assertEquals(1, StarTeamCheckoutShards.partition(Arrays.asList("/a/1", "/a/2"), 4, BY_DIRECTORY).size());
+    assertTrue(StarTeamCheckoutShards.partition(Collections.<String>emptyList(), 4, BY_DIRECTORY).isEmpty());
+  }
+
+  private File file(final Folder folder, final long size) {
+    final File file = mockery.mock(File.class, "file" + size);
+    mockery.checking(new Expectations() {{
+      allowing(file).getParentFolder(); will(returnValue(folder));
+      allowing(file).getSizeEx(); will(returnValue(size));
+    }});
+    return file;
+  }
+
+  private Folder folder(final int id) {
+    final Folder folder = mockery.mock(Folder.class, "folder" + id);
+    mockery.checking(new Expectations() {{
+      allowing(folder).getID(); will(returnValue(id));
+    }});
+    return folder;
+  }
+
+  @Test
+  public void weighsStarTeamFilesByFolderAndSize() {
+    Folder big = folder(1);
+    Folder small = folder(2);
+    Folder other = folder(3);
+    File big1 = file(big, 4 * 1024 * 1024);
+    File small1 = file(small, 1024);
+    File big2 = file(big, 2 * 1024 * 1024);
+    File small2 = file(small, 2048);
+    File other1 = file(other, 512 * 1024);
+
+    List<List<File>> shards = StarTeamCheckoutShards.partition(Arrays.asList(big1, small1, big2, small2, other1), 2,
+        StarTeamCheckoutShards.BY_FOLDER);
+
+    assertEquals(2, shards.size());
+    assertEquals(Arrays.asList(big1, big2), shards.get(0));
+    assertEquals(Arrays.asList(other1, small1, small2), shards.get(1));
+    assertEquals(StarTeamCheckoutShards.FILE_OVERHEAD + 1024, StarTeamCheckoutShards.BY_FOLDER.weight(small1));
+  }
+}
@@ -0,0 +1,80 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.File;
+import org.apache.commons.io.FileUtils;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static hudson.plugins.starteam.community.StarTeamFileFixture.connection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Computes the changes of a work folder against mocked StarTeam files.
+ */
+@RunWith(JMock.class)
+public class StarTeamConnectionChangeSetTest {
+
+  private Mockery mockery = new Mockery() {{ setImposteriser(ClassImposteriser.INSTANCE); }};
+
+  private java.io.File workFolder;
+  private PrintStream logger;
+  private StarTeamFileFixture fixture;
+
+  @Before
+  public void setUp() throws IOException {
+    workFolder = java.io.File.createTempFile("starteam-workspace", "");
+    workFolder.delete();
+    workFolder.mkdirs();
+    fixture = new StarTeamFileFixture(mockery, workFolder);
+    logger = new PrintStream(new java.io.ByteArrayOutputStream());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workFolder);
+  }
+
+  private java.io.File indexFile() {
+    return new java.io.File(new java.io.File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME),
+        StarTeamWorkspaceIndex.INDEX_FILENAME);
+  }
+
+  private StarTeamChangeSet computeChangeSet(List<File> files, boolean polling) throws IOException {
+    return connection().computeChangeSet(files, Collections.singletonList(workFolder), workFolder, null,
+        Collections.<String>emptyList(), polling, logger);
+  }
+
+  @Test
+  public void pollingLeavesTheWorkFolderAlone() throws IOException {
+    File a = fixture.file(1, "a.txt", "content of a", 1000000L);
+    // same content, touched since it was checked out, so that it is hashed
+    java.io.File localFile = new java.io.File(a.getFullName());
+    FileUtils.writeStringToFile(localFile, "content of a", "UTF-8");
+    localFile.setLastModified(2000000L);
+
+    StarTeamChangeSet changeSet = computeChangeSet(Arrays.asList(a), true);
+
+    assertFalse(changeSet.hasChanges());
+    assertTrue(changeSet.getFilePointsToRemember().isEmpty());
+    assertFalse(indexFile().exists());
+
+    changeSet = computeChangeSet(Arrays.asList(a), false);
+
+    assertFalse(changeSet.hasChanges());
+    assertEquals(1, changeSet.getFilePointsToRemember().size());
+    assertTrue(indexFile().exists());
+  }
+}
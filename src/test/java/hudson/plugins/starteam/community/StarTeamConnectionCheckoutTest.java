@@ -0,0 +1,204 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.File;
+import hudson.FilePath;
+import org.apache.commons.io.FileUtils;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static hudson.plugins.starteam.community.StarTeamFileFixture.checkedOut;
+import static hudson.plugins.starteam.community.StarTeamFileFixture.connection;
+import static hudson.plugins.starteam.community.StarTeamFileFixture.filePoints;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks out files that need no StarTeam session: resumed from the journal,
+ * or taken from a content source.
+ */
+@RunWith(JMock.class)
+public class StarTeamConnectionCheckoutTest {
+
+  private Mockery mockery = new Mockery() {{ setImposteriser(ClassImposteriser.INSTANCE); }};
+
+  private java.io.File directory;
+  private java.io.File workFolder;
+  private PrintStream logger;
+  private StarTeamFileFixture fixture;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = java.io.File.createTempFile("starteam-checkout", "");
+    directory.delete();
+    workFolder = new java.io.File(directory, "workspace");
+    workFolder.mkdirs();
+    fixture = new StarTeamFileFixture(mockery, workFolder);
+    logger = new PrintStream(new java.io.ByteArrayOutputStream());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static StarTeamChangeSet changeSet(Collection<StarTeamFilePoint> historic, File... files)
+      throws IOException {
+    StarTeamChangeSet changeSet = new StarTeamChangeSet();
+    changeSet.setFilesToCheckout(Arrays.asList(files));
+    changeSet.setFilesToRemove(Collections.<java.io.File>emptyList());
+    changeSet.setFilePointsToRemember(StarTeamManifestWriter.encode(filePoints(files)));
+    changeSet.setHistoricFilePoints(historic);
+    return changeSet;
+  }
+
+  private java.io.File filePointFile(int build) {
+    java.io.File file = new java.io.File(new java.io.File(directory, Integer.toString(build)),
+        StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    file.getParentFile().mkdirs();
+    return file;
+  }
+
+  private java.io.File journalFile() {
+    return new java.io.File(new java.io.File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME),
+        StarTeamCheckoutJournal.JOURNAL_FILENAME);
+  }
+
+  /**
+   * @return the file points stored by a build, resolved against the work folder
+   */
+  private Collection<StarTeamFilePoint> storedFilePoints(int build) throws IOException {
+    return StarTeamFilePointFunctions.relocate(StarTeamFilePointFunctions.loadCollection(filePointFile(build)), null,
+        workFolder);
+  }
+
+  private static void assertSameFilePoints(List<StarTeamFilePoint> expected, Collection<StarTeamFilePoint> actual) {
+    assertEquals(expected.size(), actual.size());
+    Iterator<StarTeamFilePoint> it = actual.iterator();
+    for (StarTeamFilePoint e : expected) {
+      StarTeamFilePoint a = it.next();
+      assertEquals(e.getFullfilepath(), a.getFullfilepath());
+      assertEquals(e.getRevisionNumber(), a.getRevisionNumber());
+      assertEquals(e.getLastModifyDate(), a.getLastModifyDate());
+    }
+  }
+
+  @Test
+  public void resumesAnInterruptedCheckout() throws IOException {
+    File a = fixture.file(1, "a.txt", "content of a", 1000000L);
+    File b = fixture.file(2, "src/b.txt", "content of b", 2000000L);
+    checkedOut(a, "content of a");
+    checkedOut(b, "content of b");
+    StarTeamCheckoutJournal journal = StarTeamCheckoutJournal.open(workFolder);
+    journal.record(filePoints(a, b));
+    journal.close();
+
+    // no session is opened, everything was checked out before the interruption
+    connection().checkOut(changeSet(null, a, b), workFolder, logger, new FilePath(filePointFile(2)));
+
+    assertFalse(journalFile().exists());
+    assertSameFilePoints(filePoints(a, b), storedFilePoints(2));
+  }
+
+  @Test
+  public void takesContentsFromTheController() throws IOException {
+    File a = fixture.file(1, "a.txt", "content of a", 1000000L);
+    File b = fixture.file(2, "src/b.txt", "content of b", 2000000L);
+    checkedOut(a, "content of a");
+    StarTeamCheckoutJournal journal = StarTeamCheckoutJournal.open(workFolder);
+    journal.record(filePoints(a));
+    journal.close();
+    final Map<Integer, String> contents = new HashMap<Integer, String>();
+    contents.put(1, "content of a");
+    contents.put(2, "content of b");
+    final List<Integer> requested = new ArrayList<Integer>();
+    StarTeamContentSource source = new StarTeamContentSource() {
+      public Map<String, byte[]> fetch(List<Request> requests) throws IOException {
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (Request request : requests) {
+          requested.add(request.getItemId());
+          result.put(request.getMd5(), contents.get(request.getItemId()).getBytes("UTF-8"));
+        }
+        return result;
+      }
+    };
+
+    connection().checkOut(changeSet(null, a, b), workFolder, logger, new FilePath(filePointFile(2)), source);
+
+    // the file confirmed by the journal is not requested
+    assertEquals(Collections.singletonList(2), requested);
+    java.io.File localFile = new java.io.File(b.getFullName());
+    assertEquals("content of b", FileUtils.readFileToString(localFile, "UTF-8"));
+    assertEquals(2000000L, localFile.lastModified());
+    assertSameFilePoints(filePoints(a, b), storedFilePoints(2));
+  }
+
+  @Test
+  public void storesFilePointsAsADeltaToThePreviousBuild() throws IOException {
+    File a = fixture.file(1, "a.txt", "content of a", 1000000L);
+    File b = fixture.file(2, "src/b.txt", "content of b", 2000000L);
+    File c = fixture.file(3, "src/c.txt", "content of c", 3000000L);
+    checkedOut(a, "content of a");
+    checkedOut(b, "content of b");
+    checkedOut(c, "content of c");
+    StarTeamFilePointFunctions.storeCollection(new java.io.FileOutputStream(filePointFile(1)), filePoints(a, b),
+        null, workFolder);
+    Collection<StarTeamFilePoint> previous = storedFilePoints(1);
+    StarTeamCheckoutJournal journal = StarTeamCheckoutJournal.open(workFolder);
+    journal.record(filePoints(a, c));
+    journal.close();
+
+    connection().checkOut(changeSet(previous, a, c), workFolder, logger, new FilePath(filePointFile(2)));
+
+    assertTrue(StarTeamManifestDelta.isDelta(filePointFile(2)));
+    assertSameFilePoints(filePoints(a, c), storedFilePoints(2));
+  }
+
+  @Test
+  public void materializesCachedContents() throws IOException {
+    String prefix = StarTeamContentCache.class.getName() + ".";
+    System.setProperty(prefix + "maxSize", "1");
+    System.setProperty(prefix + "directory", new java.io.File(directory, "cache").getPath());
+    StarTeamContentCache.reset();
+    try {
+      File a = fixture.file(1, "a.txt", "content of a", 1000000L);
+      File b = fixture.file(2, "src/b.txt", "content of b", 2000000L);
+      checkedOut(a, "content of a");
+      StarTeamCheckoutJournal journal = StarTeamCheckoutJournal.open(workFolder);
+      journal.record(filePoints(a));
+      journal.close();
+      java.io.File other = new java.io.File(directory, "other/b.txt");
+      FileUtils.writeStringToFile(other, "content of b", "UTF-8");
+      StarTeamContentCache.getInstance().store(b.getMD5().toByteArray(), other);
+
+      connection().checkOut(changeSet(null, a, b), workFolder, logger, new FilePath(filePointFile(2)));
+
+      java.io.File localFile = new java.io.File(b.getFullName());
+      assertEquals("content of b", FileUtils.readFileToString(localFile, "UTF-8"));
+      assertEquals(2000000L, localFile.lastModified());
+      // the checked out files are cached in turn
+      assertTrue(StarTeamContentCache.getInstance().materialize(a.getMD5().toByteArray(),
+          new java.io.File(directory, "other/a.txt"), 0L));
+    } finally {
+      System.clearProperty(prefix + "maxSize");
+      System.clearProperty(prefix + "directory");
+      StarTeamContentCache.reset();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.File;
+import com.starteam.Server;
+import com.starteam.events.CheckoutEvent;
+import org.apache.commons.io.FileUtils;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reports the failures of a sharded checkout, and hands the sessions of the
+ * shards back whatever happens.
+ */
+@RunWith(JMock.class)
+public class StarTeamConnectionShardTest {
+
+  private Mockery mockery = new Mockery() {{ setImposteriser(ClassImposteriser.INSTANCE); }};
+
+  private java.io.File workFolder;
+  private ByteArrayOutputStream log;
+  private PrintStream logger;
+
+  @Before
+  public void setUp() throws IOException {
+    workFolder = java.io.File.createTempFile("starteam-shards", "");
+    workFolder.delete();
+    workFolder.mkdirs();
+    log = new ByteArrayOutputStream();
+    logger = new PrintStream(log, true);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workFolder);
+  }
+
+  @Test
+  public void reportsTheFailuresOfAllShards() throws IOException {
+    final CheckoutEvent event = mockery.mock(CheckoutEvent.class);
+    StarTeamConnection.ShardedCheckoutProgress progress = new StarTeamConnection.ShardedCheckoutProgress(logger, 10);
+    IOException second = new IOException("second shard failed");
+    RuntimeException first = new IllegalStateException("first shard failed");
+    progress.error(1, event);
+    progress.failed(2, second);
+    progress.failed(1, first);
+
+    try {
+      progress.report(3);
+      fail("failed shards were not reported");
+    } catch (IOException e) {
+      assertEquals("2 of 3 checkout sessions failed", e.getMessage());
+      // in shard order
+      assertEquals(Arrays.<Throwable>asList(first, second), Arrays.asList(e.getSuppressed()));
+    }
+    String output = log.toString();
+    assertTrue(output, output.contains("checkout failures: 1 files, 2 of 3 sessions"));
+    assertTrue(output, output.contains("[shard 1] " + first));
+    assertTrue(output, output.contains("[shard 2] " + second));
+  }
+
+  @Test
+  public void fileErrorsAloneDoNotFailTheCheckout() throws IOException {
+    final CheckoutEvent event = mockery.mock(CheckoutEvent.class);
+    StarTeamConnection.ShardedCheckoutProgress progress = new StarTeamConnection.ShardedCheckoutProgress(logger, 10);
+    progress.error(2, event);
+
+    progress.report(3);
+
+    assertTrue(log.toString().contains("checkout failures: 1 files, 0 of 3 sessions"));
+  }
+
+  @Test
+  public void failedShardHandsItsSessionBack() throws IOException {
+    final Server server = mockery.mock(Server.class);
+    mockery.checking(new Expectations() {{
+      allowing(server).isConnected(); will(returnValue(true));
+      allowing(server).isLoggedOn(); will(returnValue(true));
+      oneOf(server).getProjects(); will(throwException(new IllegalStateException("connection reset")));
+    }});
+    // credentials of their own, so that no other test shares the pooled session
+    StarTeamSessionPool.SessionKey key = new StarTeamSessionPool.SessionKey("host", 1234, "shard-user", "passwd",
+        null, -1);
+    StarTeamSessionPool.getInstance().release(key, server);
+    StarTeamConnection connection = new StarTeamConnection("host", 1234, "shard-user", "passwd", "project", "view",
+        "folder", null);
+    StarTeamCheckoutJournal journal = StarTeamCheckoutJournal.open(workFolder);
+    try {
+      connection.checkOutShard(1, Collections.<File>emptyList(), journal,
+          new StarTeamConnection.ShardedCheckoutProgress(logger, 0));
+      fail("the shard did not fail");
+    } catch (IllegalStateException e) {
+      assertEquals("connection reset", e.getMessage());
+    } catch (StarTeamSCMException e) {
+      fail(e.getMessage());
+    } finally {
+      journal.close();
+    }
+
+    assertSame(server, StarTeamSessionPool.getInstance().borrow(key));
+  }
+}
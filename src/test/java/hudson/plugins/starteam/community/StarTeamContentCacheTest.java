@@ -0,0 +1,139 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamContentCacheTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("starteam-content", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private File checkedOut(String path, String content) throws IOException {
+    File file = new File(directory, path);
+    FileUtils.writeStringToFile(file, content, "UTF-8");
+    return file;
+  }
+
+  @Test
+  public void materializesCachedContent() throws IOException {
+    StarTeamContentCache cache = new StarTeamContentCache(new File(directory, "cache"), 1024, false);
+    File source = checkedOut("ws1/a.txt", "content of a");
+    byte[] md5 = StarTeamFileVerifier.md5(source);
+    cache.store(md5, source);
+
+    File target = new File(directory, "ws2/src/a.txt");
+    assertTrue(cache.materialize(md5, target, 1000000L));
+    assertEquals("content of a", FileUtils.readFileToString(target, "UTF-8"));
+    assertEquals(1000000L, target.lastModified());
+    assertEquals(1, cache.getHits());
+
+    assertFalse(cache.materialize(StarTeamFileVerifier.md5(checkedOut("ws1/b.txt", "b")), target, 0L));
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void readsCachedContent() throws IOException {
+    StarTeamContentCache cache = new StarTeamContentCache(new File(directory, "cache"), 1024, false);
+    File source = checkedOut("ws1/a.txt", "content of a");
+    byte[] md5 = StarTeamFileVerifier.md5(source);
+    cache.store(md5, source);
+
+    assertEquals("content of a", new String(cache.read(md5), "UTF-8"));
+    assertNull(cache.read(StarTeamFileVerifier.md5(checkedOut("ws1/b.txt", "b"))));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void onlyCachesMatchingContent() throws IOException {
+    StarTeamContentCache cache = new StarTeamContentCache(new File(directory, "cache"), 1024, false);
+    File source = checkedOut("ws1/a.txt", "content of a");
+    byte[] md5 = StarTeamFileVerifier.md5(checkedOut("ws1/b.txt", "content of b"));
+
+    cache.store(md5, source);
+
+    assertEquals(0, cache.getSize());
+    assertFalse(cache.materialize(md5, new File(directory, "ws2/a.txt"), 0L));
+  }
+
+  @Test
+  public void dropsCorruptedContent() throws IOException {
+    StarTeamContentCache cache = new StarTeamContentCache(new File(directory, "cache"), 1024, false);
+    File source = checkedOut("ws1/a.txt", "content of a");
+    byte[] md5 = StarTeamFileVerifier.md5(source);
+    cache.store(md5, source);
+    File cached = cache.cacheFile(StarTeamContentCache.hex(md5));
+    FileUtils.writeStringToFile(cached, "tampered with", "UTF-8");
+
+    File target = new File(directory, "ws2/a.txt");
+    assertFalse(cache.materialize(md5, target, 0L));
+    assertFalse(target.exists());
+    assertFalse(cached.exists());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws IOException {
+    StarTeamContentCache cache = new StarTeamContentCache(new File(directory, "cache"), 30, false);
+    byte[][] md5s = new byte[3][];
+    for (int i = 0; i < 3; i++) {
+      File source = checkedOut("ws1/" + i + ".txt", "content " + i + " abc");
+      md5s[i] = StarTeamFileVerifier.md5(source);
+      cache.store(md5s[i], source);
+      if (i == 1) {
+        // use the first so that the second is the eldest
+        assertTrue(cache.materialize(md5s[0], new File(directory, "ws2/0.txt"), 0L));
+      }
+    }
+
+    assertEquals(1, cache.getEvictions());
+    assertTrue(cache.materialize(md5s[0], new File(directory, "ws3/0.txt"), 0L));
+    assertFalse(cache.materialize(md5s[1], new File(directory, "ws3/1.txt"), 0L));
+    assertTrue(cache.materialize(md5s[2], new File(directory, "ws3/2.txt"), 0L));
+
+    // a restarted agent finds the cached files
+    StarTeamContentCache restarted = new StarTeamContentCache(new File(directory, "cache"), 30, false);
+    assertTrue(restarted.materialize(md5s[2], new File(directory, "ws4/2.txt"), 0L));
+    assertEquals(26, restarted.getSize());
+  }
+
+  @Test
+  public void keepsPinnedContentUntilUnpinned() throws IOException {
+    StarTeamContentCache cache = new StarTeamContentCache(new File(directory, "cache"), 15, false);
+    File first = checkedOut("ws1/0.txt", "content 0 abc");
+    byte[] md5 = StarTeamFileVerifier.md5(first);
+    cache.store(md5, first);
+    String key = StarTeamContentCache.hex(md5);
+    StarTeamContentCache.Entry entry = cache.pin(key);
+
+    File second = checkedOut("ws1/1.txt", "content 1 abc");
+    cache.store(StarTeamFileVerifier.md5(second), second);
+
+    assertEquals(1, cache.getEvictions());
+    assertTrue(cache.cacheFile(key).isFile());
+    cache.unpin(key, entry, true);
+    assertFalse(cache.cacheFile(key).isFile());
+    assertFalse(cache.materialize(md5, new File(directory, "ws2/0.txt"), 0L));
+  }
+}
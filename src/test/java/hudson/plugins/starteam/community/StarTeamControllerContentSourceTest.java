@@ -0,0 +1,217 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamControllerContentSourceTest {
+
+  private File directory;
+  private StarTeamContentCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("starteam-content", "");
+    directory.delete();
+    directory.mkdirs();
+    cache = new StarTeamContentCache(new File(directory, "cache"), 1024 * 1024, false);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  /**
+   * A source whose view holds the contents of a map instead of StarTeam.
+   */
+  private static class FakeSource extends StarTeamControllerContentSource {
+    private final Map<Integer, String> view;
+    private final Map<Integer, String> checkedOut = new HashMap<Integer, String>();
+    private final List<Integer> populated = new ArrayList<Integer>();
+    private final AtomicInteger fetches;
+
+    private FakeSource(StarTeamContentCache cache, Map<Integer, String> view, AtomicInteger fetches) {
+      super(cache, null, 1);
+      this.view = view;
+      this.fetches = fetches;
+    }
+
+    @Override
+    Map<Integer, com.starteam.File> filesOf(int folderId) {
+      populated.add(folderId);
+      return new HashMap<Integer, com.starteam.File>();
+    }
+
+    @Override
+    long sizeOf(int itemId, byte[] md5) throws IOException {
+      String content = view.get(itemId);
+      if (content == null || !Arrays.equals(md5, md5(content))) {
+        return -1;
+      }
+      return content.getBytes("UTF-8").length;
+    }
+
+    @Override
+    void checkOutTo(int itemId, File target) throws IOException {
+      fetches.incrementAndGet();
+      try {
+        // give concurrent requests the time to wait for this one
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      String content = checkedOut.containsKey(itemId) ? checkedOut.get(itemId) : view.get(itemId);
+      FileUtils.writeStringToFile(target, content, "UTF-8");
+    }
+  }
+
+  private static StarTeamContentSource.Request request(int itemId, String content) throws IOException {
+    return new StarTeamContentSource.Request(StarTeamContentCache.hex(md5(content)), itemId, folderOf(itemId),
+        content.length());
+  }
+
+  private static int folderOf(int itemId) {
+    return 100 + itemId % 2;
+  }
+
+  private static byte[] md5(String content) throws IOException {
+    try {
+      return java.security.MessageDigest.getInstance("MD5").digest(content.getBytes("UTF-8"));
+    } catch (java.security.NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Test
+  public void fetchesMissingContentsOnce() throws Exception {
+    Map<Integer, String> repository = new HashMap<Integer, String>();
+    repository.put(1, "content of a");
+    repository.put(2, "content of b");
+    AtomicInteger fetches = new AtomicInteger();
+    final List<StarTeamContentSource.Request> requests = Arrays.asList(request(1, "content of a"),
+        request(2, "content of b"), request(3, "not in StarTeam"));
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Map<String, byte[]>>> results = new ArrayList<Future<Map<String, byte[]>>>();
+      for (int i = 0; i < 4; i++) {
+        final StarTeamContentSource source = new FakeSource(cache, repository, fetches);
+        results.add(executor.submit(new Callable<Map<String, byte[]>>() {
+          public Map<String, byte[]> call() throws IOException {
+            return source.fetch(requests);
+          }
+        }));
+      }
+      for (Future<Map<String, byte[]>> result : results) {
+        Map<String, byte[]> contents = result.get();
+        assertEquals(2, contents.size());
+        assertEquals("content of a", new String(contents.get(requests.get(0).getMd5()), "UTF-8"));
+        assertEquals("content of b", new String(contents.get(requests.get(1).getMd5()), "UTF-8"));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(2, fetches.get());
+  }
+
+  @Test
+  public void skipsContentWithAnotherMd5() throws IOException {
+    Map<Integer, String> view = new HashMap<Integer, String>();
+    view.put(1, "content of a");
+    FakeSource source = new FakeSource(cache, view, new AtomicInteger());
+    source.checkedOut.put(1, "converted content of a");
+
+    assertTrue(source.fetch(Arrays.asList(request(1, "content of a"))).isEmpty());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void onlyServesFilesOfTheView() throws IOException {
+    File secret = new File(directory, "secret.txt");
+    FileUtils.writeStringToFile(secret, "content of another view", "UTF-8");
+    cache.store(md5("content of another view"), secret);
+    Map<Integer, String> view = new HashMap<Integer, String>();
+    view.put(1, "content of a");
+    StarTeamContentSource source = new FakeSource(cache, view, new AtomicInteger());
+
+    // not in the view, or in the view with another MD5
+    assertTrue(source.fetch(Arrays.asList(request(2, "content of another view"),
+        request(1, "content of another view"))).isEmpty());
+  }
+
+  @Test
+  public void limitsRequestsByActualSize() throws IOException {
+    Map<Integer, String> view = new HashMap<Integer, String>();
+    char[] large = new char[(int) (StarTeamContentSource.MAX_REQUEST_SIZE / 2 + 1)];
+    Arrays.fill(large, 'a');
+    view.put(1, new String(large));
+    Arrays.fill(large, 'b');
+    view.put(2, new String(large));
+    List<StarTeamContentSource.Request> requests = new ArrayList<StarTeamContentSource.Request>();
+    for (int i = 1; i <= 2; i++) {
+      // the agent claims a small size
+      requests.add(new StarTeamContentSource.Request(StarTeamContentCache.hex(md5(view.get(i))), i, folderOf(i), 1));
+    }
+    for (int i = 3; i < StarTeamContentSource.MAX_REQUEST_FILES + 10; i++) {
+      view.put(i, "content " + i);
+      requests.add(request(i, "content " + i));
+    }
+    StarTeamContentSource source = new FakeSource(new StarTeamContentCache(new File(directory, "large"),
+        64L * 1024 * 1024, false), view, new AtomicInteger());
+
+    Map<String, byte[]> contents = source.fetch(requests);
+
+    assertEquals(StarTeamContentSource.MAX_REQUEST_FILES - 1, contents.size());
+    assertTrue(contents.containsKey(requests.get(0).getMd5()));
+    long total = 0;
+    for (byte[] content : contents.values()) {
+      total += content.length;
+    }
+    assertTrue(total <= StarTeamContentSource.MAX_REQUEST_SIZE);
+  }
+
+  @Test
+  public void populatesEachFolderOnce() throws IOException {
+    Map<Integer, String> view = new HashMap<Integer, String>();
+    List<StarTeamContentSource.Request> requests = new ArrayList<StarTeamContentSource.Request>();
+    for (int i = 1; i <= 10; i++) {
+      view.put(i, "content " + i);
+      requests.add(request(i, "content " + i));
+    }
+    FakeSource source = new FakeSource(cache, view, new AtomicInteger());
+
+    source.fetch(requests.subList(0, 5));
+    source.fetch(requests);
+
+    // the files are found with their folders, not one at a time
+    assertEquals(Arrays.asList(101, 100), source.populated);
+  }
+
+  @Test
+  public void unhexReversesHex() throws IOException {
+    byte[] md5 = md5("content");
+    assertArrayEquals(md5, StarTeamControllerContentSource.unhex(StarTeamContentCache.hex(md5)));
+    assertNull(StarTeamControllerContentSource.unhex("not an md5"));
+    assertNull(StarTeamControllerContentSource.unhex("zz" + StarTeamContentCache.hex(md5).substring(2)));
+  }
+}
@@ -0,0 +1,96 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.File;
+import com.starteam.Folder;
+import com.starteam.util.DateTime;
+import com.starteam.util.MD5;
+import org.apache.commons.io.FileUtils;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Mocked StarTeam files of a view whose local copies live in a work folder,
+ * for tests driving {@link StarTeamConnection} without a server.
+ */
+final class StarTeamFileFixture {
+
+  private final Mockery mockery;
+  private final java.io.File workFolder;
+  private final Folder folder;
+
+  StarTeamFileFixture(Mockery mockery, java.io.File workFolder) {
+    this.mockery = mockery;
+    this.workFolder = workFolder;
+    this.folder = mockery.mock(Folder.class, "folder");
+    mockery.checking(new Expectations() {{
+      allowing(folder).getID(); will(returnValue(0));
+    }});
+  }
+
+  /**
+   * @return a connection that is never initialized
+   */
+  static StarTeamConnection connection() {
+    return new StarTeamConnection("host", 1234, "user", "passwd", "project", "view", "folder", null);
+  }
+
+  /**
+   * @param id           the StarTeam ID, also the revision of the file
+   * @param name         the path of the file in the work folder
+   * @param content      the content of the file in StarTeam
+   * @param lastModified the content modification time in StarTeam
+   * @return the file
+   */
+  File file(final int id, String name, String content, final long lastModified) throws IOException {
+    final java.io.File localFile = new java.io.File(workFolder, name);
+    final byte[] bytes = content.getBytes("UTF-8");
+    final File file = mockery.mock(File.class, name);
+    mockery.checking(new Expectations() {{
+      allowing(file).getID(); will(returnValue(id));
+      allowing(file).getFullName(); will(returnValue(localFile.getPath()));
+      allowing(file).getDotNotation(); will(returnValue("1." + id));
+      allowing(file).getContentModifiedTime(); will(returnValue(new DateTime(new Date(lastModified))));
+      allowing(file).getMD5(); will(returnValue(new MD5(md5(bytes))));
+      allowing(file).getSizeEx(); will(returnValue((long) bytes.length));
+      allowing(file).getParentFolder(); will(returnValue(folder));
+    }});
+    return file;
+  }
+
+  static byte[] md5(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("MD5").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Write the local copy of a file as a checkout would.
+   */
+  static void checkedOut(File file, String content) throws IOException {
+    java.io.File localFile = new java.io.File(file.getFullName());
+    FileUtils.writeStringToFile(localFile, content, "UTF-8");
+    localFile.setLastModified(file.getContentModifiedTime().toJavaMsec());
+  }
+
+  /**
+   * @return the file points of the files, sorted by path
+   */
+  static List<StarTeamFilePoint> filePoints(File... files) {
+    List<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
+    for (File file : files) {
+      result.add(new StarTeamFilePoint(file));
+    }
+    Collections.sort(result, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    return result;
+  }
+}
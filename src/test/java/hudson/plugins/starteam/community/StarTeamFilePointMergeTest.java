@@ -0,0 +1,124 @@
+package hudson.plugins.starteam.community;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StarTeamFilePointMergeTest {
+
+  private static final StarTeamFilePointMerge.LocalTimestamps SAME_AS_STARTEAM = new StarTeamFilePointMerge.LocalTimestamps() {
+    public long lastModified(StarTeamFilePoint filePoint) {
+      return filePoint.getLastModifyDate();
+    }
+  };
+
+  private static StarTeamFilePoint fp(String path, int revision, long lastModified) {
+    return new StarTeamFilePoint(path, revision, lastModified);
+  }
+
+  @Test
+  public void classifiesFiles() {
+    StarTeamFilePoint[] current = {
+        fp("/ws/a", 1, 10L), fp("/ws/b", 3, 10L), fp("/ws/c", 1, 10L), fp("/ws/e", 1, 10L)};
+    StarTeamFilePoint[] historic = {
+        fp("/ws/a", 1, 10L), fp("/ws/b", 2, 10L), fp("/ws/c", 2, 10L), fp("/ws/d", 1, 10L)};
+
+    StarTeamFilePointMerge merge = StarTeamFilePointMerge.merge(current, historic, SAME_AS_STARTEAM);
+
+    assertEquals(StarTeamFilePointMerge.UNCHANGED, merge.getVerdict(0));
+    assertEquals(StarTeamFilePointMerge.CHANGED, merge.getVerdict(1));
+    assertEquals(StarTeamFilePointMerge.ROLLBACK, merge.getVerdict(2));
+    assertEquals(StarTeamFilePointMerge.ADDED, merge.getVerdict(3));
+    List<StarTeamFilePoint> removed = merge.getRemoved();
+    assertEquals(1, removed.size());
+    assertEquals("/ws/d", removed.get(0).getFullfilepath());
+  }
+
+  @Test
+  public void locallyModifiedFileIsChanged() {
+    StarTeamFilePoint[] current = {fp("/ws/a", 1, 10L)};
+    StarTeamFilePoint[] historic = {fp("/ws/a", 1, 10L)};
+
+    StarTeamFilePointMerge merge = StarTeamFilePointMerge.merge(current, historic,
+        new StarTeamFilePointMerge.LocalTimestamps() {
+          public long lastModified(StarTeamFilePoint filePoint) {
+            return 20L;
+          }
+        });
+
+    assertEquals(StarTeamFilePointMerge.CHANGED, merge.getVerdict(0));
+  }
+
+  @Test
+  public void duplicateHistoricPathCountsOnce() {
+    StarTeamFilePoint[] current = {fp("/ws/a", 1, 10L)};
+    StarTeamFilePoint[] historic = {fp("/ws/a", 1, 10L), fp("/ws/a", 1, 10L)};
+
+    StarTeamFilePointMerge merge = StarTeamFilePointMerge.merge(current, historic, SAME_AS_STARTEAM);
+
+    assertEquals(StarTeamFilePointMerge.UNCHANGED, merge.getVerdict(0));
+    assertEquals(0, merge.getRemoved().size());
+  }
+
+  @Test
+  public void parallelMergeMatchesSerialSemantics() {
+    int size = 120000;
+    StarTeamFilePoint[] current = new StarTeamFilePoint[size];
+    StarTeamFilePoint[] historic = new StarTeamFilePoint[size];
+    for (int i = 0; i < size; i++) {
+      // current holds the even paths, historic every path below size
+      current[i] = fp(String.format("/ws/%08d", 2 * i), i % 3 == 0 ? 2 : 1, 10L);
+      historic[i] = fp(String.format("/ws/%08d", i), 1, 10L);
+    }
+    Arrays.sort(current, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    Arrays.sort(historic, StarTeamFilePointMerge.FILE_POINT_ORDER);
+
+    StarTeamFilePointMerge merge = StarTeamFilePointMerge.merge(current, historic, SAME_AS_STARTEAM);
+
+    for (int i = 0; i < size; i++) {
+      byte expected;
+      if (2 * i >= size) {
+        expected = StarTeamFilePointMerge.ADDED;
+      } else if (i % 3 == 0) {
+        expected = StarTeamFilePointMerge.CHANGED;
+      } else {
+        expected = StarTeamFilePointMerge.UNCHANGED;
+      }
+      assertEquals("verdict of " + current[i].getFullfilepath(), expected, merge.getVerdict(i));
+    }
+    // every odd path of the historic file points is gone
+    assertEquals(size / 2, merge.getRemoved().size());
+  }
+
+  @Test
+  public void streamingMergeMatchesArrayMerge() {
+    StarTeamFilePoint[] current = {
+        fp("/ws/a", 1, 10L), fp("/ws/b", 3, 10L), fp("/ws/c", 1, 10L), fp("/ws/e", 1, 10L)};
+    StarTeamFilePoint[] historic = {
+        fp("/ws/a", 1, 10L), fp("/ws/a", 1, 10L), fp("/ws/b", 2, 10L), fp("/ws/c", 2, 10L), fp("/ws/d", 1, 10L)};
+    final List<Byte> verdicts = new ArrayList<Byte>();
+    final List<StarTeamFilePoint> removed = new ArrayList<StarTeamFilePoint>();
+
+    StarTeamFilePointMerge.merge(Arrays.asList(current).iterator(), Arrays.asList(historic).iterator(),
+        SAME_AS_STARTEAM, new StarTeamFilePointMerge.Visitor<StarTeamFilePoint>() {
+          public void visit(StarTeamFilePoint filePoint, byte verdict) {
+            verdicts.add(verdict);
+          }
+
+          public void removed(StarTeamFilePoint filePoint) {
+            removed.add(filePoint);
+          }
+        });
+
+    StarTeamFilePointMerge merge = StarTeamFilePointMerge.merge(current, historic, SAME_AS_STARTEAM);
+    assertEquals(current.length, verdicts.size());
+    for (int i = 0; i < current.length; i++) {
+      assertEquals(merge.getVerdict(i), verdicts.get(i).byteValue());
+    }
+    assertEquals(merge.getRemoved(), removed);
+  }
+}
@@ -0,0 +1,145 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamFilePointSorterTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("starteam-sorter", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static List<StarTeamFilePoint> shuffledFilePoints() {
+    List<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
+    for (int i = 0; i < 5000; i++) {
+      result.add(new StarTeamFilePoint(String.format("/ws/src/dir%02d/file%05d.txt", i % 37, i), i % 7, i * 1000L));
+    }
+    Collections.shuffle(result, new java.util.Random(42));
+    return result;
+  }
+
+  private static void assertSorted(List<StarTeamFilePoint> filePoints, StarTeamFilePointSorter sorter) {
+    List<StarTeamFilePoint> expected = new ArrayList<StarTeamFilePoint>(filePoints);
+    Collections.sort(expected, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    Iterator<StarTeamFilePointSorter.Entry> it = sorter.iterator();
+    for (StarTeamFilePoint filePoint : expected) {
+      StarTeamFilePointSorter.Entry entry = it.next();
+      assertEquals(filePoint.getFullfilepath(), entry.getFullfilepath());
+      assertEquals(filePoint.getRevisionNumber(), entry.getRevisionNumber());
+      assertEquals(filePoint.getLastModifyDate(), entry.getLastModifyDate());
+      assertTrue(filePoint == filePoints.get(entry.getIndex()));
+    }
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void sortsOnHeapWithinBudget() throws IOException {
+    List<StarTeamFilePoint> filePoints = shuffledFilePoints();
+    StarTeamFilePointSorter sorter = new StarTeamFilePointSorter(0, directory);
+    for (int i = 0; i < filePoints.size(); i++) {
+      sorter.add(filePoints.get(i), i);
+    }
+    assertFalse(sorter.isSpilled());
+    assertSorted(filePoints, sorter);
+    sorter.close();
+  }
+
+  @Test
+  public void spillsRunsBeyondBudget() throws IOException {
+    List<StarTeamFilePoint> filePoints = shuffledFilePoints();
+    StarTeamFilePointSorter sorter = new StarTeamFilePointSorter(64 * 1024, directory);
+    for (int i = 0; i < filePoints.size(); i++) {
+      sorter.add(filePoints.get(i), i);
+    }
+    assertTrue(sorter.isSpilled());
+    assertTrue(directory.list().length > 1);
+    assertEquals(filePoints.size(), sorter.size());
+    // the runs can be read any number of times
+    assertSorted(filePoints, sorter);
+    assertSorted(filePoints, sorter);
+    sorter.close();
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void encodesSpilledFilePointsToATemporaryFile() throws IOException {
+    List<StarTeamFilePoint> filePoints = shuffledFilePoints();
+    StarTeamFilePointSorter sorter = new StarTeamFilePointSorter(64 * 1024, directory);
+    for (int i = 0; i < filePoints.size(); i++) {
+      sorter.add(filePoints.get(i), i);
+    }
+    File manifestDir = new File(directory, "manifest");
+    manifestDir.mkdirs();
+
+    StarTeamManifestFile manifest = StarTeamManifestFile.encode(sorter, manifestDir);
+    sorter.close();
+
+    assertEquals(filePoints.size(), manifest.size());
+    assertTrue(manifest.isSorted());
+    List<StarTeamFilePoint> expected = new ArrayList<StarTeamFilePoint>(filePoints);
+    Collections.sort(expected, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    // the file points are read from the file as often as they are iterated
+    for (int pass = 0; pass < 2; pass++) {
+      Iterator<StarTeamFilePoint> it = manifest.iterator();
+      for (StarTeamFilePoint filePoint : expected) {
+        StarTeamFilePoint decoded = it.next();
+        assertEquals(filePoint.getFullfilepath(), decoded.getFullfilepath());
+        assertEquals(filePoint.getRevisionNumber(), decoded.getRevisionNumber());
+        assertEquals(filePoint.getLastModifyDate(), decoded.getLastModifyDate());
+      }
+      assertFalse(it.hasNext());
+    }
+    File stored = new File(directory, StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    StarTeamFilePointFunctions.storeCollection(new FileOutputStream(stored), manifest, null, null);
+    manifest.iterator().next();
+
+    manifest.close();
+
+    // an iteration left incomplete does not keep the file
+    assertEquals(0, manifestDir.list().length);
+    assertEquals(filePoints.size(), StarTeamFilePointFunctions.loadCollection(stored).size());
+  }
+
+  @Test
+  public void findsLocalFilesThatAreNotInStarTeam() throws IOException {
+    File workFolder = new File(directory, "ws");
+    for (String path : new String[]{"a.txt", "b.txt", "src/c.txt", "src/d.txt", "src/e/f.txt"}) {
+      FileUtils.writeStringToFile(new File(workFolder, path), path, "UTF-8");
+    }
+    StarTeamFilePointSorter sorter = new StarTeamFilePointSorter(0, directory);
+    int index = 0;
+    for (String path : new String[]{"src/c.txt", "a.txt", "src/e/f.txt", "z.txt"}) {
+      sorter.add(new StarTeamFilePoint(new File(workFolder, path).getAbsolutePath(), 1, 0L), index++);
+    }
+
+    List<File> toRemove = StarTeamConnection.findFilesToRemove(StarTeamWorkspaceScan.scan(workFolder), sorter);
+
+    assertEquals(2, toRemove.size());
+    assertEquals(new File(workFolder, "b.txt").getAbsoluteFile(), toRemove.get(0).getAbsoluteFile());
+    assertEquals(new File(workFolder, "src/d.txt").getAbsoluteFile(), toRemove.get(1).getAbsoluteFile());
+  }
+}
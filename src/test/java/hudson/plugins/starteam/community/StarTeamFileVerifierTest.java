@@ -0,0 +1,139 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.util.MD5;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamFileVerifierTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("starteam-verifier", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private File write(String name, String content) throws IOException {
+    File file = new File(directory, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("ISO-8859-1"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder();
+    for (byte b : bytes) {
+      builder.append(String.format("%02x", b & 0xff));
+    }
+    return builder.toString();
+  }
+
+  @Test
+  public void computesMD5() throws IOException {
+    assertEquals("5d41402abc4b2a76b9719d911017c592", hex(StarTeamFileVerifier.md5(write("hello.txt", "hello"))));
+    assertEquals("d41d8cd98f00b204e9800998ecf8427e", hex(StarTeamFileVerifier.md5(write("empty.txt", ""))));
+  }
+
+  private File writeLarge(String name) throws IOException {
+    byte[] content = new byte[9 * 1024 * 1024 + 17];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    File large = new File(directory, name);
+    FileOutputStream out = new FileOutputStream(large);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    return large;
+  }
+
+  /**
+   * @return whether the file is mapped by this process, as far as the
+   *         platform tells
+   */
+  private static boolean isMapped(File file) throws IOException {
+    File maps = new File("/proc/self/maps");
+    return maps.isFile() && FileUtils.readFileToString(maps, "UTF-8").contains(file.getCanonicalPath());
+  }
+
+  @Test
+  public void computesTheSameMD5AsStarTeam() throws IOException {
+    File[] files = {write("empty.txt", ""), write("hello.txt", "hello"), writeLarge("large.bin")};
+    for (File file : files) {
+      MD5 starTeamMD5 = new MD5();
+      starTeamMD5.computeFileMD5(file);
+
+      MD5 md5 = new MD5(StarTeamFileVerifier.md5(file));
+
+      assertEquals(file.getName(), starTeamMD5, md5);
+      assertEquals(file.getName(), starTeamMD5.toString(), md5.toString());
+    }
+  }
+
+  @Test
+  public void largeFilesCanBeReplacedAfterHashing() throws Exception {
+    File large = writeLarge("large.bin");
+
+    assertEquals(hex(MessageDigest.getInstance("MD5").digest(FileUtils.readFileToByteArray(large))),
+        hex(StarTeamFileVerifier.md5(large)));
+    // nothing keeps the file open or mapped, which would lock it on Windows
+    assertFalse(isMapped(large));
+    // what checkOut and the workspace cleanup do right after
+    write("large.bin", "replaced");
+    assertTrue(large.delete());
+  }
+
+  @Test
+  public void verdictsKeepCandidateOrder() throws IOException {
+    File unchanged = write("unchanged.txt", "unchanged");
+    List<StarTeamFileVerifier.Candidate> candidates = new ArrayList<StarTeamFileVerifier.Candidate>();
+    for (int i = 0; i < 200; i++) {
+      if (i % 2 == 0) {
+        candidates.add(new StarTeamFileVerifier.Candidate(unchanged, unchanged.lastModified(), null));
+      } else {
+        candidates.add(new StarTeamFileVerifier.Candidate(new File(directory, "missing" + i), 0L, null));
+      }
+    }
+    String[] verdicts = StarTeamFileVerifier.verify(candidates, StarTeamWorkspaceIndex.load(directory));
+    for (int i = 0; i < verdicts.length; i++) {
+      if (i % 2 == 0) {
+        assertNull("file " + i + " is up to date", verdicts[i]);
+      } else {
+        assertEquals("file " + i + " is missing", "", verdicts[i]);
+      }
+    }
+  }
+}
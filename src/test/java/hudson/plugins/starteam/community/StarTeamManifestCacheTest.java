@@ -0,0 +1,96 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamManifestCacheTest {
+
+  private File buildsDir;
+
+  @Before
+  public void setUp() throws IOException {
+    buildsDir = File.createTempFile("starteam-builds", "");
+    buildsDir.delete();
+    buildsDir.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(buildsDir);
+  }
+
+  private File storeBuild(int build, int count) throws IOException {
+    List<StarTeamFilePoint> filePoints = new ArrayList<StarTeamFilePoint>();
+    for (int i = 0; i < count; i++) {
+      filePoints.add(new StarTeamFilePoint(String.format("/ws/src/file%04d.txt", i), build, i * 1000L));
+    }
+    File file = new File(new File(buildsDir, Integer.toString(build)), StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    file.getParentFile().mkdirs();
+    StarTeamFilePointFunctions.storeCollection(new FileOutputStream(file), filePoints);
+    return file;
+  }
+
+  @Test
+  public void reusesLoadedFilePoints() throws IOException {
+    StarTeamManifestCache cache = new StarTeamManifestCache(1024 * 1024);
+    File file = storeBuild(1, 100);
+
+    Collection<StarTeamFilePoint> first = cache.load(file);
+    Collection<StarTeamFilePoint> second = cache.load(file);
+
+    assertSame(first, second);
+    assertEquals(100, second.size());
+    assertEquals("1", ((StarTeamManifest) second).getBuildDirName());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void reloadsModifiedFile() throws IOException {
+    StarTeamManifestCache cache = new StarTeamManifestCache(1024 * 1024);
+    File file = storeBuild(1, 100);
+    Collection<StarTeamFilePoint> first = cache.load(file);
+
+    storeBuild(1, 50);
+    file.setLastModified(file.lastModified() - 10000L);
+    Collection<StarTeamFilePoint> second = cache.load(file);
+
+    assertNotSame(first, second);
+    assertEquals(50, second.size());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws IOException {
+    File one = storeBuild(1, 100);
+    File two = storeBuild(2, 100);
+    File three = storeBuild(3, 100);
+    StarTeamManifestCache cache = new StarTeamManifestCache(one.length() * 2 + 100);
+
+    cache.load(one);
+    cache.load(two);
+    cache.load(one);
+    cache.load(three);
+
+    assertEquals(1, cache.getEvictionCount());
+    assertTrue(cache.getSize() <= one.length() * 2 + 100);
+    cache.load(one);
+    assertEquals(2, cache.getHitCount());
+    cache.load(two);
+    assertEquals(4, cache.getMissCount());
+  }
+}
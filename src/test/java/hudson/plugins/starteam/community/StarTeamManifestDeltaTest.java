@@ -0,0 +1,152 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamManifestDeltaTest {
+
+  private File buildsDir;
+
+  @Before
+  public void setUp() throws IOException {
+    buildsDir = File.createTempFile("starteam-builds", "");
+    buildsDir.delete();
+    buildsDir.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(buildsDir);
+  }
+
+  /**
+   * @return the file points of a build: 100 files, file i at revision
+   *         build / (i + 1), files 0..build-1 removed and build + 100 added
+   */
+  private static List<StarTeamFilePoint> filePoints(int build) {
+    List<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
+    for (int i = build; i < build + 100; i++) {
+      int revision = build / (i + 1) + 1;
+      result.add(new StarTeamFilePoint(String.format("/ws/src/file%04d.txt", i), revision, revision * 1000L));
+    }
+    return result;
+  }
+
+  private File manifestFile(int build) {
+    return new File(new File(buildsDir, Integer.toString(build)), StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+  }
+
+  private Collection<StarTeamFilePoint> storeBuild(int build, Collection<StarTeamFilePoint> previous) throws IOException {
+    File file = manifestFile(build);
+    file.getParentFile().mkdirs();
+    StarTeamFilePointFunctions.storeCollection(new FileOutputStream(file), filePoints(build), previous);
+    StarTeamManifestDelta.recordDependent(file);
+    return StarTeamFilePointFunctions.loadCollection(file);
+  }
+
+  private static void assertSameFilePoints(Collection<StarTeamFilePoint> expected, Collection<StarTeamFilePoint> actual) {
+    assertEquals(expected.size(), actual.size());
+    List<StarTeamFilePoint> sorted = new ArrayList<StarTeamFilePoint>(expected);
+    Collections.sort(sorted, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    Iterator<StarTeamFilePoint> it = actual.iterator();
+    for (StarTeamFilePoint e : sorted) {
+      StarTeamFilePoint a = it.next();
+      assertEquals(e.getFullfilepath(), a.getFullfilepath());
+      assertEquals(e.getRevisionNumber(), a.getRevisionNumber());
+      assertEquals(e.getLastModifyDate(), a.getLastModifyDate());
+    }
+  }
+
+  @Test
+  public void reconstructsSnapshotsFromDeltas() throws IOException {
+    Collection<StarTeamFilePoint> previous = null;
+    for (int build = 1; build <= StarTeamManifestDelta.CHECKPOINT_INTERVAL * 2 + 1; build++) {
+      previous = storeBuild(build, previous);
+      assertSameFilePoints(filePoints(build), previous);
+      // a full manifest every checkpoint interval, deltas in between
+      boolean checkpoint = (build - 1) % StarTeamManifestDelta.CHECKPOINT_INTERVAL == 0;
+      assertEquals("build " + build, checkpoint, StarTeamManifest.isManifest(manifestFile(build)));
+      assertEquals("build " + build, !checkpoint, StarTeamManifestDelta.isDelta(manifestFile(build)));
+      assertEquals((build - 1) % StarTeamManifestDelta.CHECKPOINT_INTERVAL,
+          ((StarTeamManifest) previous).getChainLength());
+    }
+  }
+
+  @Test
+  public void relativeDeltasFollowTheWorkFolder() throws IOException {
+    File workFolder = new File("/ws");
+    Collection<StarTeamFilePoint> previous = null;
+    for (int build = 1; build <= 3; build++) {
+      File file = manifestFile(build);
+      file.getParentFile().mkdirs();
+      StarTeamFilePointFunctions.storeCollection(new FileOutputStream(file), filePoints(build), previous, workFolder);
+      previous = StarTeamFilePointFunctions.relocate(StarTeamFilePointFunctions.loadCollection(file), null, workFolder);
+      assertTrue(((StarTeamManifest) previous).isRelative());
+      assertSameFilePoints(filePoints(build), previous);
+    }
+    assertTrue(StarTeamManifestDelta.isDelta(manifestFile(3)));
+  }
+
+  @Test
+  public void deltasAreSmall() throws IOException {
+    storeBuild(2, storeBuild(1, null));
+    assertTrue(manifestFile(2).length() * 4 < manifestFile(1).length());
+  }
+
+  @Test
+  public void missingBaseBuildYieldsNoFilePoints() throws IOException {
+    Collection<StarTeamFilePoint> previous = storeBuild(1, null);
+    previous = storeBuild(2, previous);
+    storeBuild(3, previous);
+    if (StarTeamManifestDelta.CHECKPOINT_INTERVAL < 3) {
+      return;
+    }
+    FileUtils.deleteDirectory(manifestFile(2).getParentFile());
+
+    Collection<StarTeamFilePoint> filePoints = StarTeamFilePointFunctions.loadCollection(manifestFile(3));
+
+    assertTrue(filePoints.isEmpty());
+    assertFalse(StarTeamManifestDelta.canStoreDelta(filePoints));
+  }
+
+  @Test
+  public void deletingABaseBuildKeepsTheDeltasBasedOnIt() throws IOException {
+    if (StarTeamManifestDelta.CHECKPOINT_INTERVAL < 4) {
+      return;
+    }
+    Collection<StarTeamFilePoint> previous = null;
+    for (int build = 1; build <= 4; build++) {
+      previous = storeBuild(build, previous);
+    }
+
+    // only the recorded dependents are looked at
+    assertEquals(Collections.singletonList("3"), FileUtils.readLines(
+        new File(manifestFile(2).getParentFile(), StarTeamConnection.FILE_POINT_DEPENDENTS_FILENAME), "UTF-8"));
+
+    List<File> rebased = StarTeamManifestDelta.rebaseDependents(manifestFile(2).getParentFile());
+    FileUtils.deleteDirectory(manifestFile(2).getParentFile());
+
+    assertEquals(Collections.singletonList(manifestFile(3)), rebased);
+    assertTrue(StarTeamManifest.isManifest(manifestFile(3)));
+    assertTrue(StarTeamManifestDelta.isDelta(manifestFile(4)));
+    assertSameFilePoints(filePoints(3), StarTeamFilePointFunctions.loadCollection(manifestFile(3)));
+    StarTeamManifest manifest = (StarTeamManifest) StarTeamFilePointFunctions.loadCollection(manifestFile(4));
+    assertSameFilePoints(filePoints(4), manifest);
+    assertEquals(1, manifest.getChainLength());
+  }
+}
@@ -0,0 +1,116 @@
+package hudson.plugins.starteam.community;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import org.apache.commons.io.FileUtils;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JMock.class)
+public class StarTeamManifestIndexTest {
+
+  private Mockery mockery = new Mockery() {{
+    setImposteriser(ClassImposteriser.INSTANCE);
+  }};
+
+  private File buildsDir;
+
+  @Before
+  public void setUp() throws IOException {
+    buildsDir = File.createTempFile("starteam-builds", "");
+    buildsDir.delete();
+    buildsDir.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(buildsDir);
+  }
+
+  private AbstractBuild<?, ?> build(final int number, final String node, final String workspace,
+                                    final AbstractBuild<?, ?> previous, boolean stored) throws IOException {
+    final File rootDir = new File(buildsDir, Integer.toString(number));
+    rootDir.mkdirs();
+    if (stored) {
+      FileUtils.writeStringToFile(new File(rootDir, StarTeamConnection.FILE_POINT_MANIFEST_FILENAME), "", "UTF-8");
+    }
+    final AbstractBuild<?, ?> build = mockery.mock(AbstractBuild.class, "build" + number);
+    mockery.checking(new Expectations() {{
+      allowing(build).getNumber();
+      will(returnValue(number));
+      allowing(build).getRootDir();
+      will(returnValue(rootDir));
+      allowing(build).getBuiltOnStr();
+      will(returnValue(node));
+      allowing(build).getWorkspace();
+      will(returnValue(new FilePath(new File(workspace))));
+      allowing(build).getPreviousBuild();
+      will(returnValue(previous));
+    }});
+    return build;
+  }
+
+  @Test
+  public void findsLastBuildInSameWorkspace() throws IOException {
+    AbstractBuild<?, ?> first = build(1, "", "/ws/job", null, true);
+    AbstractBuild<?, ?> second = build(2, "agent", "/ws/job", first, true);
+    AbstractBuild<?, ?> third = build(3, "", "/ws/job@2", second, true);
+    AbstractBuild<?, ?> aborted = build(4, "", "/ws/job", third, false);
+    StarTeamManifestIndex index = new StarTeamManifestIndex(50);
+
+    assertEquals(first.getRootDir(), index.find(aborted, "", "/ws/job"));
+    assertEquals(second.getRootDir(), index.find(aborted, "agent", "/ws/job"));
+    assertEquals(third.getRootDir(), index.find(aborted, "", "/ws/job@2"));
+    assertNull(index.find(aborted, "agent", "/ws/job@2"));
+  }
+
+  @Test
+  public void remembersRecordedBuilds() throws IOException {
+    AbstractBuild<?, ?> first = build(1, "", "/ws/job", null, true);
+    AbstractBuild<?, ?> second = build(2, "", "/ws/job", first, true);
+    StarTeamManifestIndex index = new StarTeamManifestIndex(0);
+
+    index.record(first, "", "/ws/job");
+    assertEquals(first.getRootDir(), index.find(second, "", "/ws/job"));
+
+    FileUtils.deleteDirectory(first.getRootDir());
+    assertNull(index.find(second, "", "/ws/job"));
+  }
+
+  @Test
+  public void remembersMisses() throws IOException {
+    final AbstractBuild<?, ?> first = build(1, "", "/ws/job@2", null, true);
+    final AbstractBuild<?, ?> second = mockery.mock(AbstractBuild.class, "build2");
+    final File rootDir = new File(buildsDir, "2");
+    mockery.checking(new Expectations() {{
+      allowing(second).getNumber();
+      will(returnValue(2));
+      allowing(second).getRootDir();
+      will(returnValue(rootDir));
+      // searched once only
+      oneOf(second).getWorkspace();
+      will(returnValue(new FilePath(new File("/ws/job@2"))));
+      oneOf(second).getPreviousBuild();
+      will(returnValue(first));
+    }});
+    AbstractBuild<?, ?> third = build(3, "", "/ws/job", second, true);
+    StarTeamManifestIndex index = new StarTeamManifestIndex(50);
+
+    assertNull(index.find(second, "", "/ws/job"));
+    assertNull(index.find(second, "", "/ws/job"));
+    // only the builds started since the miss are searched
+    assertEquals(third.getRootDir(), index.find(third, "", "/ws/job"));
+  }
+}
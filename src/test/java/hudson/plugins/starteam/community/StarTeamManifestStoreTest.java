@@ -0,0 +1,107 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamManifestStoreTest {
+
+  private File directory;
+  private StarTeamManifestStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("starteam-store", "");
+    directory.delete();
+    directory.mkdirs();
+    store = new StarTeamManifestStore(new File(directory, StarTeamManifestStore.DIRNAME));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static List<StarTeamFilePoint> filePoints(int revision) {
+    List<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
+    for (int i = 0; i < 20000; i++) {
+      result.add(new StarTeamFilePoint(String.format("/ws/src/dir%02d/file%05d.txt", i / 1000, i),
+          i == 10000 ? revision : 1, i * 1000L));
+    }
+    return result;
+  }
+
+  private File storeBuild(String job, int build, List<StarTeamFilePoint> filePoints) throws IOException {
+    File file = new File(new File(new File(directory, job), Integer.toString(build)),
+        StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    file.getParentFile().mkdirs();
+    StarTeamFilePointFunctions.storeCollection(new FileOutputStream(file), filePoints, null, new File("/ws"));
+    store.intern(file);
+    return file;
+  }
+
+  private int chunkCount() {
+    return FileUtils.listFiles(new File(directory, StarTeamManifestStore.DIRNAME), new String[]{"bin"}, true).size();
+  }
+
+  @Test
+  public void sharesIdenticalChunks() throws IOException {
+    File first = storeBuild("ci", 1, filePoints(1));
+    int chunks = chunkCount();
+    assertTrue(chunks > 1);
+    File second = storeBuild("nightly", 1, filePoints(1));
+    assertEquals(chunks, chunkCount());
+    // a changed file only changes its own chunk
+    File third = storeBuild("ci", 2, filePoints(2));
+    assertEquals(chunks + 1, chunkCount());
+
+    assertTrue(StarTeamManifestStore.isReference(first));
+    StarTeamManifest manifest = store.load(third);
+    assertTrue(manifest.isRelative());
+    Iterator<StarTeamFilePoint> it = manifest.relocate("/ws/").iterator();
+    for (StarTeamFilePoint expected : filePoints(2)) {
+      StarTeamFilePoint actual = it.next();
+      assertEquals(expected.getFullfilepath(), actual.getFullfilepath());
+      assertEquals(expected.getRevisionNumber(), actual.getRevisionNumber());
+      assertEquals(expected.getLastModifyDate(), actual.getLastModifyDate());
+    }
+    assertFalse(it.hasNext());
+
+    store.release(first);
+    assertEquals(chunks + 1, chunkCount());
+    store.release(third);
+    assertEquals(chunks, chunkCount());
+    store.release(second);
+    assertEquals(0, chunkCount());
+  }
+
+  @Test
+  public void keepsChunksWithCorruptReferenceCounts() throws IOException {
+    File first = storeBuild("ci", 1, filePoints(1));
+    File second = storeBuild("ci", 2, filePoints(1));
+    int chunks = chunkCount();
+    Collection<File> counts = FileUtils.listFiles(new File(directory, StarTeamManifestStore.DIRNAME),
+        new String[]{"refs"}, true);
+    assertEquals(chunks, counts.size());
+    // half written by an older version
+    FileUtils.writeStringToFile(counts.iterator().next(), "", "US-ASCII");
+
+    store.release(first);
+    store.release(second);
+
+    assertEquals(1, chunkCount());
+  }
+}
@@ -0,0 +1,278 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StarTeamManifestTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("starteam-manifest", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  private static List<StarTeamFilePoint> filePoints(int count) {
+    List<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
+    for (int i = 0; i < count; i++) {
+      result.add(new StarTeamFilePoint(String.format("/ws/job/src/dir%03d/file,%05d.java", i % 7, i),
+          i % 5, 1300000000000L + i * 1000L - (i % 3) * 5000000L));
+    }
+    result.add(new StarTeamFilePoint("/ws/job/docs/\u00e9t\u00e9 \u65e5\u672c.txt", 12, 0L));
+    return result;
+  }
+
+  private static void assertSameFilePoints(Collection<StarTeamFilePoint> expected, Collection<StarTeamFilePoint> actual) {
+    assertEquals(expected.size(), actual.size());
+    List<StarTeamFilePoint> sorted = new ArrayList<StarTeamFilePoint>(expected);
+    Collections.sort(sorted, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    Iterator<StarTeamFilePoint> it = actual.iterator();
+    for (StarTeamFilePoint e : sorted) {
+      StarTeamFilePoint a = it.next();
+      assertEquals(e.getFullfilepath(), a.getFullfilepath());
+      assertEquals(e.getRevisionNumber(), a.getRevisionNumber());
+      assertEquals(e.getLastModifyDate(), a.getLastModifyDate());
+    }
+  }
+
+  private File store(Collection<StarTeamFilePoint> filePoints) throws IOException {
+    File file = new File(directory, StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    StarTeamFilePointFunctions.storeCollection(new FileOutputStream(file), filePoints);
+    return file;
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(1000);
+    assertSameFilePoints(filePoints, StarTeamFilePointFunctions.loadCollection(store(filePoints)));
+  }
+
+  @Test
+  public void compressedRoundTrip() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(1000);
+    File file = new File(directory, StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(new FileOutputStream(file), "/ws/job/", true);
+    List<StarTeamFilePoint> sorted = new ArrayList<StarTeamFilePoint>(filePoints);
+    Collections.sort(sorted, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    for (StarTeamFilePoint filePoint : sorted) {
+      writer.write(filePoint);
+    }
+    writer.close();
+
+    assertSameFilePoints(filePoints, StarTeamFilePointFunctions.loadCollection(file));
+  }
+
+  @Test
+  public void emptyRoundTrip() throws IOException {
+    List<StarTeamFilePoint> filePoints = new ArrayList<StarTeamFilePoint>();
+    assertSameFilePoints(filePoints, StarTeamFilePointFunctions.loadCollection(store(filePoints)));
+  }
+
+  @Test
+  public void readsCsvOfOlderBuilds() throws IOException {
+    File file = new File(directory, StarTeamConnection.FILE_POINT_FILENAME);
+    FileUtils.writeLines(file, "ISO-8859-1", Arrays.asList("3,1000,/ws/a,b.txt", "4,/ws/c.txt"));
+
+    List<StarTeamFilePoint> filePoints = new ArrayList<StarTeamFilePoint>(StarTeamFilePointFunctions.loadCollection(file));
+
+    assertEquals("/ws/a,b.txt", filePoints.get(0).getFullfilepath());
+    assertEquals(3, filePoints.get(0).getRevisionNumber());
+    assertEquals(1000L, filePoints.get(0).getLastModifyDate());
+    assertEquals("/ws/c.txt", filePoints.get(1).getFullfilepath());
+    assertEquals(0L, filePoints.get(1).getLastModifyDate());
+  }
+
+  @Test
+  public void prefersManifestOverCsv() throws IOException {
+    assertEquals(null, StarTeamFilePointFunctions.findFilePointFile(directory));
+    File csv = new File(directory, StarTeamConnection.FILE_POINT_FILENAME);
+    FileUtils.writeLines(csv, "ISO-8859-1", Arrays.asList("3,1000,/ws/a.txt"));
+    assertEquals(csv, StarTeamFilePointFunctions.findFilePointFile(directory));
+    File manifest = store(filePoints(1));
+    assertEquals(manifest, StarTeamFilePointFunctions.findFilePointFile(directory));
+  }
+
+  @Test
+  public void detectsCorruption() throws IOException {
+    File file = store(filePoints(100));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(raf.length() / 2);
+      int b = raf.read();
+      raf.seek(raf.length() / 2);
+      raf.write(b ^ 0x01);
+    } finally {
+      raf.close();
+    }
+    try {
+      StarTeamFilePointFunctions.loadCollection(file);
+      fail("corrupted manifest was read");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void looksUpSinglePaths() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(1000);
+    StarTeamManifest manifest = StarTeamManifest.open(store(filePoints));
+
+    assertTrue(manifest.isSorted());
+    for (StarTeamFilePoint expected : filePoints) {
+      StarTeamFilePoint actual = manifest.lookup(expected.getFullfilepath());
+      assertEquals(expected.getFullfilepath(), actual.getFullfilepath());
+      assertEquals(expected.getRevisionNumber(), actual.getRevisionNumber());
+      assertEquals(expected.getLastModifyDate(), actual.getLastModifyDate());
+    }
+    assertNull(manifest.lookup("/ws/job/src/dir000/missing.java"));
+    assertNull(manifest.lookup("/ws/job/"));
+    assertNull(manifest.lookup("/elsewhere/file.java"));
+    assertEquals(3, StarTeamFilePointFunctions.lookupFilePoint(directory,
+        "/ws/job/src/dir003/file,00003.java").getRevisionNumber());
+  }
+
+  @Test
+  public void openedManifestLeavesItsFileAlone() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(1000);
+    File file = store(filePoints);
+    StarTeamManifest manifest = StarTeamManifest.open(file);
+
+    // the file can be replaced while the manifest is in use
+    assertTrue(file.delete());
+    assertSameFilePoints(filePoints, manifest);
+  }
+
+  @Test
+  public void looksUpPathsOfUnsortedManifest() throws IOException {
+    File file = new File(directory, StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    StarTeamManifestWriter writer = new StarTeamManifestWriter(new FileOutputStream(file), "/ws/", false);
+    for (int i = 40; i > 0; i--) {
+      writer.write(new StarTeamFilePoint("/ws/file" + i, i, i));
+    }
+    writer.close();
+
+    StarTeamManifest manifest = StarTeamManifest.open(file);
+
+    assertEquals(false, manifest.isSorted());
+    assertEquals(7, manifest.lookup("/ws/file7").getRevisionNumber());
+    assertEquals(40, manifest.lookup("/ws/file40").getRevisionNumber());
+    assertNull(manifest.lookup("/ws/file41"));
+  }
+
+  @Test
+  public void serializesEncodedManifest() throws IOException, ClassNotFoundException {
+    List<StarTeamFilePoint> filePoints = filePoints(1000);
+    StarTeamManifest manifest = StarTeamManifest.open(store(filePoints));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(manifest);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    @SuppressWarnings("unchecked")
+    Collection<StarTeamFilePoint> copy = (Collection<StarTeamFilePoint>) in.readObject();
+
+    assertSameFilePoints(filePoints, copy);
+  }
+
+  @Test
+  public void readsManifestFromStream() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(100);
+    FileInputStream in = new FileInputStream(store(filePoints));
+    try {
+      assertSameFilePoints(filePoints, StarTeamManifest.read(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void storesEncodedManifestByStreaming() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(1000);
+    List<StarTeamFilePoint> sorted = new ArrayList<StarTeamFilePoint>(filePoints);
+    Collections.sort(sorted, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    StarTeamManifest encoded = StarTeamManifestWriter.encode(sorted);
+    assertEquals("/ws/job/", encoded.getBase());
+    assertTrue(encoded.isSorted());
+
+    assertSameFilePoints(filePoints, StarTeamFilePointFunctions.loadCollection(store(encoded)));
+  }
+
+  @Test
+  public void storesPathsRelativeToWorkFolder() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(100);
+    File file = new File(directory, StarTeamConnection.FILE_POINT_MANIFEST_FILENAME);
+    StarTeamFilePointFunctions.storeCollection(new FileOutputStream(file), filePoints, null, new File("/ws/job"));
+
+    StarTeamManifest manifest = StarTeamManifest.open(file);
+    assertTrue(manifest.isRelative());
+    assertEquals("", manifest.getBase());
+    assertEquals(12, manifest.lookup("docs/\u00e9t\u00e9 \u65e5\u672c.txt").getRevisionNumber());
+
+    Collection<StarTeamFilePoint> relocated = StarTeamFilePointFunctions.relocate(manifest, null, new File("/data/ws/job@2"));
+    List<StarTeamFilePoint> expected = new ArrayList<StarTeamFilePoint>();
+    for (StarTeamFilePoint filePoint : filePoints) {
+      expected.add(new StarTeamFilePoint(filePoint.getFullfilepath().replace("/ws/job/", "/data/ws/job@2/"),
+          filePoint.getRevisionNumber(), filePoint.getLastModifyDate()));
+    }
+    assertSameFilePoints(expected, relocated);
+    assertEquals(12, ((StarTeamManifest) relocated).lookup("/data/ws/job@2/docs/\u00e9t\u00e9 \u65e5\u672c.txt")
+        .getRevisionNumber());
+  }
+
+  @Test
+  public void movesAbsolutePathsOfOlderManifests() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(100);
+    Collections.sort(filePoints, StarTeamFilePointMerge.FILE_POINT_ORDER);
+    List<StarTeamFilePoint> expected = new ArrayList<StarTeamFilePoint>();
+    for (StarTeamFilePoint filePoint : filePoints) {
+      expected.add(new StarTeamFilePoint(filePoint.getFullfilepath().replace("/ws/job/", "/data/ws/job@2/"),
+          filePoint.getRevisionNumber(), filePoint.getLastModifyDate()));
+    }
+
+    Collection<StarTeamFilePoint> manifest = StarTeamFilePointFunctions.loadCollection(store(filePoints));
+    assertSameFilePoints(expected,
+        StarTeamFilePointFunctions.relocate(manifest, new File("/ws/job"), new File("/data/ws/job@2")));
+    assertSameFilePoints(expected,
+        StarTeamFilePointFunctions.relocate(filePoints, new File("/ws/job"), new File("/data/ws/job@2")));
+    assertSameFilePoints(filePoints,
+        StarTeamFilePointFunctions.relocate(manifest, new File("/elsewhere"), new File("/data/ws/job@2")));
+  }
+
+  @Test
+  public void commonBaseEndsWithSeparator() {
+    assertEquals("/ws/job/", StarTeamManifestWriter.commonBase(Arrays.asList("/ws/job/a.txt", "/ws/job/abc/d.txt")));
+    assertEquals("C:\\ws\\", StarTeamManifestWriter.commonBase(Arrays.asList("C:\\ws\\a", "C:\\ws\\b")));
+    assertEquals("", StarTeamManifestWriter.commonBase(new ArrayList<String>()));
+  }
+}
@@ -0,0 +1,67 @@
+package hudson.plugins.starteam.community;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StarTeamResolutionCacheTest {
+
+  private static final String SERVER = StarTeamResolutionCache.serverKey("host", 1234, "user");
+
+  @Test
+  public void resolvesCachedId() {
+    StarTeamResolutionCache cache = new StarTeamResolutionCache(60000L);
+    String key = StarTeamResolutionCache.projectKey(SERVER, "project");
+    assertNull(cache.get(key));
+    cache.put(key, 42);
+    assertEquals(Integer.valueOf(42), cache.get(key));
+  }
+
+  @Test
+  public void invalidatedIdIsForgotten() {
+    StarTeamResolutionCache cache = new StarTeamResolutionCache(60000L);
+    String key = StarTeamResolutionCache.viewKey(SERVER, 42, "view");
+    cache.put(key, 7);
+    cache.invalidate(key);
+    assertNull(cache.get(key));
+  }
+
+  @Test
+  public void expiredIdIsForgotten() {
+    StarTeamResolutionCache cache = new StarTeamResolutionCache(0L);
+    String key = StarTeamResolutionCache.projectKey(SERVER, "project");
+    cache.put(key, 42);
+    assertNull(cache.get(key));
+  }
+
+  @Test
+  public void keysAreScopedByServerAndProject() {
+    StarTeamResolutionCache cache = new StarTeamResolutionCache(60000L);
+    cache.put(StarTeamResolutionCache.viewKey(SERVER, 1, "view"), 7);
+    assertNull(cache.get(StarTeamResolutionCache.viewKey(SERVER, 2, "view")));
+    assertNull(cache.get(StarTeamResolutionCache.viewKey(StarTeamResolutionCache.serverKey("other", 1234, "user"), 1, "view")));
+  }
+
+  @Test
+  public void keysAreScopedByUser() {
+    StarTeamResolutionCache cache = new StarTeamResolutionCache(60000L);
+    cache.put(StarTeamResolutionCache.projectKey(SERVER, "project"), 42);
+    cache.put(StarTeamResolutionCache.viewKey(SERVER, 42, "view"), 7);
+    String other = StarTeamResolutionCache.serverKey("host", 1234, "other");
+    assertNull(cache.get(StarTeamResolutionCache.projectKey(other, "project")));
+    assertNull(cache.get(StarTeamResolutionCache.viewKey(other, 42, "view")));
+  }
+
+  @Test
+  public void folderKeysAreScopedByServerAndUser() {
+    StarTeamResolutionCache cache = new StarTeamResolutionCache(60000L);
+    cache.put(StarTeamResolutionCache.folderKey(SERVER, 7, "view/src/"), 9);
+    assertEquals(Integer.valueOf(9), cache.get(StarTeamResolutionCache.folderKey(
+        StarTeamResolutionCache.serverKey("host", 1234, "user"), 7, "view/src/")));
+    assertNull(cache.get(StarTeamResolutionCache.folderKey(
+        StarTeamResolutionCache.serverKey("host", 1234, "other"), 7, "view/src/")));
+    assertNull(cache.get(StarTeamResolutionCache.folderKey(
+        StarTeamResolutionCache.serverKey("host", 4321, "user"), 7, "view/src/")));
+  }
+}
@@ -0,0 +1,110 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.Server;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(JMock.class)
+public class StarTeamSessionPoolTest {
+
+  private Mockery mockery = new Mockery() {{
+    setImposteriser(ClassImposteriser.INSTANCE);
+  }};
+
+  private final StarTeamSessionPool.SessionKey key =
+      new StarTeamSessionPool.SessionKey("host", 1234, "user", "passwd", null, -1);
+
+  @Test
+  public void borrowFromEmptyPool() {
+    StarTeamSessionPool pool = new StarTeamSessionPool(true, 2, 60000L);
+    assertNull(pool.borrow(key));
+  }
+
+  @Test
+  public void releasedSessionIsReused() {
+    final Server server = mockery.mock(Server.class);
+    mockery.checking(new Expectations() {{
+      allowing(server).isConnected();
+      will(returnValue(true));
+      allowing(server).isLoggedOn();
+      will(returnValue(true));
+    }});
+    StarTeamSessionPool pool = new StarTeamSessionPool(true, 2, 60000L);
+    pool.release(key, server);
+    assertEquals(1, pool.getIdleCount());
+    assertSame(server, pool.borrow(key));
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void sessionIsNotSharedAcrossCredentials() {
+    final Server server = mockery.mock(Server.class);
+    mockery.checking(new Expectations() {{
+      allowing(server).isConnected();
+      will(returnValue(true));
+      allowing(server).isLoggedOn();
+      will(returnValue(true));
+    }});
+    StarTeamSessionPool pool = new StarTeamSessionPool(true, 2, 60000L);
+    pool.release(key, server);
+    assertNull(pool.borrow(new StarTeamSessionPool.SessionKey("host", 1234, "user", "other", null, -1)));
+  }
+
+  @Test
+  public void unhealthySessionIsDisconnected() {
+    final Server server = mockery.mock(Server.class);
+    mockery.checking(new Expectations() {{
+      allowing(server).isConnected();
+      will(returnValue(true));
+      allowing(server).isLoggedOn();
+      will(returnValue(false));
+      oneOf(server).disconnect();
+    }});
+    StarTeamSessionPool pool = new StarTeamSessionPool(true, 2, 60000L);
+    pool.release(key, server);
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void oldestSessionIsEvictedWhenFull() {
+    final Server first = mockery.mock(Server.class, "first");
+    final Server second = mockery.mock(Server.class, "second");
+    mockery.checking(new Expectations() {{
+      allowing(first).isConnected();
+      will(returnValue(true));
+      allowing(first).isLoggedOn();
+      will(returnValue(true));
+      allowing(second).isConnected();
+      will(returnValue(true));
+      allowing(second).isLoggedOn();
+      will(returnValue(true));
+      oneOf(first).disconnect();
+    }});
+    StarTeamSessionPool pool = new StarTeamSessionPool(true, 1, 60000L);
+    pool.release(key, first);
+    pool.release(key, second);
+    assertEquals(1, pool.getIdleCount());
+    assertSame(second, pool.borrow(key));
+  }
+
+  @Test
+  public void disabledPoolDisconnects() {
+    final Server server = mockery.mock(Server.class);
+    mockery.checking(new Expectations() {{
+      allowing(server).isConnected();
+      will(returnValue(true));
+      oneOf(server).disconnect();
+    }});
+    StarTeamSessionPool pool = new StarTeamSessionPool(false, 2, 60000L);
+    pool.release(key, server);
+    assertNull(pool.borrow(key));
+  }
+}
@@ -0,0 +1,94 @@
+package hudson.plugins.starteam.community;
+
+import com.starteam.Server;
+import com.starteam.ServerAdministration;
+import com.starteam.User;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JMock.class)
+public class StarTeamUserDirectoryTest {
+
+  private Mockery mockery = new Mockery() {{
+    setImposteriser(ClassImposteriser.INSTANCE);
+  }};
+
+  private User user(final String name, final int id, final String email) {
+    final User user = mockery.mock(User.class, name + id);
+    mockery.checking(new Expectations() {{
+      allowing(user).getName();
+      will(returnValue(name));
+      allowing(user).getID();
+      will(returnValue(id));
+      allowing(user).getEmailAddress();
+      will(returnValue(email));
+    }});
+    return user;
+  }
+
+  @Test
+  public void usesLocalPartOfEmailAddress() {
+    User account = user("John Doe", 1, "jdoe@example.com");
+    StarTeamUserDirectory directory = new StarTeamUserDirectory(new User[]{account}, 0L);
+    assertEquals("jdoe", directory.getUsername(account));
+  }
+
+  @Test
+  public void fallsBackToNameWithoutEmailAddress() {
+    User account = user("John Doe", 1, "");
+    StarTeamUserDirectory directory = new StarTeamUserDirectory(new User[]{account}, 0L);
+    assertEquals("John Doe", directory.getUsername(account));
+  }
+
+  @Test
+  public void firstAccountWithEmailAddressWins() {
+    User first = user("John Doe", 1, "none");
+    User second = user("John Doe", 2, "jdoe@example.com");
+    User third = user("John Doe", 3, "john.doe@example.com");
+    StarTeamUserDirectory directory = new StarTeamUserDirectory(new User[]{first, second, third}, 0L);
+    assertEquals("jdoe", directory.getUsername(first));
+    assertEquals("jdoe", directory.getUsername(third));
+  }
+
+  @Test
+  public void unknownUserKeepsName() {
+    User account = user("John Doe", 1, "jdoe@example.com");
+    User stranger = user("Jane Roe", 2, null);
+    StarTeamUserDirectory directory = new StarTeamUserDirectory(new User[]{account}, 0L);
+    assertEquals("Jane Roe", directory.getUsername(stranger));
+  }
+
+  @Test
+  public void unreadableDirectoryKeepsName() {
+    User account = user("John Doe", 1, "jdoe@example.com");
+    StarTeamUserDirectory directory = new StarTeamUserDirectory(null, 0L);
+    assertEquals("John Doe", directory.getUsername(account));
+  }
+
+  @Test
+  public void failedFetchIsNotRemembered() {
+    final User account = user("John Doe", 1, "jdoe@example.com");
+    final Server server = mockery.mock(Server.class);
+    final ServerAdministration administration = mockery.mock(ServerAdministration.class);
+    mockery.checking(new Expectations() {{
+      allowing(server).getAdministration();
+      will(returnValue(administration));
+      oneOf(administration).getUsers();
+      will(throwException(new IllegalStateException("no permission")));
+      oneOf(administration).getUsers();
+      will(returnValue(new User[]{account}));
+    }});
+    String serverKey = "failedFetchIsNotRemembered@host:1234";
+
+    assertEquals("John Doe", StarTeamUserDirectory.get(serverKey, server).getUsername(account));
+    assertEquals("jdoe", StarTeamUserDirectory.get(serverKey, server).getUsername(account));
+    // fetched successfully, the directory is remembered
+    assertEquals("jdoe", StarTeamUserDirectory.get(serverKey, server).getUsername(account));
+  }
+}
@@ -0,0 +1,94 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamWorkspaceCleanupTest {
+
+  private File workFolder;
+
+  @Before
+  public void setUp() throws IOException {
+    workFolder = File.createTempFile("starteam-cleanup", "");
+    workFolder.delete();
+    workFolder.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workFolder);
+  }
+
+  private File create(String path) throws IOException {
+    File file = new File(workFolder, path);
+    FileUtils.writeStringToFile(file, path, "UTF-8");
+    return file;
+  }
+
+  @Test
+  public void removesFilesAndPrunesEmptyDirectories() throws IOException {
+    List<File> toRemove = new ArrayList<File>();
+    for (int i = 0; i < 1000; i++) {
+      toRemove.add(create("old/module" + (i % 10) + "/src/File" + i + ".java"));
+    }
+    toRemove.add(create("src/Gone.java"));
+    toRemove.add(new File(workFolder, "src/Missing.java"));
+    File kept = create("src/Kept.java");
+    File metadata = create(StarTeamConnection.WORKSPACE_METADATA_DIRNAME + "/content-index.bin");
+    toRemove.add(metadata);
+
+    StarTeamWorkspaceCleanup cleanup = StarTeamWorkspaceCleanup.remove(workFolder, toRemove);
+
+    assertEquals(1001, cleanup.getRemoved());
+    assertEquals(1, cleanup.getMissing());
+    // old, its ten modules and their src directories
+    assertEquals(21, cleanup.getRemovedDirectories());
+    assertTrue(cleanup.getFailures().isEmpty());
+    assertFalse(new File(workFolder, "old").exists());
+    assertTrue(kept.exists());
+    assertTrue(metadata.exists());
+    assertTrue(workFolder.isDirectory());
+  }
+
+  @Test
+  public void keepsWorkFolder() throws IOException {
+    List<File> toRemove = new ArrayList<File>();
+    toRemove.add(create("only.txt"));
+
+    StarTeamWorkspaceCleanup cleanup = StarTeamWorkspaceCleanup.remove(workFolder, toRemove);
+
+    assertEquals(1, cleanup.getRemoved());
+    assertEquals(0, cleanup.getRemovedDirectories());
+    assertTrue(workFolder.isDirectory());
+  }
+
+  @Test
+  public void keepsDirectoriesOfStarTeamFolders() throws IOException {
+    List<File> toRemove = new ArrayList<File>();
+    toRemove.add(create("src/main/Gone.java"));
+    toRemove.add(create("old/Gone.java"));
+    List<File> folderPaths = new ArrayList<File>();
+    folderPaths.add(workFolder);
+    folderPaths.add(new File(workFolder, "src"));
+    folderPaths.add(new File(workFolder, "src/main"));
+
+    StarTeamWorkspaceCleanup cleanup = StarTeamWorkspaceCleanup.remove(workFolder, toRemove, folderPaths);
+
+    assertEquals(2, cleanup.getRemoved());
+    // only the directory that is no StarTeam folder
+    assertEquals(1, cleanup.getRemovedDirectories());
+    assertTrue(new File(workFolder, "src/main").isDirectory());
+    assertFalse(new File(workFolder, "old").exists());
+  }
+}
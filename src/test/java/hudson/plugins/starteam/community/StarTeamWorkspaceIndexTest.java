@@ -0,0 +1,80 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StarTeamWorkspaceIndexTest {
+
+  private File workFolder;
+
+  @Before
+  public void setUp() throws IOException {
+    workFolder = File.createTempFile("starteam-index", "");
+    workFolder.delete();
+    workFolder.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workFolder);
+  }
+
+  @Test
+  public void recordedHashSurvivesReload() throws IOException {
+    File file = new File(workFolder, "dir/file.txt");
+    StarTeamWorkspaceIndex index = StarTeamWorkspaceIndex.load(workFolder);
+    index.record(file, 5L, 1000L, "abc");
+    index.save();
+
+    StarTeamWorkspaceIndex reloaded = StarTeamWorkspaceIndex.load(workFolder);
+    assertEquals("abc", reloaded.lookup(file, 5L, 1000L));
+  }
+
+  @Test
+  public void changedStatInvalidatesHash() {
+    File file = new File(workFolder, "file.txt");
+    StarTeamWorkspaceIndex index = StarTeamWorkspaceIndex.load(workFolder);
+    index.record(file, 5L, 1000L, "abc");
+    assertNull(index.lookup(file, 6L, 1000L));
+    assertNull(index.lookup(file, 5L, 2000L));
+  }
+
+  @Test
+  public void filesOutsideWorkFolderAreIgnored() {
+    File file = new File(workFolder.getParentFile(), "elsewhere.txt");
+    StarTeamWorkspaceIndex index = StarTeamWorkspaceIndex.load(workFolder);
+    index.record(file, 5L, 1000L, "abc");
+    assertNull(index.lookup(file, 5L, 1000L));
+  }
+
+  @Test
+  public void corruptedIndexIsRebuilt() throws IOException {
+    File file = new File(workFolder, "file.txt");
+    StarTeamWorkspaceIndex index = StarTeamWorkspaceIndex.load(workFolder);
+    index.record(file, 5L, 1000L, "abc");
+    index.save();
+
+    File indexFile = new File(new File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME),
+        StarTeamWorkspaceIndex.INDEX_FILENAME);
+    RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+    try {
+      raf.seek(raf.length() - 3);
+      raf.write(0x7f);
+    } finally {
+      raf.close();
+    }
+
+    StarTeamWorkspaceIndex rebuilt = StarTeamWorkspaceIndex.load(workFolder);
+    assertNull(rebuilt.lookup(file, 5L, 1000L));
+    assertEquals(0, rebuilt.size());
+  }
+}
@@ -0,0 +1,68 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamWorkspaceManifestTest {
+
+  private File workspace;
+
+  @Before
+  public void setUp() throws IOException {
+    workspace = File.createTempFile("starteam-workspace", "");
+    workspace.delete();
+    workspace.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workspace);
+  }
+
+  private List<StarTeamFilePoint> filePoints(int revision) {
+    List<StarTeamFilePoint> result = new ArrayList<StarTeamFilePoint>();
+    for (int i = 0; i < 100; i++) {
+      result.add(new StarTeamFilePoint(new File(workspace, String.format("src/file%03d.txt", i)).getAbsolutePath(),
+          revision, i * 1000L));
+    }
+    return result;
+  }
+
+  @Test
+  public void digestDependsOnContentOnly() throws IOException {
+    List<StarTeamFilePoint> filePoints = filePoints(1);
+    String digest = StarTeamWorkspaceManifest.digest(filePoints);
+
+    assertEquals(digest, StarTeamWorkspaceManifest.digest(StarTeamManifestWriter.encode(filePoints)));
+    assertFalse(digest.equals(StarTeamWorkspaceManifest.digest(filePoints(2))));
+  }
+
+  @Test
+  public void loadsCopyWithMatchingDigest() throws IOException {
+    StarTeamManifest filePoints = StarTeamManifestWriter.encode(filePoints(1));
+    String digest = StarTeamWorkspaceManifest.digest(filePoints);
+    File workFolder = new File(workspace, "sub");
+
+    StarTeamWorkspaceManifest.store(workFolder, filePoints, digest);
+
+    assertTrue(new StarTeamWorkspaceManifest.Check("sub", digest).invoke(workspace, null));
+    assertFalse(new StarTeamWorkspaceManifest.Check("", digest).invoke(workspace, null));
+    StarTeamManifest copy = StarTeamWorkspaceManifest.load(workFolder, digest);
+    assertNotNull(copy);
+    assertEquals(digest, StarTeamWorkspaceManifest.digest(copy));
+    assertNull(StarTeamWorkspaceManifest.load(workFolder, StarTeamWorkspaceManifest.digest(filePoints(2))));
+  }
+}
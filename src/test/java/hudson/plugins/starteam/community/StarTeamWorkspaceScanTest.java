@@ -0,0 +1,118 @@
+package hudson.plugins.starteam.community;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StarTeamWorkspaceScanTest {
+
+  private File workFolder;
+
+  @Before
+  public void setUp() throws IOException {
+    workFolder = File.createTempFile("starteam-scan", "").getAbsoluteFile();
+    workFolder.delete();
+    workFolder.mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(workFolder);
+  }
+
+  @Test
+  public void capturesFilesInAllDirectories() throws IOException {
+    File top = new File(workFolder, "top.txt");
+    File nested = new File(workFolder, "a/b/c/nested.txt");
+    FileUtils.writeStringToFile(top, "top", "ISO-8859-1");
+    FileUtils.writeStringToFile(nested, "nested!", "ISO-8859-1");
+    nested.setLastModified(1000000L);
+    new File(workFolder, "empty").mkdirs();
+
+    StarTeamWorkspaceScan scan = StarTeamWorkspaceScan.scan(workFolder);
+
+    Collection<File> files = scan.getFiles();
+    assertEquals(2, files.size());
+    assertTrue(files.contains(top));
+    assertTrue(files.contains(nested));
+    assertEquals(7L, scan.getAttributes(nested).getSize());
+    assertEquals(1000000L, scan.getAttributes(nested).getLastModified());
+    assertEquals(1000000L, scan.lastModified(new StarTeamFilePoint(nested.getPath(), 1, 0L)));
+    assertEquals(0L, scan.lastModified(new StarTeamFilePoint(new File(workFolder, "missing").getPath(), 1, 0L)));
+  }
+
+  @Test
+  public void skipsMetadataDirectory() throws IOException {
+    FileUtils.writeStringToFile(new File(new File(workFolder, StarTeamConnection.WORKSPACE_METADATA_DIRNAME), "index"),
+        "metadata", "ISO-8859-1");
+
+    StarTeamWorkspaceScan scan = StarTeamWorkspaceScan.scan(workFolder);
+
+    assertEquals(0, scan.getFiles().size());
+  }
+
+  @Test
+  public void guidedScanOnlyListsStarTeamFolders() throws IOException {
+    File managed = new File(workFolder, "src/main/Main.java");
+    File outsideFolder = new File(workFolder, "target/classes/Main.class");
+    File betweenFolders = new File(workFolder, "modules/README");
+    File deepManaged = new File(workFolder, "modules/core/Core.java");
+    for (File file : Arrays.asList(managed, outsideFolder, betweenFolders, deepManaged)) {
+      FileUtils.writeStringToFile(file, "content", "ISO-8859-1");
+    }
+
+    StarTeamWorkspaceScan scan = StarTeamWorkspaceScan.scan(workFolder,
+        Arrays.asList(new File(workFolder, "src"), new File(workFolder, "src/main"), new File(workFolder, "modules/core")),
+        Collections.<String>emptyList());
+
+    Collection<File> files = scan.getFiles();
+    assertEquals(2, files.size());
+    assertTrue(files.contains(managed));
+    assertTrue(files.contains(deepManaged));
+    assertFalse(scan.isScanned(outsideFolder));
+    assertFalse(scan.isScanned(betweenFolders));
+    assertTrue(scan.isScanned(new File(workFolder, "src/main/Missing.java")));
+  }
+
+  @Test
+  public void prunedDirectoriesAreNotListed() throws IOException {
+    File kept = new File(workFolder, "web/index.html");
+    File prunedByName = new File(workFolder, "web/node_modules/lib.js");
+    File prunedByPath = new File(workFolder, "web/build/app.js");
+    for (File file : Arrays.asList(kept, prunedByName, prunedByPath)) {
+      FileUtils.writeStringToFile(file, "content", "ISO-8859-1");
+    }
+    prunedByName.setLastModified(1000000L);
+
+    StarTeamWorkspaceScan scan = StarTeamWorkspaceScan.scan(workFolder,
+        Arrays.asList(new File(workFolder, "web"), new File(workFolder, "web/node_modules"),
+            new File(workFolder, "web/build")),
+        Arrays.asList("node_modules", "web/build"));
+
+    assertEquals(1, scan.getFiles().size());
+    assertTrue(scan.getFiles().contains(kept));
+    assertFalse(scan.isScanned(prunedByName));
+    // files of pruned folders are still looked up on demand
+    assertEquals(1000000L, scan.lastModified(new StarTeamFilePoint(prunedByName.getPath(), 1, 0L)));
+  }
+
+  @Test
+  public void missingWorkFolderHasNoFiles() {
+    StarTeamWorkspaceScan scan = StarTeamWorkspaceScan.scan(new File(workFolder, "missing"));
+
+    assertEquals(0, scan.getFiles().size());
+    assertNull(scan.getAttributes(new File(workFolder, "missing")));
+  }
+}